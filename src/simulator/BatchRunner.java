@@ -0,0 +1,138 @@
+package simulator;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+
+import com.pi.math.vector.Vector;
+
+import simulator.plans.Burn;
+import simulator.plans.Collision;
+import simulator.plans.SOIChange;
+import simulator.plans.SimEvent;
+import simulator.scenario.ScenarioLoader;
+import simulator.simObject.Ship;
+import simulator.simObject.SimObject;
+
+/**
+ * Runs a scenario without a window as fast as possible and logs the
+ * ephemeris and the events to CSV files. Never touches LWJGL, so it can run
+ * on a server.
+ * 
+ * Usage: BatchRunner scenario span step outputDirectory
+ * 
+ * span is the time to simulate from the scenario epoch in seconds. step is
+ * the time between ephemeris rows in seconds, or 0 to jump from event to
+ * event and write rows at each one.
+ * 
+ * @author David
+ *
+ */
+public class BatchRunner implements SolarSystem.SimEventListener {
+	private Simulation sim;
+	private PrintWriter ephemeris;
+	private PrintWriter events;
+
+	/**
+	 * @param scenarioPath
+	 *            the scenario to load
+	 * @param outputDir
+	 *            where ephemeris.csv and events.csv are written
+	 */
+	public BatchRunner(String scenarioPath, File outputDir) throws IOException {
+		sim = new Simulation();
+		sim.solarSystem = new SolarSystem(sim);
+		ScenarioLoader loader = new ScenarioLoader(sim, scenarioPath);
+		loader.init();
+
+		outputDir.mkdirs();
+		ephemeris = new PrintWriter(new BufferedWriter(new FileWriter(
+				new File(outputDir, "ephemeris.csv"))));
+		events = new PrintWriter(new BufferedWriter(new FileWriter(new File(
+				outputDir, "events.csv"))));
+		ephemeris.println("epoch,name,parent,x,y,z,vx,vy,vz");
+		events.println("epoch,type,ship,detail");
+
+		sim.solarSystem.addNewSimEventListener(this);
+	}
+
+	/**
+	 * Simulate from the scenario epoch, then close the logs
+	 * 
+	 * @param span
+	 *            seconds to simulate
+	 * @param step
+	 *            seconds between ephemeris rows, or 0 to step from event to
+	 *            event
+	 */
+	public void run(double span, double step) {
+		SolarSystem solarSystem = sim.solarSystem;
+		solarSystem.startHeadless();
+
+		double epoch = solarSystem.getEpoch();
+		double end = epoch + span;
+		solarSystem.updateTo(epoch);
+		writeEphemeris(epoch);
+		while (epoch < end) {
+			if (step > 0) {
+				epoch = Math.min(epoch + step, end);
+			} else {
+				epoch = Math.min(solarSystem.getNextEventEpoch(), end);
+			}
+			solarSystem.setEpoch(epoch);
+			solarSystem.updateTo(epoch);
+			writeEphemeris(epoch);
+		}
+
+		ephemeris.close();
+		events.close();
+	}
+
+	private void writeEphemeris(double epoch) {
+		for (SimObject o : sim.solarSystem.getObjects()) {
+			// Crashed ships are gone until they're brought back
+			if (o instanceof Ship && ((Ship) o).isDestroyed()) {
+				continue;
+			}
+			Vector pos = o.getPos();
+			Vector vel = o.getVel();
+			ephemeris.println(epoch + "," + o.name + ","
+					+ (o.parent == null ? "" : o.parent.name) + ","
+					+ pos.get(0) + "," + pos.get(1) + "," + pos.get(2) + ","
+					+ vel.get(0) + "," + vel.get(1) + "," + vel.get(2));
+		}
+	}
+
+	@Override
+	public void simEvent(SimEvent e) {
+		String detail = "";
+		if (e instanceof Burn) {
+			detail = ((Burn) e).maneuver.toString();
+		} else if (e instanceof SOIChange) {
+			detail = ((SOIChange) e).getParent().name;
+		} else if (e instanceof Collision) {
+			detail = ((Collision) e).getBody().name;
+		}
+		events.println(e.getEpoch() + "," + e.getClass().getSimpleName() + ","
+				+ e.getShip().name + "," + detail);
+	}
+
+	public static void main(String[] args) {
+		if (args.length < 4) {
+			System.out.println("Usage: BatchRunner <scenario> <span (s)> "
+					+ "<step (s), 0 for events> <output directory>");
+			System.exit(1);
+		}
+		try {
+			BatchRunner runner = new BatchRunner(args[0], new File(args[3]));
+			runner.run(Double.parseDouble(args[1]),
+					Double.parseDouble(args[2]));
+		} catch (IOException e) {
+			e.printStackTrace();
+			System.exit(1);
+		}
+		System.exit(0);
+	}
+}
@@ -0,0 +1,107 @@
+package simulator;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+
+import simulator.conjunction.Conjunction;
+import simulator.conjunction.ConjunctionScreener;
+import simulator.scenario.ScenarioLoader;
+import simulator.simObject.Body;
+import simulator.simObject.Ship;
+
+/**
+ * Screens the ships of a scenario for close approaches without a window.
+ * Ships orbiting the same body are screened against each other. Each
+ * conjunction is written to conjunctions.csv as it's found, then all of them
+ * are written to ranked.csv, lowest miss distance first.
+ * 
+ * Usage: ScreeningRunner scenario span threshold outputDirectory [step]
+ * 
+ * span is the time to screen from the scenario epoch in seconds. threshold
+ * is the greatest miss distance to report in metres. step is the time
+ * filter's step in seconds.
+ * 
+ * @author David
+ *
+ */
+public class ScreeningRunner {
+	public static final double DEFAULT_STEP = 10;
+
+	public static void main(String[] args) {
+		if (args.length < 4) {
+			System.out.println("Usage: ScreeningRunner <scenario> <span (s)> "
+					+ "<threshold (m)> <output directory> [step (s)]");
+			System.exit(1);
+		}
+		double span = Double.parseDouble(args[1]);
+		double threshold = Double.parseDouble(args[2]);
+		File outputDir = new File(args[3]);
+		double step = args.length > 4 ? Double.parseDouble(args[4])
+				: DEFAULT_STEP;
+
+		Simulation sim = new Simulation();
+		sim.solarSystem = new SolarSystem(sim);
+		new ScenarioLoader(sim, args[0]).init();
+		SolarSystem solarSystem = sim.solarSystem;
+		solarSystem.startHeadless();
+		double epoch = solarSystem.getEpoch();
+		solarSystem.updateTo(epoch);
+
+		LinkedHashMap<Body, ArrayList<Ship>> groups;
+		groups = new LinkedHashMap<Body, ArrayList<Ship>>();
+		for (Ship s : solarSystem.getShips()) {
+			ArrayList<Ship> group = groups.get(s.parent);
+			if (group == null) {
+				group = new ArrayList<Ship>();
+				groups.put(s.parent, group);
+			}
+			group.add(s);
+		}
+
+		try {
+			outputDir.mkdirs();
+			PrintWriter stream = new PrintWriter(new BufferedWriter(
+					new FileWriter(new File(outputDir, "conjunctions.csv"))));
+			stream.println(Conjunction.CSV_HEADER);
+
+			ArrayList<Conjunction> ranked = new ArrayList<Conjunction>();
+			for (Body parent : groups.keySet()) {
+				ArrayList<Ship> group = groups.get(parent);
+				if (group.size() < 2) {
+					continue;
+				}
+				long startTime = System.currentTimeMillis();
+				ConjunctionScreener screener = new ConjunctionScreener(group,
+						threshold, step);
+				ranked.addAll(screener.screen(epoch, epoch + span, stream));
+				System.out.println(parent.name + ": " + group.size()
+						+ " ships, " + screener.getApsisPairs()
+						+ " pairs past apogee/perigee, "
+						+ screener.getPathPairs() + " past path, "
+						+ screener.getCandidates() + " refined, "
+						+ (System.currentTimeMillis() - startTime) + " ms");
+			}
+			stream.close();
+
+			Collections.sort(ranked);
+			PrintWriter out = new PrintWriter(new BufferedWriter(
+					new FileWriter(new File(outputDir, "ranked.csv"))));
+			out.println(Conjunction.CSV_HEADER);
+			for (Conjunction c : ranked) {
+				out.println(c.toCSV());
+			}
+			out.close();
+			System.out.println(ranked.size() + " conjunctions");
+		} catch (IOException e) {
+			e.printStackTrace();
+			System.exit(1);
+		}
+		System.exit(0);
+	}
+}
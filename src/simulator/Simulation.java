@@ -5,6 +5,8 @@ import java.io.FileNotFoundException;
 import java.io.PrintWriter;
 import java.net.URISyntaxException;
 
+import com.pi.math.vector.Vector;
+
 import simulator.scenario.ScenarioEditor;
 import simulator.scenario.ScenarioFactory;
 import simulator.scenario.ScenarioLoader;
@@ -88,7 +90,10 @@ public class Simulation {
 	public void setFocus(SimObject focus) {
 		if (focus != null) {
 			this.focus = focus;
-			this.screen.camera.updateFocus(focus.getAbsolutePos());
+			Vector pos = focus.getPublishedAbsolutePos();
+			if (screen != null && pos != null) {
+				screen.camera.updateFocus(pos);
+			}
 		}
 	}
 	
@@ -102,6 +107,7 @@ public class Simulation {
 			simSpeed = 0;
 		} else {
 			simSpeed = unPausedSpeed;
+			solarSystem.wake();
 		}
 	}
 	
@@ -1,106 +1,180 @@
 package simulator;
 
 import java.util.ArrayList;
-import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.locks.LockSupport;
+
+import com.pi.math.vector.Vector;
 
 import simulator.astro.Astrophysics;
 import simulator.astro.Time;
+import simulator.clock.RealTimeClock;
+import simulator.clock.SimClock;
 import simulator.plans.Burn;
+import simulator.plans.Collision;
+import simulator.plans.EventTimeline;
 import simulator.plans.SOIChange;
 import simulator.plans.SimEvent;
 import simulator.plans.maneuvers.Maneuver;
+import simulator.screen.Camera;
 import simulator.screen.Renderer;
 import simulator.simObject.Body;
 import simulator.simObject.Ship;
 import simulator.simObject.SimObject;
 import simulator.simObject.SimObject.RenderDetail;
+import simulator.simObject.StateStore;
+import simulator.tle.TLE;
 
 /**
  * Manages the rendering and updating of simObjects
  * 
- * TODO SOIChanges not buffering on inserted maneuvers
- * 
  * @author S-2482153
  *
  */
 public class SolarSystem extends Thread {
 	private ArrayList<SimObject> objects;
+	private ArrayList<StateStore> stores;
 	private Renderer renderer;
 	private Simulation sim;
 
 	private Thread thread;
-	private long lastTime;
+	private SimClock clock;
 	private double simStartTimeTAI;
 	private double epochTAI = Double.NaN;
 
-	private ArrayList<SimEvent> events;
-	private EventComparator eComp;
-	private ReverseEventComparator eCompRev;
+	private EventTimeline timeline;
 
-	private ArrayList<ThreadRequest> requestQueue;
+	private ConcurrentLinkedQueue<ThreadRequest> requestQueue;
+
+	/**
+	 * Set when the state has changed since a snapshot was last published
+	 */
+	private boolean unpublished = false;
 
 	private ArrayList<SOIChangeListener> listeners;
+	private ArrayList<SimEventListener> eventListeners;
+
+	/**
+	 * Stores with at least this many objects are propagated across all
+	 * cores. Set to Integer.MAX_VALUE to stay on the solar system thread
+	 */
+	private int parallelThreshold = 2048;
+
+	/**
+	 * How long to park while paused before checking the speed again, in
+	 * nanoseconds. Unpausing through Simulation.setPaused() wakes the thread
+	 * straight away
+	 */
+	private static final long PAUSED_WAIT = 250000000L;
+
+	/**
+	 * How far either side of the simulation the bodies' ephemerides are
+	 * fitted, in seconds
+	 */
+	private double ephemerisWindow = 50 * 365.25 * 86400.0;
 
 	public SolarSystem(Simulation sim) {
 		renderer = new SolarSystemRenderer();
 		objects = new ArrayList<SimObject>();
+		stores = new ArrayList<StateStore>();
 		this.sim = sim;
-		events = new ArrayList<SimEvent>();
-		eComp = new EventComparator();
-		eCompRev = new ReverseEventComparator();
-		requestQueue = new ArrayList<ThreadRequest>();
+		timeline = new EventTimeline();
+		clock = new RealTimeClock();
+		requestQueue = new ConcurrentLinkedQueue<ThreadRequest>();
 		listeners = new ArrayList<SOIChangeListener>();
+		eventListeners = new ArrayList<SimEventListener>();
 	}
 
 	@Override
 	public void run() {
-		lastTime = System.currentTimeMillis();
+		prepare();
+
+		// System.out.println("\nstarting live sim");
+
+		displayLiveSimulation();
+	}
+
+	/**
+	 * Buffer the events and bring everything to the start of the simulation
+	 */
+	private void prepare() {
 		if (Double.isNaN(epochTAI)) {
 			epochTAI = simStartTimeTAI;
 		}
 
+		fitEphemerides();
 		bufferEvents();
 		updateTo(simStartTimeTAI);
-
-		// System.out.println("\nstarting live sim");
-
-		displayLiveSimulation();
 	}
 
 	public void updateTo(double epoch) {
-		// TODO This method of looking for events seems wasteful
-		ArrayList<SimEvent> forwardEvents = new ArrayList<SimEvent>();
-		ArrayList<SimEvent> reverseEvents = new ArrayList<SimEvent>();
-		for (SimEvent e : events) {
-			if (epoch >= e.getEpoch() && !e.isFinished()) {
-				forwardEvents.add(e);
-			} else if (epoch < e.getEpoch() && e.isFinished()) {
-				reverseEvents.add(e);
-			}
-		}
-		forwardEvents.sort(eComp);
-		reverseEvents.sort(eCompRev);
-		for (SimEvent e : forwardEvents) {
-			for (SimObject o : objects) {
-				o.updateTo(e.getEpoch());
+		if (timeline.hasEventsDue(epoch)) {
+			for (SimEvent e : timeline.forward(epoch)) {
+				if (!e.isFinished()) {
+					propagateAll(e.getEpoch());
+					e.execute();
+					fireSimEvent(e);
+					if (e instanceof SOIChange) {
+						fireSOIChange((SOIChange) e);
+					}
+				}
 			}
-			e.execute();
-			if (e instanceof SOIChange) {
-				fireSOIChange((SOIChange) e);
+			for (SimEvent e : timeline.reverse(epoch)) {
+				if (e.isFinished()) {
+					propagateAll(e.getEpoch());
+					e.reverse();
+				}
 			}
 		}
-		for (SimEvent e : reverseEvents) {
-			for (SimObject o : objects) {
-				o.updateTo(e.getEpoch());
+
+		propagateAll(epoch);
+		selectElements(epoch);
+		publish(epoch);
+	}
+
+	/**
+	 * Publish the state for the render and GUI threads. Stores which can't
+	 * publish yet because their last snapshot hasn't been read are tried
+	 * again on the next tick
+	 */
+	private void publish(double epoch) {
+		unpublished = false;
+		for (StateStore store : stores) {
+			if (!store.publish(epoch)) {
+				unpublished = true;
 			}
-			e.reverse();
 		}
+	}
 
-		for (SimObject o : objects) {
-			o.updateTo(epoch);
+	/**
+	 * Propagate every object to the epoch with the batch kernel of each state
+	 * store. Large stores are split across cores, but this still returns only
+	 * once everything is at the epoch, so events stay in order.
+	 */
+	private void propagateAll(double epoch) {
+		for (StateStore store : stores) {
+			store.propagateAll(epoch, parallelThreshold);
 		}
 	}
+
+	/**
+	 * @param threshold
+	 *            the number of objects in a state store before it is
+	 *            propagated in parallel
+	 */
+	public void setParallelThreshold(int threshold) {
+		parallelThreshold = threshold;
+	}
+
+	public int getParallelThreshold() {
+		return parallelThreshold;
+	}
 	
 	public void fireSOIChange(SOIChange e) {
 		for (SOIChangeListener s : listeners) {
@@ -116,124 +190,324 @@ public class SolarSystem extends Thread {
 		public void soiChange(SOIChange e);
 	}
 
-	private void updateEpoch() {
-		double delta = getDeltaTime() / 1000.0;
-		delta *= sim.simSpeed;
-		epochTAI += delta;
+	public void fireSimEvent(SimEvent e) {
+		for (SimEventListener l : eventListeners) {
+			l.simEvent(e);
+		}
+	}
+
+	public void addNewSimEventListener(SimEventListener l) {
+		eventListeners.add(l);
+	}
+
+	/**
+	 * Told about every event as it is executed going forward in time
+	 */
+	public interface SimEventListener {
+		public void simEvent(SimEvent e);
+	}
+
+	/**
+	 * @return the epoch of the next event to be executed, or infinity if
+	 *         there are none left
+	 */
+	public double getNextEventEpoch() {
+		SimEvent next = timeline.peekNext();
+		return next == null ? Double.POSITIVE_INFINITY : next.getEpoch();
+	}
+
+	/**
+	 * Fit the ephemeris of every body over the window around the start of
+	 * the simulation and the current epoch
+	 */
+	private void fitEphemerides() {
+		double start = Math.min(simStartTimeTAI, epochTAI) - ephemerisWindow;
+		double end = Math.max(simStartTimeTAI, epochTAI) + ephemerisWindow;
+		for (SimObject o : objects) {
+			if (o instanceof Body) {
+				((Body) o).fitEphemeris(start, end);
+			}
+		}
+	}
+
+	/**
+	 * @param years
+	 *            how far either side of the simulation to fit the bodies'
+	 *            ephemerides. Must be set before the simulation starts
+	 */
+	public void setEphemerisWindow(double years) {
+		ephemerisWindow = years * 365.25 * 86400.0;
 	}
 
+	/**
+	 * Resolve every ship's maneuvers and SOI changes ahead of time. Ships
+	 * don't affect each other unless one targets another, so each group of
+	 * dependent ships is resolved on its own thread. Bodies are left where
+	 * they are and read as a shared ephemeris at each ship's epoch. The
+	 * resolved events are merged into the timeline behind the cursor.
+	 */
 	private void bufferEvents() {
-		ArrayList<SimEvent> deadEvents = new ArrayList<SimEvent>();
+		ArrayList<BufferTask> tasks = new ArrayList<BufferTask>();
+		for (ArrayList<Ship> group : groupShips()) {
+			tasks.add(new BufferTask(group));
+		}
+		ForkJoinTask.invokeAll(tasks);
 
-		// Create list of ships
-		ArrayList<Ship> ships = new ArrayList<Ship>();
+		timeline.clear();
+		for (BufferTask task : tasks) {
+			timeline.addAll(task.join().getEvents());
+		}
+		timeline.seekToEnd();
+	}
+
+	/**
+	 * Split the ships into groups which can be resolved independently. Ships
+	 * share a group if a maneuver of one targets the other.
+	 */
+	private ArrayList<ArrayList<Ship>> groupShips() {
+		HashMap<Ship, Ship> leaders = new LinkedHashMap<Ship, Ship>();
 		for (SimObject o : objects) {
 			if (o instanceof Ship) {
-				Ship s = (Ship) o;
-				ships.add(s);
+				leaders.put((Ship) o, (Ship) o);
+			}
+		}
+		for (Ship s : leaders.keySet()) {
+			for (Maneuver m : s.getManeuvers()) {
+				SimObject target = m.getTarget();
+				if (target instanceof Ship && leaders.containsKey(target)) {
+					leaders.put(findLeader(leaders, s),
+							findLeader(leaders, (Ship) target));
+				}
 			}
 		}
 
-		// Create list of burns and initialize first maneuvers
-		events = new ArrayList<SimEvent>();
-		for (Ship s : ships) {
-			if (!s.getManeuvers().isEmpty()) {
-				Maneuver m = s.getManeuvers().get(0);
-				m.burns.clear();
-				m.init();
-				events.addAll(m.burns);
+		HashMap<Ship, ArrayList<Ship>> groups;
+		groups = new LinkedHashMap<Ship, ArrayList<Ship>>();
+		for (Ship s : leaders.keySet()) {
+			Ship leader = findLeader(leaders, s);
+			ArrayList<Ship> group = groups.get(leader);
+			if (group == null) {
+				group = new ArrayList<Ship>();
+				groups.put(leader, group);
 			}
+			group.add(s);
 		}
-		eComp = new EventComparator();
-		events.sort(eComp);
+		return new ArrayList<ArrayList<Ship>>(groups.values());
+	}
 
-		// Cycle through events
-		while (!events.isEmpty()) {
-			SimEvent e = events.get(0);
-			
-			for (SimObject o : objects) {
-				o.updateTo(e.getEpoch());
-			}
-			
-			// shitty logging
-//			if (e instanceof Burn) {
-//				Burn b = (Burn) e;
-//				String name = b.maneuver.getClass().getSimpleName();
-//				System.out.println(name);
-//			} else {
-//				SOIChange c = (SOIChange) e;
-//				System.out
-//						.println(c.getShip().name + " escaping to "
-//								+ c.getParent().name + " from "
-//								+ c.getShip().parent.name);
-//			}
+	private Ship findLeader(HashMap<Ship, Ship> leaders, Ship s) {
+		while (leaders.get(s) != s) {
+			s = leaders.get(s);
+		}
+		return s;
+	}
+
+	/**
+	 * Resolves the events of one group of ships on its own timeline. Only
+	 * the ship of each event is propagated.
+	 */
+	private class BufferTask extends RecursiveTask<EventTimeline> {
+		private static final long serialVersionUID = 1L;
+
+		private final ArrayList<Ship> ships;
+
+		public BufferTask(ArrayList<Ship> ships) {
+			this.ships = ships;
+		}
 
+		@Override
+		protected EventTimeline compute() {
+			EventTimeline events = new EventTimeline();
+
+			// Initialize first maneuvers
+			for (Ship s : ships) {
+				if (!s.getManeuvers().isEmpty()) {
+					Maneuver m = s.getManeuvers().get(0);
+					m.reInit();
+					events.addAll(m.burns);
+				}
+			}
+
+			resolveEvents(events, false);
+			return events;
+		}
+	}
+
+	/**
+	 * Execute every event on the timeline in order. After each one the ship's
+	 * pending SOI changes and collision are found again, and after the last
+	 * burn of a maneuver the ship's next maneuver is initialized. Nothing
+	 * after a collision is kept. Only the ship of each
+	 * event is propagated, so timelines of independent ships can be resolved
+	 * on different threads.
+	 * 
+	 * @param moveTargets
+	 *            true if the ships targeted by maneuvers aren't on the
+	 *            timeline, so they have to be moved through their own events
+	 *            before each maneuver is initialized
+	 */
+	private void resolveEvents(EventTimeline events, boolean moveTargets) {
+		SimEvent e;
+		while ((e = events.peekNext()) != null) {
+			Ship s = e.getShip();
+			s.propagateTo(e.getEpoch());
 			e.execute();
-			events.remove(e);
-			deadEvents.add(e);
-			
-			checkForSOIChanges(e.getShip());
+			events.advance();
+
+			/*
+			 * The ship's orbit changed, so its pending SOI changes and
+			 * collision are stale. Nothing happens to it after a collision
+			 */
+			for (SimEvent pending : events.getEvents(s)) {
+				if (!pending.isFinished()
+						&& (e instanceof Collision
+								|| pending instanceof SOIChange
+								|| pending instanceof Collision)) {
+					events.remove(pending);
+				}
+			}
+			if (e instanceof Collision) {
+				continue;
+			}
+			checkForSOIChanges(s, events);
+			checkForCollision(s, events);
 
 			if (e instanceof Burn) {
 				Burn b = (Burn) e;
 
 				// Handle maneuver initialization
 				if (b.isLast()) {
-					ArrayList<Maneuver> maneuvers = b.maneuver.getShip()
-							.getManeuvers();
+					ArrayList<Maneuver> maneuvers = s.getManeuvers();
 					int nextIndex = maneuvers.indexOf(b.maneuver) + 1;
 					if (nextIndex < maneuvers.size()) {
 						Maneuver nextM = maneuvers.get(nextIndex);
-						nextM.init();
+						if (moveTargets) {
+							moveTargetOf(nextM);
+						}
+						nextM.reInit();
 						events.addAll(nextM.burns);
-						events.sort(eComp);
 					}
 				}
 			}
 		}
-
-		// Resurrect the events for use in the live simulation
-		events = deadEvents;
 	}
 
 	/**
 	 * Must be called after each burn or SOI change
+	 * 
+	 * @param events
+	 *            the timeline to add the SOI changes to
 	 */
-	private void checkForSOIChanges(Ship s) {
+	private void checkForSOIChanges(Ship s, EventTimeline events) {
 		// Check sibling case
-		for (SimObject o : s.parent.getChildren()) {
-			if (o instanceof Body) {
-				Body body = (Body) o;
-				double timeToIntercept = s.timeToIntercept(body);
-				if (timeToIntercept > 0) {
-					events.add(new SOIChange(s, body, s.lastUpdatedTime
-							+ timeToIntercept));
-					events.sort(eComp);
-				}
+		for (Body body : s.parent.getSatellites()) {
+			double timeToIntercept = s.timeToIntercept(body);
+			if (timeToIntercept > 0) {
+				events.add(new SOIChange(s, body, s.getLastUpdatedTime()
+						+ timeToIntercept));
 			}
 		}
 		// Check parent case
 		if (s.isEscapingSOI()) {
-			double timeToEscape = Astrophysics.timeToEscape(s.pos, s.vel,
-					s.parent.mu, s.parent.soiRadius);
-			events.add(new SOIChange(s, s.parent.parent, s.lastUpdatedTime
-					+ timeToEscape));
-			events.sort(eComp);
+			double timeToEscape = Astrophysics.timeToEscape(s.getPos(),
+					s.getVel(), s.parent.mu, s.parent.soiRadius);
+			events.add(new SOIChange(s, s.parent.parent, s
+					.getLastUpdatedTime() + timeToEscape));
+		}
+	}
+
+	/**
+	 * Must be called after each burn or SOI change. The periapsis is compared
+	 * with the parent's radius first, so unchanged orbits are never checked
+	 * and orbits clear of the surface cost one comparison.
+	 * 
+	 * @param events
+	 *            the timeline to add the collision to
+	 */
+	private void checkForCollision(Ship s, EventTimeline events) {
+		double timeToImpact = Astrophysics.timeToImpact(s.getPos(),
+				s.getVel(), s.parent.mu, s.parent.radius);
+		if (!Double.isInfinite(timeToImpact)) {
+			events.add(new Collision(s, s.parent, s.getLastUpdatedTime()
+					+ timeToImpact));
 		}
 	}
 
+	/**
+	 * Run the live simulation. Each tick fulfills the queued requests, moves
+	 * everything to the epoch given by the clock and parks until the next
+	 * tick is due. While paused nothing is updated and the thread stays
+	 * parked until it's woken, but the changes made by requests are still
+	 * published.
+	 */
 	private void displayLiveSimulation() {
+		clock.reset(epochTAI);
+		updateTo(epochTAI);
+
 		while (true) {
-			for (ThreadRequest r : requestQueue) {
+			ThreadRequest r;
+			while ((r = requestQueue.poll()) != null) {
 				r.fulfill();
+				unpublished = true;
+			}
+
+			double speed = sim.simSpeed;
+			double epoch = clock.tick(speed);
+			if (epoch != epochTAI) {
+				epochTAI = epoch;
+				updateTo(epochTAI);
+			}
+			if (unpublished) {
+				publish(epochTAI);
+			}
+
+			long wait = PAUSED_WAIT;
+			if (speed != 0) {
+				wait = clock.getNextTickTime() - System.nanoTime();
 			}
-			requestQueue.clear();
+			if (wait > 0) {
+				LockSupport.parkNanos(this, wait);
+			}
+		}
+	}
+
+	/**
+	 * Wake the solar system thread if it's parked between ticks, so requests
+	 * and changes of speed are picked up straight away
+	 */
+	public void wake() {
+		if (thread != null) {
+			LockSupport.unpark(thread);
+		}
+	}
 
-			updateEpoch();
-			updateTo(epochTAI);
+	private void queueRequest(ThreadRequest r) {
+		requestQueue.add(r);
+		wake();
+	}
+
+	/**
+	 * Use a different clock for the live simulation. The clock carries on
+	 * from the current epoch
+	 */
+	public void setClock(final SimClock clock) {
+		if (thread == null || Thread.currentThread().equals(thread)) {
+			clock.reset(epochTAI);
+			this.clock = clock;
+		} else {
+			queueRequest(new ThreadRequest() {
+				@Override
+				public void fulfill() {
+					setClock(clock);
+				}
+			});
 		}
 	}
 
+	public SimClock getClock() {
+		return clock;
+	}
+
 	/**
 	 * Add a new even to the queue during the simulation. Make sure to call
 	 * setShip() on the maneuver first.
@@ -252,22 +526,10 @@ public class SolarSystem extends Thread {
 				lastEpoch = lastManeuver.getEndEpoch();
 				lastEpoch = lastEpoch > epochTAI ? lastEpoch : epochTAI;
 			}
-			System.out.println("updating to lastEpoch");
-			updateTo(lastEpoch);
-			System.out.println("init new maneuver");
-			m.init();
 			s.getManeuvers().add(m);
-			events.addAll(m.burns);
-			for (Burn b : m.burns) {
-				System.out.println("updating to new burn");
-				updateTo(b.getEpoch());
-				this.checkForSOIChanges(s);
-			}
-			System.out.println("updating to epochTAI");
-			updateTo(epochTAI);
+			replan(s, lastEpoch, new ArrayList<SimEvent>(), m);
 		} else {
-			// TODO ConcurrentModification on the requestQueue :(
-			requestQueue.add(new ThreadRequest() {
+			queueRequest(new ThreadRequest() {
 				@Override
 				public void fulfill() {
 					addManeuver(m);
@@ -289,18 +551,11 @@ public class SolarSystem extends Thread {
 		if (Thread.currentThread().equals(thread)) {
 			Ship s = m.getShip();
 			List<Maneuver> master = s.getManeuvers();
-			List<Maneuver> before = new ArrayList<Maneuver>();
-			for (int i = 0; i < index; i++) {
-				before.add(master.get(i));
-			}
-			List<Maneuver> after = new ArrayList<Maneuver>();
-			for (int i = index; i < s.getManeuvers().size(); i++) {
-				after.add(master.get(i));
+			ArrayList<SimEvent> stale = new ArrayList<SimEvent>();
+			for (int i = index; i < master.size(); i++) {
+				stale.addAll(master.get(i).burns);
 			}
-			master.clear();
-			master.addAll(before);
-			master.add(m);
-			master.addAll(after);
+			master.add(index, m);
 
 			double preEpoch = 0;
 			if (index > 0) {
@@ -309,48 +564,9 @@ public class SolarSystem extends Thread {
 				preEpoch = simStartTimeTAI;
 			}
 
-			// System.out.println("updating to preEpoch");
-			updateTo(preEpoch);
-
-			// Remove stale SOIChanges
-			for (SimEvent e : events) {
-				if (e instanceof SOIChange && e.getShip().equals(s)
-						&& e.getEpoch() > preEpoch) {
-					events.remove(e);
-				}
-			}
-
-			m.init();
-			events.addAll(m.burns);
-
-			// Remove stale burns
-			for (Maneuver a : after) {
-				events.removeAll(a.burns);
-			}
-
-			// Add a sketchy offset so the events will still occur in sequence
-			double sketchOffset = 1E-5;
-
-			// System.out.println("updating to new event");
-			updateTo(m.getEndEpoch() + sketchOffset);
-
-			// Re-initialize stale burns
-			for (Maneuver a : after) {
-				// System.out.println("re-init " + a.getIndex());
-				a.reInit();
-				events.addAll(a.burns);
-				events.sort(eComp);
-				for (Burn b : a.burns) {
-					// System.out.println("updating to stale burn");
-					updateTo(b.getEpoch() + sketchOffset);
-					checkForSOIChanges(s);
-				}
-			}
-
-			// System.out.println("updating to current");
-			updateTo(epochTAI);
+			replan(s, preEpoch, stale, m);
 		} else {
-			requestQueue.add(new ThreadRequest() {
+			queueRequest(new ThreadRequest() {
 				@Override
 				public void fulfill() {
 					insertManeuver(m, index);
@@ -366,73 +582,127 @@ public class SolarSystem extends Thread {
 
 	public void removeManeuver(final Ship s, final int index) {
 		if (Thread.currentThread().equals(thread)) {
-			Maneuver m = s.getManeuvers().get(index);
-
-			List<Maneuver> after = new ArrayList<Maneuver>();
-			for (int i = index + 1; i < s.getManeuvers().size(); i++) {
-				after.add(s.getManeuvers().get(i));
+			List<Maneuver> master = s.getManeuvers();
+			ArrayList<SimEvent> stale = new ArrayList<SimEvent>();
+			for (int i = index; i < master.size(); i++) {
+				stale.addAll(master.get(i).burns);
 			}
-			s.getManeuvers().remove(m);
+			master.remove(index);
 
 			double preEpoch = 0;
 			if (index > 0) {
-				preEpoch = s.getManeuvers().get(index - 1).getEndEpoch();
+				preEpoch = master.get(index - 1).getEndEpoch();
 			} else {
 				preEpoch = simStartTimeTAI;
 			}
 
-			// System.out.println("updating to preEpoch");
-			updateTo(preEpoch);
+			Maneuver next = index < master.size() ? master.get(index) : null;
+			replan(s, preEpoch, stale, next);
+		} else {
+			queueRequest(new ThreadRequest() {
+				@Override
+				public void fulfill() {
+					removeManeuver(s, index);
+				}
+			});
+		}
+	}
 
-			// Remove removed maneuver
-			events.removeAll(m.burns);
+	/**
+	 * Plan one ship again from preEpoch onwards. The ship is taken back to
+	 * preEpoch through its own events, the stale events are dropped, the
+	 * maneuvers from first onwards are initialized again, and the ship is
+	 * brought back to the current epoch. Bodies are read as an ephemeris.
+	 * Ships the maneuvers target are moved through their own events to the
+	 * epoch each maneuver is initialized at, so their burns are seen, and
+	 * are brought back afterwards. Every other object and event is left
+	 * alone.
+	 * 
+	 * @param stale
+	 *            events to drop. SOI changes and collisions after preEpoch
+	 *            are dropped too
+	 * @param first
+	 *            the first maneuver to initialize, or null
+	 */
+	private void replan(Ship s, double preEpoch, List<SimEvent> stale,
+			Maneuver first) {
+		moveShipTo(s, preEpoch);
+
+		// A ship which crashed before preEpoch has nothing left to plan
+		if (s.isDestroyed()) {
+			moveShipTo(s, epochTAI);
+			return;
+		}
 
-			// Remove stale SOIChanges
-			for (SimEvent e : events) {
-				if (e instanceof SOIChange && e.getShip().equals(s)
-						&& e.getEpoch() > preEpoch) {
-					events.remove(e);
+		HashSet<SimEvent> staleSet = new HashSet<SimEvent>(stale);
+		ArrayList<SimEvent> events = timeline.getEvents(s);
+		for (int i = events.size() - 1; i >= 0; i--) {
+			SimEvent e = events.get(i);
+			if (staleSet.contains(e)
+					|| ((e instanceof SOIChange || e instanceof Collision) && e
+							.getEpoch() > preEpoch)) {
+				if (e.isFinished()) {
+					s.propagateTo(e.getEpoch());
+					e.reverse();
 				}
+				timeline.remove(e);
 			}
+		}
+		s.propagateTo(preEpoch);
+
+		EventTimeline replanned = new EventTimeline();
+		checkForSOIChanges(s, replanned);
+		checkForCollision(s, replanned);
+		if (first != null) {
+			moveTargetOf(first);
+			first.reInit();
+			replanned.addAll(first.burns);
+		}
+		resolveEvents(replanned, true);
 
-			// Remove stale burns
-			for (Maneuver a : after) {
-				events.removeAll(a.burns);
-			}
-
-			// Add a sketchy offset so the events will still occur in sequence
-			double sketchOffset = 1E-5;
-
-			// Re-initialize stale burns
-			for (Maneuver a : after) {
-				// System.out.println("re-init " + a.getIndex());
-				a.reInit();
-				events.addAll(a.burns);
-				events.sort(eComp);
-				for (Burn b : a.burns) {
-					// System.out.println("updating to stale burn");
-					updateTo(b.getEpoch() + sketchOffset);
-					checkForSOIChanges(s);
-				}
+		timeline.addAll(replanned.getEvents());
+		moveShipTo(s, epochTAI);
+		for (Maneuver m : s.getManeuvers()) {
+			if (m.getTarget() instanceof Ship) {
+				moveShipTo((Ship) m.getTarget(), epochTAI);
 			}
+		}
+		timeline.seek(epochTAI);
+	}
 
-			// System.out.println("updating to current");
-			updateTo(epochTAI);
-		} else {
-			requestQueue.add(new ThreadRequest() {
-				@Override
-				public void fulfill() {
-					removeManeuver(s, index);
-				}
-			});
+	/**
+	 * Bring the ship a maneuver is planned against to the maneuver's ship's
+	 * epoch through the target's own events, so the target's burns in
+	 * between are seen when the maneuver is initialized
+	 */
+	private void moveTargetOf(Maneuver m) {
+		SimObject target = m.getTarget();
+		if (target instanceof Ship && target != m.getShip()) {
+			moveShipTo((Ship) target, m.getShip().getLastUpdatedTime());
 		}
 	}
 
-	private double getDeltaTime() {
-		long time = System.currentTimeMillis();
-		long delta = time - lastTime;
-		lastTime = time;
-		return delta;
+	/**
+	 * Move one ship to the epoch through its own events. The cursor and every
+	 * other object are left where they are. Collisions on the way destroy or
+	 * bring back the ship just as they do going through the timeline
+	 */
+	private void moveShipTo(Ship s, double epoch) {
+		ArrayList<SimEvent> events = timeline.getEvents(s);
+		for (SimEvent e : events) {
+			if (e.getEpoch() <= epoch && !e.isFinished()) {
+				s.propagateTo(e.getEpoch());
+				e.execute();
+			}
+		}
+		for (int i = events.size() - 1; i >= 0; i--) {
+			SimEvent e = events.get(i);
+			if (e.getEpoch() > epoch && e.isFinished()) {
+				s.propagateTo(e.getEpoch());
+				e.reverse();
+			}
+		}
+		s.propagateTo(epoch);
 	}
 
 	private class SolarSystemRenderer implements Renderer {
@@ -443,34 +713,53 @@ public class SolarSystem extends Thread {
 			}
 		}
 
-		@Override
-		public void update() {
-			for (SimObject o : objects) {
-				o.render(RenderDetail.MAX);
-			}
+		/**
+		 * The snapshot of each store for the frame being drawn
+		 */
+		private final HashMap<StateStore, StateStore.Snapshot> frame;
+
+		public SolarSystemRenderer() {
+			frame = new HashMap<StateStore, StateStore.Snapshot>();
 		}
 
 		@Override
-		public void dispose() {
+		public void update(Camera camera, SimObject focus) {
+			frame.clear();
+
+			// The camera stays where it was until the focus is published
+			Vector focusPos = focus.getPublishedAbsolutePos(getSnapshot(focus));
+			if (focusPos != null) {
+				camera.lookAt(focusPos);
+			}
+			camera.apply();
 			for (SimObject o : objects) {
-				o.dispose();
+				StateStore.Snapshot snapshot = getSnapshot(o);
+				if (snapshot == null || !snapshot.isFrozen(o)) {
+					o.render(RenderDetail.MAX, snapshot);
+				}
 			}
 		}
-	}
 
-	private class EventComparator implements Comparator<SimEvent> {
-		@Override
-		public int compare(SimEvent burn1, SimEvent burn2) {
-			return burn1.getEpoch() < burn2.getEpoch() ? -1
-					: burn1.getEpoch() == burn2.getEpoch() ? 0 : 1;
+		/**
+		 * @return the snapshot of the object's store for this frame. Each
+		 *         store is only read once a frame, so a snapshot published
+		 *         part way through the frame waits for the next one
+		 */
+		private StateStore.Snapshot getSnapshot(SimObject o) {
+			StateStore store = o.getStore();
+			StateStore.Snapshot snapshot = frame.get(store);
+			if (snapshot == null && !frame.containsKey(store)) {
+				snapshot = store.getSnapshot();
+				frame.put(store, snapshot);
+			}
+			return snapshot;
 		}
-	}
 
-	private class ReverseEventComparator implements Comparator<SimEvent> {
 		@Override
-		public int compare(SimEvent burn1, SimEvent burn2) {
-			return burn1.getEpoch() < burn2.getEpoch() ? 1
-					: burn1.getEpoch() == burn2.getEpoch() ? 0 : -1;
+		public void dispose() {
+			for (SimObject o : objects) {
+				o.dispose();
+			}
 		}
 	}
 
@@ -485,8 +774,72 @@ public class SolarSystem extends Thread {
 	 * @param epoch
 	 *            The epoch in TAI time
 	 */
-	public void setEpoch(double epoch) {
-		this.epochTAI = epoch;
+	public void setEpoch(final double epoch) {
+		if (thread == null || Thread.currentThread().equals(thread)) {
+			this.epochTAI = epoch;
+			clock.reset(epoch);
+			selectElements(epoch);
+		} else {
+			queueRequest(new ThreadRequest() {
+				@Override
+				public void fulfill() {
+					setEpoch(epoch);
+				}
+			});
+		}
+	}
+
+	/**
+	 * Switch ships made from TLEs to the element sets nearest to the epoch,
+	 * without reloading anything. Ships with maneuvers keep the elements they
+	 * were planned from. The events of a switched ship are found again, unless
+	 * the simulation hasn't started and they haven't been found yet. Called on
+	 * every update, so the history is only searched for ships whose epoch has
+	 * crossed halfway to another set
+	 */
+	private void selectElements(double epoch) {
+		if (!Simulation.REAL_TIME) {
+			return;
+		}
+		boolean switched = false;
+		for (SimObject o : objects) {
+			if (!(o instanceof Ship) || ((Ship) o).isNearestTLE(epoch)) {
+				continue;
+			}
+			Ship s = (Ship) o;
+			if (!s.getManeuvers().isEmpty() || s.isDestroyed()) {
+				continue;
+			}
+			TLE nearest = s.getNearestTLE(epoch);
+			if (nearest == null || nearest == s.getTLE()) {
+				continue;
+			}
+
+			// Undo the SOI changes found from the old elements
+			ArrayList<SimEvent> events = timeline.getEvents(s);
+			for (int i = events.size() - 1; i >= 0; i--) {
+				SimEvent e = events.get(i);
+				if (e.isFinished()) {
+					s.propagateTo(e.getEpoch());
+					e.reverse();
+				}
+				timeline.remove(e);
+			}
+
+			s.setTLE(nearest);
+			if (thread != null) {
+				EventTimeline found = new EventTimeline();
+				checkForSOIChanges(s, found);
+				checkForCollision(s, found);
+				resolveEvents(found, false);
+				timeline.addAll(found.getEvents());
+				moveShipTo(s, epoch);
+			}
+			switched = true;
+		}
+		if (switched && thread != null) {
+			timeline.seek(epoch);
+		}
 	}
 
 	/**
@@ -506,15 +859,33 @@ public class SolarSystem extends Thread {
 
 	public void setObjects(ArrayList<SimObject> objects) {
 		this.objects = objects;
+		stores.clear();
+		for (SimObject o : objects) {
+			addStore(o);
+		}
 	}
 
 	public void addObject(SimObject object) {
 		objects.add(object);
+		addStore(object);
 	}
 
 	public void addObjects(ArrayList<SimObject> objects) {
 		if (objects != null) {
 			this.objects.addAll(objects);
+			for (SimObject o : objects) {
+				addStore(o);
+			}
+		}
+	}
+
+	/**
+	 * Keep track of the object's state store so it gets propagated
+	 */
+	private void addStore(SimObject object) {
+		StateStore store = object.getStore();
+		if (!stores.contains(store)) {
+			stores.add(store);
 		}
 	}
 
@@ -541,8 +912,12 @@ public class SolarSystem extends Thread {
 		objects.remove(object);
 		if (object instanceof Body) {
 			objects.removeAll(((Body) object).getChildren());
+			for (SimObject child : ((Body) object).getChildren()) {
+				child.releaseState();
+			}
 		}
 		object.parent.getChildren().remove(object);
+		object.releaseState();
 	}
 
 	public ArrayList<SimObject> getObjects() {
@@ -572,4 +947,18 @@ public class SolarSystem extends Thread {
 			thread.start();
 		}
 	}
+
+	/**
+	 * Take over the calling thread instead of starting the live simulation,
+	 * for running without a window. Events are buffered and everything is
+	 * brought to the start of the simulation. The caller then moves the
+	 * simulation along with setEpoch() and updateTo()
+	 */
+	public void startHeadless() {
+		if (thread == null) {
+			simStartTimeTAI = System.currentTimeMillis() / 1000.0;
+			thread = Thread.currentThread();
+			prepare();
+		}
+	}
 }
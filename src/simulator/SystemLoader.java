@@ -7,6 +7,9 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 
 import simulator.astro.Orbit;
 import simulator.simObject.Body;
@@ -25,9 +28,23 @@ public class SystemLoader {
 	public ArrayList<SimObject> objects;
 	private TLELoader tleLoader;
 
+	/**
+	 * Ships made from TLEs, by NORAD id. A satellite in several categories is
+	 * only made once
+	 */
+	private HashMap<Integer, Ship> tleShips;
+
+	/**
+	 * Satellites whose ships were removed from the simulation, by NORAD id.
+	 * They're left out of categories asked for afterwards
+	 */
+	private HashSet<Integer> removed;
+
 	public SystemLoader() {
 		objects = new ArrayList<SimObject>();
 		tleLoader = new TLELoader();
+		tleShips = new HashMap<Integer, Ship>();
+		removed = new HashSet<Integer>();
 	}
 
 	/**
@@ -36,25 +53,56 @@ public class SystemLoader {
 	 * @param category
 	 *            - the category to load from. Category name found in
 	 *            TLELoader.java
-	 * @return
+	 * @return the ships in the category. Satellites which were already loaded
+	 *         from another category are the same ships as before, and
+	 *         removed ones are left out
 	 */
 	public ArrayList<SimObject> getShips(String category) {
 		ArrayList<TLE> tles = tleLoader.getCategory(category);
 		ArrayList<SimObject> ships = new ArrayList<SimObject>();
-		Body earth = (Body) getObject("Earth");
-		if (earth == null) {
-			if (objects.isEmpty()) {
-				earth = new Body();
-			} else {
-				earth = (Body) objects.get(0);
-			}
-		}
+		Body earth = getEarth();
 		for (TLE tle : tles) {
-			ships.add(new Ship(tle, earth));
+			if (!removed.contains(tle.id)) {
+				ships.add(getShip(tle, category, earth));
+			}
 		}
 		return ships;
 	}
 
+	/**
+	 * Forget a ship which has been removed from the simulation, for example
+	 * because an individual object replaced it. Its satellite isn't given out
+	 * again
+	 */
+	public void removeShip(Ship ship) {
+		TLE tle = ship.getTLE();
+		if (tle != null && tleShips.get(tle.id) == ship) {
+			tleShips.remove(tle.id);
+			removed.add(tle.id);
+		}
+	}
+
+	/**
+	 * Load Celestrak categories ahead of time, all at once
+	 * 
+	 * @param categories
+	 *            the categories which will be asked for
+	 */
+	public void loadCategories(List<String> categories) {
+		tleLoader.load(categories);
+	}
+
+	/**
+	 * Load an archive of past element sets. Ships switch to the set nearest
+	 * to the epoch when the epoch is set
+	 * 
+	 * @param filePath
+	 *            the archive, in two-line or three-line format
+	 */
+	public void loadHistory(String filePath) {
+		tleLoader.loadHistory(filePath);
+	}
+
 	/**
 	 * Get a single ship from the Celestrak database
 	 * 
@@ -63,10 +111,34 @@ public class SystemLoader {
 	 * @param name
 	 *            the name of the satellite. If there are duplicate names, the
 	 *            first match will be used
-	 * @return
+	 * @return the ship, or null if it wasn't found or was removed
 	 */
 	public SimObject getShip(String category, String name) {
 		TLE tle = tleLoader.getTLE(category, name);
+		if (tle == null || removed.contains(tle.id)) {
+			return null;
+		}
+		return getShip(tle, category, getEarth());
+	}
+
+	/**
+	 * Get the ship for a TLE, making it the first time the satellite is seen
+	 * 
+	 * @param category
+	 *            tagged on the ship
+	 */
+	private Ship getShip(TLE tle, String category, Body earth) {
+		Ship ship = tleShips.get(tle.id);
+		if (ship == null) {
+			ship = new Ship(tle, earth);
+			ship.setTLEHistory(tleLoader.getHistory(tle.id));
+			tleShips.put(tle.id, ship);
+		}
+		ship.addCategory(category);
+		return ship;
+	}
+
+	private Body getEarth() {
 		Body earth = (Body) getObject("Earth");
 		if (earth == null) {
 			if (objects.isEmpty()) {
@@ -75,8 +147,7 @@ public class SystemLoader {
 				earth = (Body) objects.get(0);
 			}
 		}
-		Ship ship = new Ship(tle, earth);
-		return ship;
+		return earth;
 	}
 
 	/**
@@ -220,8 +220,6 @@ public class Astrophysics {
 	 * Propagate the orbit. From page 101 of Fundamentals of Astrodynamics and
 	 * Applications
 	 * 
-	 * TODO check up on this method
-	 * 
 	 * @param r_0
 	 *            Initial (relative) position
 	 * @param v_0
@@ -234,12 +232,54 @@ public class Astrophysics {
 	 */
 	public static Vector[] kepler(Vector r_0, Vector v_0, double mu,
 			double deltaT) {
-		double v_0mag2 = v_0.mag2();
-		double r_0mag = r_0.magnitude();
+		double[] state = new double[6];
+		kepler(r_0.get(0), r_0.get(1), r_0.get(2), v_0.get(0), v_0.get(1),
+				v_0.get(2), mu, deltaT, state);
+		Vector rVec = new VectorND(state[0], state[1], state[2]);
+		Vector vVec = new VectorND(state[3], state[4], state[5]);
+		return new Vector[] { rVec, vVec };
+	}
+
+	/**
+	 * Allocation-free form of kepler() for the hot paths. The state is laid
+	 * out as position x, y, z followed by velocity x, y, z.
+	 * 
+	 * @param state
+	 *            Initial (relative) state
+	 * @param mu
+	 *            Parent's gravitational parameter
+	 * @param deltaT
+	 *            Time difference
+	 * @param out
+	 *            Buffer of at least 6 doubles for the future state. May be the
+	 *            same array as state
+	 */
+	public static void kepler(double[] state, double mu, double deltaT,
+			double[] out) {
+		kepler(state[0], state[1], state[2], state[3], state[4], state[5], mu,
+				deltaT, out);
+	}
+
+	/**
+	 * Allocation-free form of kepler(). The Stumpff functions c2 and c3 are
+	 * computed inline instead of through findC2C3().
+	 * 
+	 * Newton's method stops after 100 iterations without checking that it
+	 * converged. On nearly parabolic orbits one call over a long span can land
+	 * far from the true state, so EscapeCheck carries states on in steps.
+	 * 
+	 * @param out
+	 *            Buffer of at least 6 doubles for the future state: position
+	 *            x, y, z followed by velocity x, y, z
+	 */
+	public static void kepler(double rx, double ry, double rz, double vx,
+			double vy, double vz, double mu, double deltaT, double[] out) {
+		double v_0mag2 = vx * vx + vy * vy + vz * vz;
+		double r_0mag = Math.sqrt(rx * rx + ry * ry + rz * rz);
 
 		double alpha = (-v_0mag2 / mu) + (2.0 / r_0mag);
 
-		double rDotV = Vector.dotProduct(r_0, v_0);
+		double rDotV = rx * vx + ry * vy + rz * vz;
 		double rootGrav = Math.sqrt(mu);
 
 		double x_0;
@@ -249,9 +289,10 @@ public class Astrophysics {
 			x_0 = rootGrav * deltaT * alpha;
 		} else if (Math.abs(alpha) < parabThresh) {
 			// Parabola
-			Vector h = new VectorND(0, 0, 0);
-			h = Vector.crossProduct(h, r_0, v_0);
-			double p = h.mag2() / mu;
+			double hx = ry * vz - rz * vy;
+			double hy = rz * vx - rx * vz;
+			double hz = rx * vy - ry * vx;
+			double p = (hx * hx + hy * hy + hz * hz) / mu;
 			double s = Math
 					.atan2(1.0, 3 * Math.sqrt(mu / (p * p * p)) * deltaT) / 2.0;
 			double w = Math.atan(Math.pow(Math.tan(s), 1.0 / 3.0));
@@ -277,15 +318,26 @@ public class Astrophysics {
 		while (dif > 1E-6 && attempts < 100) {
 			psi = x_n * x_n * alpha;
 
-			double[] c2c3 = findC2C3(psi);
-			c2 = c2c3[0];
-			c3 = c2c3[1];
+			// Stumpff functions, same as findC2C3()
+			if (psi > 1E-6) {
+				double rootPsi = Math.sqrt(psi);
+				c2 = (1.0 - Math.cos(rootPsi)) / psi;
+				c3 = (rootPsi - Math.sin(rootPsi)) / (rootPsi * psi);
+			} else if (psi < -1E-6) {
+				double rootNegPsi = Math.sqrt(-psi);
+				c2 = (1.0 - Math.cosh(rootNegPsi)) / psi;
+				c3 = (Math.sinh(rootNegPsi) - rootNegPsi)
+						/ (rootNegPsi * -psi);
+			} else {
+				c2 = .5;
+				c3 = 1.0 / 6.0;
+			}
 
 			r = x_n * x_n * c2 + (rDotV / rootGrav) * x_n * (1 - psi * c3)
 					+ r_0mag * (1 - psi * c2);
 			x_n1 = x_n;
 			x_n = x_n
-					+ (Math.sqrt(mu) * deltaT - x_n * x_n * x_n * c3
+					+ (rootGrav * deltaT - x_n * x_n * x_n * c3
 							- (rDotV / rootGrav) * x_n * x_n * c2 - r_0mag
 							* x_n * (1.0 - psi * c3)) / r;
 			dif = Math.abs(x_n - x_n1);
@@ -297,12 +349,12 @@ public class Astrophysics {
 		double gDot = 1.0 - ((x_n * x_n) / r) * c2;
 		double fDot = (rootGrav / (r * r_0mag)) * x_n * (psi * c3 - 1.0);
 
-		Vector rVec = ((VectorND) r_0).clone().multiply(f)
-				.add(((VectorND) v_0).clone().multiply(g));
-		Vector vVec = ((VectorND) r_0).clone().multiply(fDot)
-				.add(((VectorND) v_0).clone().multiply(gDot));
-
-		return new Vector[] { rVec, vVec };
+		out[0] = f * rx + g * vx;
+		out[1] = f * ry + g * vy;
+		out[2] = f * rz + g * vz;
+		out[3] = fDot * rx + gDot * vx;
+		out[4] = fDot * ry + gDot * vy;
+		out[5] = fDot * rz + gDot * vz;
 	}
 
 	/**
@@ -322,7 +374,7 @@ public class Astrophysics {
 			double rootNegPsi = Math.sqrt(-psi);
 			c2 = (1.0 - Math.cosh(rootNegPsi)) / psi;
 			c3 = (Math.sinh(rootNegPsi) - rootNegPsi)
-					/ Math.sqrt(rootNegPsi * rootNegPsi * rootNegPsi);
+					/ Math.sqrt(-psi * -psi * -psi);
 		} else {
 			c2 = .5;
 			c3 = 1.0 / 6.0;
@@ -330,6 +382,23 @@ public class Astrophysics {
 		return new double[] { c2, c3 };
 	}
 
+	/**
+	 * Copy a position and velocity into a primitive state for the
+	 * allocation-free kepler()
+	 * 
+	 * @param out
+	 *            Buffer of at least 6 doubles: position x, y, z followed by
+	 *            velocity x, y, z
+	 */
+	public static void packState(Vector pos, Vector vel, double[] out) {
+		out[0] = pos.get(0);
+		out[1] = pos.get(1);
+		out[2] = pos.get(2);
+		out[3] = vel.get(0);
+		out[4] = vel.get(1);
+		out[5] = vel.get(2);
+	}
+
 	/**
 	 * "Less annoying" but probably slower way of propagating the orbit. From
 	 * page 89.
@@ -485,7 +554,6 @@ public class Astrophysics {
 	 * Calculate the time to the next time the body with pass through the
 	 * specified true anomaly
 	 * 
-	 * 
 	 * @param orb
 	 *            - the current orbit
 	 * @param mu
@@ -496,34 +564,74 @@ public class Astrophysics {
 	 */
 	public static double timeToAnomaly(Vector pos, Vector vel, Orbit orb,
 			double mu, double targetV) {
-		double initSum = orb.peri + orb.v;
-
-		/*
-		 * Perform binary search to find time to next node
-		 */
-		double period = 2.0 * Math.PI * Math.sqrt((orb.a * orb.a * orb.a) / mu);
-		double low = 0;
-		double high = period;
-		double mid = (low + high) / 2.0;
-		double tolerance = Math.toRadians(.001);
-		double anomDif = tolerance * 10.0;
-		int iterations = 0;
-		while (Math.abs(anomDif) > tolerance && iterations < 20) {
-			Vector[] futureState = Astrophysics.kepler(pos, vel, mu, mid);
-			Orbit futureOrb = Astrophysics.toOrbitalElements(futureState[0],
-					futureState[1], mu);
-			double sum = futureOrb.peri + futureOrb.v;
-			anomDif = futureOrb.v - targetV;
-			if (anomDif > 0 || sum < initSum) {
-				high = mid;
-			} else {
-				low = mid;
+		return timeToAnomaly(orb, mu, targetV);
+	}
+
+	/**
+	 * Closed-form time to the next time the body will pass through the
+	 * specified true anomaly. Converts both anomalies to mean anomaly through
+	 * the eccentric, parabolic or hyperbolic anomaly. Pages 85-89.
+	 * 
+	 * @param orb
+	 *            - the current orbit. Only a, p, e and v are used
+	 * @param mu
+	 *            - the gravitational constant for the parent body
+	 * @param targetV
+	 *            - target true anomaly, in radians. Any multiple of 2 pi
+	 * @return the time, in seconds, to that true anomaly. Infinity if the
+	 *         orbit is open and won't reach it
+	 */
+	public static double timeToAnomaly(Orbit orb, double mu, double targetV) {
+		double e = orb.e;
+		if (e < 1.0) {
+			double twoPi = 2.0 * Math.PI;
+			double n = Math.sqrt(mu / (orb.a * orb.a * orb.a));
+			double deltaM = (ellipticMeanAnomaly(e, targetV) - ellipticMeanAnomaly(
+					e, orb.v)) % twoPi;
+			if (deltaM < 0) {
+				deltaM += twoPi;
 			}
-			mid = (low + high) / 2.0;
-			iterations++;
+			return deltaM / n;
 		}
-		double timeToNode = mid;
-		return timeToNode;
+
+		// Open orbits only pass each anomaly once, between the asymptotes
+		double v0 = Math.IEEEremainder(orb.v, 2.0 * Math.PI);
+		double v1 = Math.IEEEremainder(targetV, 2.0 * Math.PI);
+		double deltaT;
+		if (e == 1.0) {
+			// Barker's equation
+			double d0 = Math.tan(v0 / 2.0);
+			double d1 = Math.tan(v1 / 2.0);
+			deltaT = 0.5 * Math.sqrt(orb.p * orb.p * orb.p / mu)
+					* ((d1 + d1 * d1 * d1 / 3.0) - (d0 + d0 * d0 * d0 / 3.0));
+		} else {
+			if (Math.abs(v1) >= Math.acos(-1.0 / e)) {
+				return Double.POSITIVE_INFINITY;
+			}
+			double n = Math.sqrt(mu / -(orb.a * orb.a * orb.a));
+			deltaT = (hyperbolicMeanAnomaly(e, v1) - hyperbolicMeanAnomaly(e,
+					v0)) / n;
+		}
+		return deltaT < 0 ? Double.POSITIVE_INFINITY : deltaT;
+	}
+
+	/**
+	 * @return the mean anomaly of an ellipse at the true anomaly
+	 */
+	private static double ellipticMeanAnomaly(double e, double v) {
+		double E = 2.0 * Math.atan2(Math.sqrt(1.0 - e) * Math.sin(v / 2.0),
+				Math.sqrt(1.0 + e) * Math.cos(v / 2.0));
+		return E - e * Math.sin(E);
+	}
+
+	/**
+	 * @return the mean anomaly of a hyperbola at the true anomaly, which
+	 *         must be between the asymptotes
+	 */
+	private static double hyperbolicMeanAnomaly(double e, double v) {
+		double x = Math.sqrt((e - 1.0) / (e + 1.0)) * Math.tan(v / 2.0);
+		double H = Math.log((1.0 + x) / (1.0 - x)); // same as 2 atanh(x)
+		return e * Math.sinh(H) - H;
 	}
 
 	/*------------------------------------------------------------------------------
@@ -781,9 +889,11 @@ public class Astrophysics {
 	public static Vector[] target(Vector r_int, Vector r_tgt, Vector v_int,
 			Vector v_tgt, double deltaT, double mu, boolean useLongWay) {
 		// Propagate target
-		Vector[] state = kepler(r_tgt, v_tgt, mu, deltaT);
-		Vector r_tgtB = state[0];
-		Vector v_tgtB = state[1];
+		double[] state = new double[6];
+		kepler(r_tgt.get(0), r_tgt.get(1), r_tgt.get(2), v_tgt.get(0),
+				v_tgt.get(1), v_tgt.get(2), mu, deltaT, state);
+		Vector r_tgtB = new VectorND(state[0], state[1], state[2]);
+		Vector v_tgtB = new VectorND(state[3], state[4], state[5]);
 
 		// Determine tranfer orbit
 		Vector[] trans = lambert(r_int, r_tgtB, useLongWay, true, deltaT, mu);
@@ -803,8 +913,8 @@ public class Astrophysics {
 
 	public static Vector[] target(SimObject inter, SimObject target,
 			double deltaT, boolean useLongWay) {
-		return target(inter.pos, target.pos, inter.vel, target.vel, deltaT,
-				inter.parent.mu, useLongWay);
+		return target(inter.getPos(), target.getPos(), inter.getVel(),
+				target.getVel(), deltaT, inter.parent.mu, useLongWay);
 	}
 
 	public static Vector[] target(Vector[] state_int, Vector[] state_tgt,
@@ -819,110 +929,120 @@ public class Astrophysics {
 	}
 
 	/**
-	 * TODO doesn't work through perigee
+	 * Closed-form time until the body next leaves the sphere of influence.
+	 * The true anomaly where r equals soiRadius comes from the conic
+	 * equation, and the time of flight to it from timeToAnomaly(). Works from
+	 * anywhere inside the sphere, before or after periapsis.
 	 * 
 	 * @param pos
+	 *            - relative position
 	 * @param vel
+	 *            - relative velocity
 	 * @param mu
+	 *            - gravitational parameter of parent body
 	 * @param soiRadius
+	 *            - radius of the parent's sphere of influence
 	 * @param reverse
-	 * @return
+	 *            - find the time the body entered the sphere of influence
+	 *            instead, as a negative time
+	 * @return the time in seconds. Infinite if the orbit stays inside the
+	 *         sphere of influence
 	 */
 	public static double timeToEscape(Vector pos, Vector vel, double mu,
 			double soiRadius, boolean reverse) {
 		Orbit orb = Astrophysics.toOrbitalElements(pos, vel, mu);
-		orb.v = Math.PI; // TODO not sure if this works for hyperbolas
-		double apoVel = Astrophysics.toRV(orb, mu, false)[1].magnitude();
-		// max time to escape
-		double high = (soiRadius / apoVel) * (reverse ? -1.0 : 1.0);
-		double low = 0;
-		double mid = (low + high) / 2.0;
-
-		double dif = soiRadius - pos.magnitude();
-		double tolerance = soiRadius / 1E9;
-		int iterations = 0;
-		while (Math.abs(dif) > tolerance && iterations < 100) {
-			Vector[] futureState = Astrophysics.kepler(pos, vel, mu, mid);
-			double r = futureState[0].magnitude();
-			// System.out.println("r: " + r);
-
-			dif = r - soiRadius;
-
-			if (r > soiRadius) {
-				high = mid;
-			} else {
-				low = mid;
-			}
-			mid = (low + high) / 2.0;
-
-			iterations++;
-
+		double vEscape = anomalyAtRadius(orb, soiRadius);
+		if (Double.isNaN(vEscape)) {
+			return reverse ? Double.NEGATIVE_INFINITY
+					: Double.POSITIVE_INFINITY;
 		}
-		// System.out.println();
-
-		return mid;
+		orb.v = trueAnomaly(pos, vel, mu, orb.p);
+		if (reverse) {
+			// Run the orbit backwards, which mirrors the true anomaly
+			orb.v = -orb.v;
+			return -timeToAnomaly(orb, mu, vEscape);
+		}
+		return timeToAnomaly(orb, mu, vEscape);
 	}
 
 	/**
-	 * Use a funky logarithmic search to brute force the time to escape. Don't
-	 * use if the orbit isn't hyperbolic. I'm not checking that again.
+	 * Closed-form time until the body next comes in through a radius, such
+	 * as the surface of its parent. The periapsis is checked first, so orbits
+	 * which stay above the radius cost one comparison. Otherwise the true
+	 * anomaly of the crossing comes from the conic equation, and the time of
+	 * flight to it from timeToAnomaly().
+	 * 
+	 * @param pos
+	 *            - relative position
+	 * @param vel
+	 *            - relative velocity
+	 * @param mu
+	 *            - gravitational parameter of parent body
+	 * @param radius
+	 *            - radius of the parent's surface
+	 * @return the time in seconds, zero if the body is already inside the
+	 *         radius and falling. Infinite if the orbit stays above the
+	 *         radius
 	 */
-	public static double shittyTimeToEscape(Vector pos, Vector vel, double mu,
-			double soiRadius) {
-		double t = 1.0;
-		double r = 0;
-		while (r < soiRadius) {
-			t *= 10.0;
-			r = kepler(pos, vel, mu, t)[0].magnitude();
+	public static double timeToImpact(Vector pos, Vector vel, double mu,
+			double radius) {
+		Orbit orb = Astrophysics.toOrbitalElements(pos, vel, mu);
+		if (orb.p / (1.0 + orb.e) >= radius) {
+			return Double.POSITIVE_INFINITY;
 		}
-		double min = t / 10.0;
-		double max = t;
-		int samples = 100;
-		for (int i = 0; i < samples; i++) {
-			t = min + max * i / (double) samples;
-			r = kepler(pos, vel, mu, t)[0].magnitude();
-			if (r > soiRadius) {
-				return t;
-			}
+		if (pos.magnitude() <= radius && Vector.dotProduct(pos, vel) <= 0) {
+			return 0;
+		}
+		double vImpact = anomalyAtRadius(orb, radius);
+		if (Double.isNaN(vImpact)) {
+			// The whole orbit is inside the radius
+			return 0;
 		}
-		return max;
+		orb.v = trueAnomaly(pos, vel, mu, orb.p);
+		return timeToAnomaly(orb, mu, -vImpact);
 	}
 
+	/**
+	 * The true anomaly from the conic equation, as e cos(v) = p / r - 1 and
+	 * e sin(v) = sqrt(p / mu) (r . v) / r. The anomaly from
+	 * toOrbitalElements() comes from an acos, which is NaN at or near an
+	 * apsis, where burns usually leave the ship
+	 * 
+	 * @param p
+	 *            - semi-latus rectum of the orbit
+	 * @return the true anomaly, from -pi to pi
+	 */
+	private static double trueAnomaly(Vector pos, Vector vel, double mu,
+			double p) {
+		return Math.atan2(Math.sqrt(p / mu) * Vector.dotProduct(pos, vel), p
+				- pos.magnitude());
+	}
+
+	/**
+	 * @return the true anomaly where the body leaves the sphere of
+	 *         influence, from 0 to pi. NaN if the orbit stays inside it
+	 */
 	public static double anomalyToEscape(Vector pos, Vector vel, double mu,
 			double soiRadius) {
-		Orbit orb = Astrophysics.toOrbitalElements(pos, vel, mu);
-		orb.v = Math.PI; // TODO not sure if this works for hyperbolas
-		double apoVel = Astrophysics.toRV(orb, mu, false)[1].magnitude();
-		// max time to escape
-		double high = (soiRadius / apoVel);
-		double low = 0;
-		double mid = (low + high) / 2.0;
-
-		Vector futurePos = new VectorND(0, 0, 0);
-		Vector futureVel = new VectorND(0, 0, 0);
-		double dif = soiRadius - pos.magnitude();
-		double tolerance = soiRadius / 1E9;
-		int iterations = 0;
-		while (Math.abs(dif) > tolerance && iterations < 100) {
-			Vector[] futureState = Astrophysics.kepler(pos, vel, mu, mid);
-			futurePos = futureState[0];
-			futureVel = futureState[1];
-
-			double r = futurePos.magnitude();
-			dif = r - soiRadius;
-
-			if (r > soiRadius) {
-				high = mid;
-			} else {
-				low = mid;
-			}
-			mid = (low + high) / 2.0;
+		return anomalyAtRadius(toOrbitalElements(pos, vel, mu), soiRadius);
+	}
 
-			iterations++;
+	/**
+	 * Solve the conic equation r = p / (1 + e cos(v)) for the true anomaly
+	 * 
+	 * @return the true anomaly where the orbit goes out through the radius,
+	 *         from 0 to pi. It comes in through the negative of it. NaN if
+	 *         the orbit doesn't reach the radius
+	 */
+	private static double anomalyAtRadius(Orbit orb, double radius) {
+		if (orb.e == 0) {
+			return Double.NaN;
 		}
-		Orbit futureOrb = toOrbitalElements(futurePos, futureVel, mu);
-
-		return futureOrb.v;
+		double cosV = (orb.p / radius - 1.0) / orb.e;
+		if (cosV < -1.0 || cosV > 1.0) {
+			return Double.NaN;
+		}
+		return Math.acos(cosV);
 	}
 
 }
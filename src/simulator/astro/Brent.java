@@ -0,0 +1,179 @@
+package simulator.astro;
+
+/**
+ * Brent's methods for finding roots and minima of a function of one
+ * variable. Both combine bisection or golden-section steps, which always
+ * converge, with interpolation, which converges quickly once close.
+ *
+ * @author David
+ *
+ */
+public class Brent {
+	private static final int MAX_ITERATIONS = 100;
+	private static final double EPSILON = Math.ulp(1.0);
+	private static final double GOLDEN = (3.0 - Math.sqrt(5.0)) / 2.0;
+
+	public interface Function {
+		public double value(double x);
+	}
+
+	/**
+	 * Find a root between a and b. f(a) and f(b) must have opposite signs.
+	 * From Numerical Recipes, section 9.3
+	 *
+	 * @param tolerance
+	 *            how close to the root to get
+	 * @return x where f(x) is zero
+	 */
+	public static double root(Function f, double a, double b, double tolerance) {
+		double fa = f.value(a);
+		double fb = f.value(b);
+		double c = b;
+		double fc = fb;
+		double d = 0;
+		double e = 0;
+		for (int i = 0; i < MAX_ITERATIONS; i++) {
+			if ((fb > 0 && fc > 0) || (fb < 0 && fc < 0)) {
+				c = a;
+				fc = fa;
+				d = b - a;
+				e = d;
+			}
+			if (Math.abs(fc) < Math.abs(fb)) {
+				a = b;
+				b = c;
+				c = a;
+				fa = fb;
+				fb = fc;
+				fc = fa;
+			}
+			double tol = 2.0 * EPSILON * Math.abs(b) + 0.5 * tolerance;
+			double m = 0.5 * (c - b);
+			if (Math.abs(m) <= tol || fb == 0) {
+				return b;
+			}
+			if (Math.abs(e) >= tol && Math.abs(fa) > Math.abs(fb)) {
+				// Inverse quadratic interpolation, or secant if only 2 points
+				double s = fb / fa;
+				double p, q;
+				if (a == c) {
+					p = 2.0 * m * s;
+					q = 1.0 - s;
+				} else {
+					q = fa / fc;
+					double r = fb / fc;
+					p = s * (2.0 * m * q * (q - r) - (b - a) * (r - 1.0));
+					q = (q - 1.0) * (r - 1.0) * (s - 1.0);
+				}
+				if (p > 0) {
+					q = -q;
+				}
+				p = Math.abs(p);
+				double min1 = 3.0 * m * q - Math.abs(tol * q);
+				double min2 = Math.abs(e * q);
+				if (2.0 * p < Math.min(min1, min2)) {
+					e = d;
+					d = p / q;
+				} else {
+					d = m;
+					e = d;
+				}
+			} else {
+				d = m;
+				e = d;
+			}
+			a = b;
+			fa = fb;
+			b += Math.abs(d) > tol ? d : Math.copySign(tol, m);
+			fb = f.value(b);
+		}
+		return b;
+	}
+
+	/**
+	 * Find a local minimum between a and b. From Numerical Recipes, section
+	 * 10.2
+	 *
+	 * @param tolerance
+	 *            how close to the minimum to get
+	 * @return x where f(x) is lowest
+	 */
+	public static double minimize(Function f, double a, double b,
+			double tolerance) {
+		double x = a + GOLDEN * (b - a);
+		double w = x;
+		double v = x;
+		double fx = f.value(x);
+		double fw = fx;
+		double fv = fx;
+		double d = 0;
+		double e = 0;
+		for (int i = 0; i < MAX_ITERATIONS; i++) {
+			double xm = 0.5 * (a + b);
+			double tol1 = Math.sqrt(EPSILON) * Math.abs(x) + tolerance / 3.0;
+			double tol2 = 2.0 * tol1;
+			if (Math.abs(x - xm) <= tol2 - 0.5 * (b - a)) {
+				return x;
+			}
+			boolean golden = true;
+			if (Math.abs(e) > tol1) {
+				// Fit a parabola through x, v and w
+				double r = (x - w) * (fx - fv);
+				double q = (x - v) * (fx - fw);
+				double p = (x - v) * q - (x - w) * r;
+				q = 2.0 * (q - r);
+				if (q > 0) {
+					p = -p;
+				}
+				q = Math.abs(q);
+				double eTemp = e;
+				if (Math.abs(p) < Math.abs(0.5 * q * eTemp) && p > q * (a - x)
+						&& p < q * (b - x)) {
+					e = d;
+					d = p / q;
+					double u = x + d;
+					if (u - a < tol2 || b - u < tol2) {
+						d = Math.copySign(tol1, xm - x);
+					}
+					golden = false;
+				}
+			}
+			if (golden) {
+				e = x >= xm ? a - x : b - x;
+				d = GOLDEN * e;
+			}
+			double u = Math.abs(d) >= tol1 ? x + d : x
+					+ Math.copySign(tol1, d);
+			double fu = f.value(u);
+			if (fu <= fx) {
+				if (u >= x) {
+					a = x;
+				} else {
+					b = x;
+				}
+				v = w;
+				fv = fw;
+				w = x;
+				fw = fx;
+				x = u;
+				fx = fu;
+			} else {
+				if (u < x) {
+					a = u;
+				} else {
+					b = u;
+				}
+				if (fu <= fw || w == x) {
+					v = w;
+					fv = fw;
+					w = u;
+					fw = fu;
+				} else if (fu <= fv || v == x || v == w) {
+					v = u;
+					fv = fu;
+				}
+			}
+		}
+		return x;
+	}
+}
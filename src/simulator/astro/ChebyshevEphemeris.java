@@ -0,0 +1,159 @@
+package simulator.astro;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Piecewise Chebyshev fit of a state over a window of time. The window is
+ * split into equal segments, each fitted with one polynomial per component of
+ * the position and velocity. A segment is only fitted the first time it's
+ * evaluated, after which evaluating it takes a few multiply-adds per
+ * component.
+ *
+ * Segments can be fitted and evaluated from several threads at once.
+ *
+ * @author David
+ *
+ */
+public class ChebyshevEphemeris {
+	/**
+	 * Where the fitted states come from
+	 */
+	public interface Source {
+		/**
+		 * @param epoch
+		 *            TAI time in seconds
+		 * @param out
+		 *            the position and velocity at the epoch
+		 */
+		public void stateAt(double epoch, double[] out);
+	}
+
+	private final Source source;
+	private final double start;
+	private final double end;
+	private final double segmentLength;
+	private final int degree;
+
+	/**
+	 * Number of segments
+	 */
+	private final int count;
+
+	/**
+	 * Coefficients of each segment, null until it's fitted. Coefficient k of
+	 * component c is at k * 6 + c
+	 */
+	private final AtomicReferenceArray<double[]> segments;
+
+	/**
+	 * @param source
+	 *            the states to fit. Must give the same state for the same
+	 *            epoch for as long as the ephemeris is in use
+	 * @param start
+	 *            TAI epoch of the start of the window, in seconds
+	 * @param end
+	 *            TAI epoch of the end of the window, in seconds
+	 * @param segmentLength
+	 *            seconds per segment
+	 * @param degree
+	 *            degree of the polynomial for each segment
+	 */
+	public ChebyshevEphemeris(Source source, double start, double end,
+			double segmentLength, int degree) {
+		this.source = source;
+		this.start = start;
+		this.segmentLength = segmentLength;
+		this.degree = degree;
+		count = (int) Math.ceil((end - start) / segmentLength);
+		this.end = start + count * segmentLength;
+		segments = new AtomicReferenceArray<double[]>(count);
+	}
+
+	/**
+	 * @return true if the epoch is inside the window
+	 */
+	public boolean covers(double epoch) {
+		return epoch >= start && epoch < end;
+	}
+
+	/**
+	 * Evaluate the fit. The epoch must be inside the window
+	 *
+	 * @param epoch
+	 *            TAI time in seconds
+	 * @param out
+	 *            the position and velocity at the epoch
+	 */
+	public void evaluate(double epoch, double[] out) {
+		// Just below the end, the division can round up to the next segment
+		int index = Math.min((int) ((epoch - start) / segmentLength),
+				count - 1);
+		double[] c = segments.get(index);
+		if (c == null) {
+			c = fit(index);
+			segments.set(index, c);
+		}
+
+		// Sum the series, finding each Chebyshev polynomial by recurrence
+		double segmentStart = start + index * segmentLength;
+		double tau = 2.0 * (epoch - segmentStart) / segmentLength - 1.0;
+		for (int i = 0; i < 6; i++) {
+			out[i] = c[i] + c[6 + i] * tau;
+		}
+		double t0 = 1.0;
+		double t1 = tau;
+		for (int k = 2; k <= degree; k++) {
+			double t2 = 2.0 * tau * t1 - t0;
+			int offset = k * 6;
+			out[0] += c[offset] * t2;
+			out[1] += c[offset + 1] * t2;
+			out[2] += c[offset + 2] * t2;
+			out[3] += c[offset + 3] * t2;
+			out[4] += c[offset + 4] * t2;
+			out[5] += c[offset + 5] * t2;
+			t0 = t1;
+			t1 = t2;
+		}
+	}
+
+	/**
+	 * Fit a segment by sampling the source at the Chebyshev nodes
+	 */
+	private double[] fit(int index) {
+		int n = degree + 1;
+		double half = segmentLength / 2.0;
+		double mid = start + index * segmentLength + half;
+
+		double[][] samples = new double[n][6];
+		for (int j = 0; j < n; j++) {
+			double node = Math.cos(Math.PI * (j + 0.5) / n);
+			source.stateAt(mid + half * node, samples[j]);
+		}
+
+		double[] c = new double[n * 6];
+		for (int k = 0; k < n; k++) {
+			double scale = (k == 0 ? 1.0 : 2.0) / n;
+			for (int j = 0; j < n; j++) {
+				double weight = scale * Math.cos(Math.PI * k * (j + 0.5) / n);
+				for (int i = 0; i < 6; i++) {
+					c[k * 6 + i] += weight * samples[j][i];
+				}
+			}
+		}
+		return c;
+	}
+
+	/**
+	 * @return TAI epoch of the start of the window, in seconds
+	 */
+	public double getStart() {
+		return start;
+	}
+
+	/**
+	 * @return TAI epoch of the end of the window, in seconds
+	 */
+	public double getEnd() {
+		return end;
+	}
+}
@@ -0,0 +1,399 @@
+package simulator.astro;
+
+import java.util.Comparator;
+import java.util.PriorityQueue;
+
+import com.pi.math.vector.Vector;
+
+/**
+ * Minimum orbit intersection distance, the closest the paths of two
+ * elliptic orbits around the same body come to each other regardless of
+ * where the objects are along them.
+ *
+ * The distance is minimized over both eccentric anomalies by branch and
+ * bound. A point on an ellipse moves at most a metres per radian of
+ * eccentric anomaly, so the distance anywhere in a cell of anomalies is at
+ * least the distance at its centre less a times the cell's half-width for
+ * each orbit. The cell with the lowest bound is split until no cell can be
+ * lower than the best distance found by more than the tolerance.
+ *
+ * The result is never more than the true MOID, so it can safely be used to
+ * reject pairs which can't come close. within() answers the same question
+ * against a limit more cheaply, with a one-dimensional search.
+ *
+ * @author David
+ *
+ */
+public class MOID {
+	/**
+	 * Cells per side of the starting grid
+	 */
+	private static final int GRID = 16;
+
+	/**
+	 * Most cells to split before settling for the bound reached so far
+	 */
+	private static final int MAX_SPLITS = 20000;
+
+	/**
+	 * Starting cells, most cells to split and narrowest cell, in radians, of
+	 * the search in within(). Orbits which run alongside each other can need
+	 * many splits, and are let through once they run out
+	 */
+	private static final int PATH_GRID = 32;
+	private static final int PATH_SPLITS = 256;
+	private static final double MIN_WIDTH = 1E-9;
+
+	/**
+	 * The shape and orientation of an elliptic orbit
+	 */
+	public static class Ellipse {
+		private final double a;
+		private final double b;
+		private final double e;
+		private final double px, py, pz;
+		private final double qx, qy, qz;
+		private final double wx, wy, wz;
+
+		private Ellipse(double a, double e, double px, double py, double pz,
+				double qx, double qy, double qz) {
+			this.a = a;
+			this.b = a * Math.sqrt(1.0 - e * e);
+			this.e = e;
+			this.px = px;
+			this.py = py;
+			this.pz = pz;
+			this.qx = qx;
+			this.qy = qy;
+			this.qz = qz;
+			wx = py * qz - pz * qy;
+			wy = pz * qx - px * qz;
+			wz = px * qy - py * qx;
+		}
+
+		/**
+		 * @param pos
+		 *            position relative to the parent
+		 * @param vel
+		 *            velocity relative to the parent
+		 * @param mu
+		 *            the parent's gravitational parameter
+		 * @return the ellipse, or null if the orbit isn't elliptic
+		 */
+		public static Ellipse fromState(Vector pos, Vector vel, double mu) {
+			return fromState(new double[] { pos.get(0), pos.get(1),
+					pos.get(2), vel.get(0), vel.get(1), vel.get(2) }, mu);
+		}
+
+		/**
+		 * @param state
+		 *            position and velocity relative to the parent
+		 * @param mu
+		 *            the parent's gravitational parameter
+		 * @return the ellipse, or null if the orbit isn't elliptic
+		 */
+		public static Ellipse fromState(double[] state, double mu) {
+			double x = state[0];
+			double y = state[1];
+			double z = state[2];
+			double vx = state[3];
+			double vy = state[4];
+			double vz = state[5];
+
+			double r = Math.sqrt(x * x + y * y + z * z);
+			double v2 = vx * vx + vy * vy + vz * vz;
+			double rDotV = x * vx + y * vy + z * vz;
+			double a = 1.0 / (2.0 / r - v2 / mu);
+			if (!(a > 0) || Double.isInfinite(a)) {
+				return null;
+			}
+
+			// Eccentricity vector
+			double c1 = (v2 - mu / r) / mu;
+			double c2 = rDotV / mu;
+			double ex = c1 * x - c2 * vx;
+			double ey = c1 * y - c2 * vy;
+			double ez = c1 * z - c2 * vz;
+			double e = Math.sqrt(ex * ex + ey * ey + ez * ez);
+			if (e >= 1.0) {
+				return null;
+			}
+
+			// Angular momentum, for the direction of q
+			double hx = y * vz - z * vy;
+			double hy = z * vx - x * vz;
+			double hz = x * vy - y * vx;
+			double h = Math.sqrt(hx * hx + hy * hy + hz * hz);
+			hx /= h;
+			hy /= h;
+			hz /= h;
+
+			if (e < 1E-10) {
+				// Circular. Any direction in the plane will do for p
+				e = 0;
+				ex = x / r;
+				ey = y / r;
+				ez = z / r;
+			} else {
+				ex /= e;
+				ey /= e;
+				ez /= e;
+			}
+			return new Ellipse(a, e, ex, ey, ez, hy * ez - hz * ey, hz * ex
+					- hx * ez, hx * ey - hy * ex);
+		}
+
+		public double getPeriapsis() {
+			return a * (1.0 - e);
+		}
+
+		public double getApoapsis() {
+			return a * (1.0 + e);
+		}
+
+		/**
+		 * Lower bound on the distance from a point to the ellipse. The
+		 * distance is at least the point's height above the plane. Within the
+		 * plane it's at least half the difference between 2a and the sum of
+		 * the distances to the foci, since the sum changes by at most 2 per
+		 * metre moved.
+		 */
+		private double distanceBound(double[] r) {
+			double u = r[0] * px + r[1] * py + r[2] * pz;
+			double w = r[0] * qx + r[1] * qy + r[2] * qz;
+			double height = r[0] * wx + r[1] * wy + r[2] * wz;
+
+			// The body is at one focus and the other is 2ae behind it
+			double u2 = u + 2.0 * a * e;
+			double sum = Math.sqrt(u * u + w * w) + Math.sqrt(u2 * u2 + w * w);
+			double inPlane = (sum - 2.0 * a) / 2.0;
+			return Math.sqrt(height * height + inPlane * inPlane);
+		}
+
+		/**
+		 * @param E
+		 *            eccentric anomaly
+		 * @param out
+		 *            the position at the anomaly, then its derivative with
+		 *            respect to the anomaly
+		 */
+		private void position(double E, double[] out) {
+			double cos = Math.cos(E);
+			double sin = Math.sin(E);
+			double u = a * (cos - e);
+			double w = b * sin;
+			out[0] = u * px + w * qx;
+			out[1] = u * py + w * qy;
+			out[2] = u * pz + w * qz;
+
+			// Derivative with respect to the anomaly
+			u = -a * sin;
+			w = b * cos;
+			out[3] = u * px + w * qx;
+			out[4] = u * py + w * qy;
+			out[5] = u * pz + w * qz;
+		}
+	}
+
+	/**
+	 * @param tolerance
+	 *            how far below the true MOID the result may be, in metres
+	 * @return a lower bound on the MOID, within the tolerance of it unless
+	 *         MAX_SPLITS is reached first. 0 if either orbit is null
+	 */
+	public static double between(Ellipse o1, Ellipse o2, double tolerance) {
+		if (o1 == null || o2 == null) {
+			return 0;
+		}
+
+		// The radial gap between the orbits is a cheap bound to start from
+		double gap = Math.max(o2.getPeriapsis() - o1.getApoapsis(),
+				o1.getPeriapsis() - o2.getApoapsis());
+
+		double[] r1 = new double[6];
+		double[] r2 = new double[6];
+		double reach = o1.getApoapsis() + o2.getApoapsis();
+		PriorityQueue<double[]> cells = new PriorityQueue<double[]>(
+				GRID * GRID, new Comparator<double[]>() {
+					@Override
+					public int compare(double[] c1, double[] c2) {
+						return Double.compare(c1[0], c2[0]);
+					}
+				});
+
+		// Each cell is {bound, E1, E2, half-width 1, half-width 2}
+		double best = Double.POSITIVE_INFINITY;
+		double h = Math.PI / GRID;
+		double[][] grid = new double[GRID][6];
+		for (int j = 0; j < GRID; j++) {
+			o2.position((2 * j + 1) * h, grid[j]);
+		}
+		for (int i = 0; i < GRID; i++) {
+			o1.position((2 * i + 1) * h, r1);
+			for (int j = 0; j < GRID; j++) {
+				double d = distance(r1, grid[j]);
+				best = Math.min(best, d);
+				cells.add(new double[] {
+						bound(o1, o2, r1, grid[j], d, h, h, reach),
+						(2 * i + 1) * h, (2 * j + 1) * h, h, h });
+			}
+		}
+
+		// Lowest bound of the cells dropped as close enough to the best
+		double dropped = Double.POSITIVE_INFINITY;
+		for (int n = 0; n < MAX_SPLITS; n++) {
+			double[] cell = cells.peek();
+			if (cell == null || cell[0] >= best - tolerance) {
+				break;
+			}
+			cells.poll();
+
+			// Halve the side which leaves the most room
+			double h1 = cell[3];
+			double h2 = cell[4];
+			boolean splitFirst = o1.a * h1 >= o2.a * h2;
+			if (splitFirst) {
+				h1 /= 2.0;
+			} else {
+				h2 /= 2.0;
+			}
+			for (int k = -1; k <= 1; k += 2) {
+				double E1 = splitFirst ? cell[1] + k * h1 : cell[1];
+				double E2 = splitFirst ? cell[2] : cell[2] + k * h2;
+				o1.position(E1, r1);
+				o2.position(E2, r2);
+				double d = distance(r1, r2);
+				best = Math.min(best, d);
+				double lower = bound(o1, o2, r1, r2, d, h1, h2, reach);
+				if (lower < best - tolerance) {
+					cells.add(new double[] { lower, E1, E2, h1, h2 });
+				} else {
+					dropped = Math.min(dropped, lower);
+				}
+			}
+		}
+
+		double bound = Math.min(best, dropped);
+		if (!cells.isEmpty()) {
+			bound = Math.min(bound, cells.peek()[0]);
+		}
+		return Math.max(Math.max(bound, gap), 0);
+	}
+
+	/**
+	 * Check if two orbits could come within the limit of each other. Much
+	 * cheaper than between(), but may let through orbits which are a little
+	 * further apart than the limit.
+	 * 
+	 * Each point on one orbit is only bounded against the other orbit as a
+	 * whole, so the search is over one anomaly instead of two. The bound
+	 * changes by at most a per radian, so cells are dropped once their
+	 * centre is further than the limit by a times their half-width. Both
+	 * orbits are searched against each other, since the bound is tighter
+	 * one way than the other. Orbits which run alongside each other for a
+	 * long way are let through without finishing the search.
+	 * 
+	 * @return false if the MOID is certainly more than the limit. True if
+	 *         either orbit is null
+	 */
+	public static boolean within(Ellipse o1, Ellipse o2, double limit) {
+		if (o1 == null || o2 == null) {
+			return true;
+		}
+		double gap = Math.max(o2.getPeriapsis() - o1.getApoapsis(),
+				o1.getPeriapsis() - o2.getApoapsis());
+		if (gap > limit) {
+			return false;
+		}
+		return reaches(o1, o2, limit) && reaches(o2, o1, limit);
+	}
+
+	/**
+	 * @return false if no point on o1 can be within the limit of o2
+	 */
+	private static boolean reaches(Ellipse o1, Ellipse o2, double limit) {
+		double[] r = new double[6];
+
+		// Depth-first, so each split only grows the stack by one cell
+		double[] stack = new double[2 * (PATH_GRID + 64)];
+		int top = 0;
+		double h = Math.PI / PATH_GRID;
+		for (int i = 0; i < PATH_GRID; i++) {
+			stack[top++] = (2 * i + 1) * h;
+			stack[top++] = h;
+		}
+		for (int n = 0; top > 0; n++) {
+			if (n == PATH_SPLITS) {
+				return true;
+			}
+			double width = stack[--top];
+			double E = stack[--top];
+			o1.position(E, r);
+			double bound = o2.distanceBound(r);
+			if (bound <= limit || (width < MIN_WIDTH
+					&& bound - o1.a * width <= limit)) {
+				return true;
+			}
+			if (bound - o1.a * width > limit) {
+				continue;
+			}
+			width /= 2.0;
+			stack[top++] = E - width;
+			stack[top++] = width;
+			stack[top++] = E + width;
+			stack[top++] = width;
+		}
+		return false;
+	}
+
+	/**
+	 * @param tolerance
+	 *            how far below the true MOID the result may be, in metres
+	 * @return a lower bound on the MOID within the tolerance of it, or 0 if
+	 *         either orbit isn't elliptic
+	 */
+	public static double between(Vector pos1, Vector vel1, Vector pos2,
+			Vector vel2, double mu, double tolerance) {
+		return between(Ellipse.fromState(pos1, vel1, mu),
+				Ellipse.fromState(pos2, vel2, mu), tolerance);
+	}
+
+	/**
+	 * Lower bound on the distance anywhere in a cell, from the distance and
+	 * its derivatives at the centre. The squared distance D can fall by no
+	 * more than its slope times the half-widths, plus however much its
+	 * curvature can bend it down. Only the separation dotted with r''(E)
+	 * bends it down, and |r''(E)| is at most a. Far from a minimum the
+	 * first-order bound, d less a times the half-widths, is tighter, so the
+	 * best of the two is used.
+	 * 
+	 * @param r1
+	 *            position and derivative at the centre on the first orbit
+	 * @param d
+	 *            distance at the centre
+	 * @param reach
+	 *            the most the distance can be
+	 */
+	private static double bound(Ellipse o1, Ellipse o2, double[] r1,
+			double[] r2, double d, double h1, double h2, double reach) {
+		double first = d - o1.a * h1 - o2.a * h2;
+
+		double dx = r1[0] - r2[0];
+		double dy = r1[1] - r2[1];
+		double dz = r1[2] - r2[2];
+		double slope1 = 2.0 * Math.abs(dx * r1[3] + dy * r1[4] + dz * r1[5]);
+		double slope2 = 2.0 * Math.abs(dx * r2[3] + dy * r2[4] + dz * r2[5]);
+		double bend = reach * (o1.a * h1 * h1 + o2.a * h2 * h2);
+		double D = d * d - slope1 * h1 - slope2 * h2 - bend;
+		double second = D > 0 ? Math.sqrt(D) : 0;
+
+		return Math.max(first, second);
+	}
+
+	private static double distance(double[] r1, double[] r2) {
+		double dx = r1[0] - r2[0];
+		double dy = r1[1] - r2[1];
+		double dz = r1[2] - r2[2];
+		return Math.sqrt(dx * dx + dy * dy + dz * dz);
+	}
+}
@@ -27,4 +27,12 @@ public class Time {
 	public static double jdToTAI(double jd) {
 		return (jd - 2440587.5) * 86400.0;
 	}
+	
+	/**
+	 * Convert TAI time, in seconds, to Julian day
+	 * @return
+	 */
+	public static double taiToJD(double tai) {
+		return tai / 86400.0 + 2440587.5;
+	}
 }
@@ -0,0 +1,153 @@
+package simulator.bench;
+
+import java.util.Random;
+
+import simulator.astro.Astrophysics;
+
+import com.pi.math.vector.Vector;
+import com.pi.math.vector.VectorND;
+
+/**
+ * Checks Astrophysics.timeToEscape() on orbits which leave the Earth's sphere
+ * of influence, both hyperbolas and ellipses with the apoapsis outside it.
+ * Each orbit is checked at periapsis, where the anomaly from
+ * toOrbitalElements() can be NaN, and at a random time before or after it.
+ * The state is carried on by the time found with kepler() and must be on the
+ * sphere, both going out and, with reverse, coming in. It's carried on in
+ * steps, because one kepler() call over the whole time is sometimes far out
+ * on nearly parabolic orbits. Exits with 1 if any check fails.
+ *
+ * Usage: EscapeCheck [orbits]
+ *
+ * @author David
+ *
+ */
+public class EscapeCheck {
+	private static final double MU = 3.986E14;
+	private static final double SOI = 9.24E8;
+
+	/**
+	 * Largest error allowed in the radius reached, as a fraction of the SOI
+	 * radius
+	 */
+	private static final double TOLERANCE = 1E-6;
+
+	/**
+	 * Steps the state is carried on to the sphere in
+	 */
+	private static final int STEPS = 100;
+
+	public static void main(String[] args) {
+		int n = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+
+		Random random = new Random(3);
+		double[] periapsis = new double[6];
+		double[] state = new double[6];
+		int failed = 0;
+		for (int i = 0; i < n; i++) {
+			double rp = 6.6E6 + random.nextDouble() * 5E7;
+			double e;
+			if (random.nextBoolean()) {
+				e = 1.0 + random.nextDouble() * 2.0;
+			} else {
+				// From an apoapsis just outside the sphere to nearly parabolic
+				double least = (SOI - rp) / (SOI + rp);
+				e = least + random.nextDouble() * (1.0 - least);
+			}
+			periapsisState(random, rp, e, periapsis);
+			if (!check(periapsis, "periapsis", i)) {
+				failed++;
+			}
+
+			// Somewhere else inside the sphere
+			double t = Astrophysics.timeToEscape(vector(periapsis, 0),
+					vector(periapsis, 3), MU, SOI);
+			double dt = (random.nextDouble() * 2.0 - 1.0) * t * 0.99;
+			Astrophysics.kepler(periapsis, MU, dt, state);
+			if (!check(state, dt < 0 ? "before periapsis" : "after periapsis",
+					i)) {
+				failed++;
+			}
+		}
+
+		System.out.println(2 * n + " states, " + failed + " failed");
+		System.out.println(failed > 0 ? "FAILED" : "OK");
+		System.exit(failed > 0 ? 1 : 0);
+	}
+
+	/**
+	 * Check both directions from a state, printing it if it fails
+	 *
+	 * @return true if both reach the sphere
+	 */
+	private static boolean check(double[] s, String where, int orbit) {
+		Vector pos = vector(s, 0);
+		Vector vel = vector(s, 3);
+		double out = Astrophysics.timeToEscape(pos, vel, MU, SOI, false);
+		double in = Astrophysics.timeToEscape(pos, vel, MU, SOI, true);
+		double outError = radiusError(s, out);
+		double inError = radiusError(s, in);
+		boolean ok = out > 0 && in < 0 && outError <= TOLERANCE
+				&& inError <= TOLERANCE;
+		if (!ok) {
+			System.out.println("orbit " + orbit + " at " + where
+					+ ": out in " + out + " s, off by " + outError
+					+ ", in " + in + " s, off by " + inError);
+		}
+		return ok;
+	}
+
+	/**
+	 * @return how far from the sphere the state is after the time, as a
+	 *         fraction of its radius. Infinite if the time isn't finite
+	 */
+	private static double radiusError(double[] s, double t) {
+		if (Double.isNaN(t) || Double.isInfinite(t)) {
+			return Double.POSITIVE_INFINITY;
+		}
+		double[] out = s.clone();
+		double[] next = new double[6];
+		for (int k = 0; k < STEPS; k++) {
+			Astrophysics.kepler(out, MU, t / STEPS, next);
+			System.arraycopy(next, 0, out, 0, 6);
+		}
+		double r = Math.sqrt(out[0] * out[0] + out[1] * out[1] + out[2]
+				* out[2]);
+		return Math.abs(r - SOI) / SOI;
+	}
+
+	/**
+	 * Fill the state at periapsis of an orbit in a random plane
+	 */
+	private static void periapsisState(Random random, double rp, double e,
+			double[] out) {
+		double[] u = unit(random);
+		double[] w = unit(random);
+
+		// Take the part of w at right angles to u
+		double dot = u[0] * w[0] + u[1] * w[1] + u[2] * w[2];
+		for (int k = 0; k < 3; k++) {
+			w[k] -= dot * u[k];
+		}
+		double length = Math.sqrt(w[0] * w[0] + w[1] * w[1] + w[2] * w[2]);
+		double speed = Math.sqrt(MU * (1.0 + e) / rp);
+		for (int k = 0; k < 3; k++) {
+			out[k] = u[k] * rp;
+			out[k + 3] = w[k] / length * speed;
+		}
+	}
+
+	private static double[] unit(Random random) {
+		double[] v = { random.nextGaussian(), random.nextGaussian(),
+				random.nextGaussian() };
+		double length = Math.sqrt(v[0] * v[0] + v[1] * v[1] + v[2] * v[2]);
+		for (int k = 0; k < 3; k++) {
+			v[k] /= length;
+		}
+		return v;
+	}
+
+	private static Vector vector(double[] s, int offset) {
+		return new VectorND(s[offset], s[offset + 1], s[offset + 2]);
+	}
+}
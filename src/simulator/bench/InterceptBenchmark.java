@@ -0,0 +1,176 @@
+package simulator.bench;
+
+import java.util.Random;
+
+import simulator.Simulation;
+import simulator.SolarSystem;
+import simulator.astro.Astrophysics;
+import simulator.astro.Orbit;
+import simulator.astro.Time;
+import simulator.scenario.ScenarioLoader;
+import simulator.simObject.Body;
+import simulator.simObject.Ship;
+
+import com.pi.math.vector.Vector;
+
+/**
+ * Compares Ship.timeToIntercept() with the fixed sampler it replaced. Random
+ * highly eccentric orbits around the Earth at the scenario epoch are checked
+ * for entering the Moon's SOI within one period. The reference samples the
+ * orbits many more times, reading the Moon from its ephemeris, and the
+ * intercepts found, the largest error in the entry time and the time taken
+ * are printed for both.
+ *
+ * Usage: InterceptBenchmark scenario [ships] [reference samples]
+ *
+ * The scenario must have the Earth and the Moon.
+ *
+ * @author David
+ *
+ */
+public class InterceptBenchmark {
+	/**
+	 * Samples per period taken by the old timeToIntercept()
+	 */
+	private static final int OLD_SAMPLES = 1000;
+
+	public static void main(String[] args) throws Exception {
+		if (args.length < 1) {
+			System.out
+					.println("Usage: InterceptBenchmark scenario [ships] [reference samples]");
+			System.exit(1);
+		}
+		int n = args.length > 1 ? Integer.parseInt(args[1]) : 300;
+		int refSamples = args.length > 2 ? Integer.parseInt(args[2]) : 100000;
+
+		Simulation sim = new Simulation();
+		sim.solarSystem = new SolarSystem(sim);
+		new ScenarioLoader(sim, args[0]).init();
+		sim.solarSystem.startHeadless();
+		Body earth = (Body) sim.solarSystem.getObject("Earth");
+		Body moon = (Body) sim.solarSystem.getObject("Moon");
+		double epoch = sim.solarSystem.getEpoch();
+
+		// Periapses in low orbit and apoapses around the Moon's distance
+		Random random = new Random(7);
+		Ship[] ships = new Ship[n];
+		for (int i = 0; i < n; i++) {
+			double rp = 6.7E6 + random.nextDouble() * 1E6;
+			double ra = 3.0E8 + random.nextDouble() * 1.5E8;
+			Orbit orb = new Orbit((rp + ra) / 2.0, (ra - rp) / (ra + rp),
+					random.nextDouble() * 0.6, random.nextDouble() * 2.0
+							* Math.PI, random.nextDouble() * 2.0 * Math.PI,
+					random.nextDouble() * 2.0 * Math.PI);
+			Vector[] state = Astrophysics.toRV(orb, earth.mu, false);
+			ships[i] = new Ship("s" + i, state, earth, Time.taiToJD(epoch));
+
+			// Ships are moved to the current time when they're made
+			ships[i].setState(state[0], state[1]);
+			ships[i].setLastUpdatedTime(epoch);
+		}
+
+		double[] tOld = new double[n];
+		double[] tNew = new double[n];
+		double[] tRef = new double[n];
+		long start = System.nanoTime();
+		for (int i = 0; i < n; i++) {
+			tOld[i] = sample(ships[i], moon, OLD_SAMPLES, false);
+		}
+		long oldTime = System.nanoTime() - start;
+		start = System.nanoTime();
+		for (int i = 0; i < n; i++) {
+			tNew[i] = ships[i].timeToIntercept(moon);
+		}
+		long newTime = System.nanoTime() - start;
+		for (int i = 0; i < n; i++) {
+			tRef[i] = sample(ships[i], moon, refSamples, true);
+		}
+
+		int refHits = 0;
+		int oldHits = 0, oldExtra = 0;
+		int newHits = 0, newExtra = 0;
+		double oldError = 0, newError = 0;
+		for (int i = 0; i < n; i++) {
+			if (tRef[i] > 0) {
+				refHits++;
+				if (tOld[i] > 0) {
+					oldHits++;
+					oldError = Math.max(oldError, Math.abs(tOld[i] - tRef[i]));
+				}
+				if (tNew[i] > 0) {
+					newHits++;
+					newError = Math.max(newError, Math.abs(tNew[i] - tRef[i]));
+				}
+			} else {
+				if (tOld[i] > 0) {
+					oldExtra++;
+				}
+				if (tNew[i] > 0) {
+					newExtra++;
+				}
+			}
+		}
+
+		System.out.println(n + " ships, " + refHits
+				+ " intercepts found by the " + refSamples
+				+ "-sample reference");
+		System.out.printf("old %d-sample: found %d, max error %.1f s, "
+				+ "extra %d, %.0f ms%n", OLD_SAMPLES, oldHits, oldError,
+				oldExtra, oldTime / 1E6);
+		System.out.printf("timeToIntercept: found %d, max error %.1f s, "
+				+ "extra %d, %.0f ms%n", newHits, newError, newExtra,
+				newTime / 1E6);
+		System.exit(0);
+	}
+
+	/**
+	 * The old timeToIntercept(). Both orbits are sampled at even steps over
+	 * the ship's period and the first sample inside the body's SOI is taken
+	 *
+	 * @param reference
+	 *            true to read the body from its ephemeris and carry the ship
+	 *            on from the last sample. Otherwise the body is a two-body
+	 *            orbit and both are propagated from the epoch like the old
+	 *            sampler did, which kepler() sometimes gets wrong over long
+	 *            spans
+	 * @return seconds from the ship's epoch, or -1 if no sample is inside
+	 */
+	private static double sample(Ship s, Body b, int samples,
+			boolean reference) {
+		if (!s.canIntercept(b)) {
+			return -1;
+		}
+		double mu = s.parent.mu;
+		double a = Astrophysics.toOrbitalElements(s.getPos(), s.getVel(), mu).a;
+		double period = 2.0 * Math.PI * Math.sqrt((a * a * a) / mu);
+
+		double[] ship = new double[6];
+		double[] body = new double[6];
+		double[] shipAt = new double[6];
+		double[] bodyAt = new double[6];
+		Astrophysics.packState(s.getPos(), s.getVel(), ship);
+		Vector[] bodyState = b.getStateAt(s.getLastUpdatedTime());
+		Astrophysics.packState(bodyState[0], bodyState[1], body);
+
+		double soi2 = b.soiRadius * b.soiRadius;
+		for (int j = 0; j < samples; j++) {
+			double t = period * j / (double) samples;
+			if (reference) {
+				double step = period / samples;
+				Astrophysics.kepler(ship, mu, j == 0 ? 0 : step, shipAt);
+				System.arraycopy(shipAt, 0, ship, 0, 6);
+				b.stateAt(s.getLastUpdatedTime() + t, bodyAt);
+			} else {
+				Astrophysics.kepler(ship, mu, t, shipAt);
+				Astrophysics.kepler(body, b.parent.mu, t, bodyAt);
+			}
+			double dx = shipAt[0] - bodyAt[0];
+			double dy = shipAt[1] - bodyAt[1];
+			double dz = shipAt[2] - bodyAt[2];
+			if (dx * dx + dy * dy + dz * dz < soi2) {
+				return t;
+			}
+		}
+		return -1;
+	}
+}
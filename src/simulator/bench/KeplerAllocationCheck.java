@@ -0,0 +1,88 @@
+package simulator.bench;
+
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+
+import simulator.astro.Astrophysics;
+
+/**
+ * Checks that the primitive forms of Astrophysics.kepler() don't allocate.
+ * The bytes allocated by the thread are counted over several rounds of
+ * calls. Compiling the loop can allocate a little once, so the check passes
+ * if any round after the first allocates nothing. A call which allocates
+ * would show up in every round. Exits with 1 if the check fails.
+ * 
+ * Usage: KeplerAllocationCheck [calls per round]
+ * 
+ * @author David
+ *
+ */
+public class KeplerAllocationCheck {
+	private static final double MU = 3.986E14;
+	private static final int ROUNDS = 5;
+
+	private static com.sun.management.ThreadMXBean threads;
+	private static double sum;
+
+	public static void main(String[] args) {
+		int calls = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+
+		java.lang.management.ThreadMXBean bean = ManagementFactory
+				.getThreadMXBean();
+		if (!(bean instanceof com.sun.management.ThreadMXBean)) {
+			System.out.println("Allocation counters aren't supported");
+			System.exit(2);
+		}
+		threads = (com.sun.management.ThreadMXBean) bean;
+
+		// An ellipse and a hyperbola, so both branches are checked
+		double[][] states = { { 7E6, 1000, 0, 10, 7500, 1000 },
+				{ 7E6, 0, 0, 0, 12000, 0 } };
+
+		boolean failed = false;
+		for (double[] s : states) {
+			long least = Long.MAX_VALUE;
+			long[] rounds = new long[ROUNDS];
+			for (int r = 0; r < ROUNDS; r++) {
+				rounds[r] = allocatedBy(s, calls);
+				if (r > 0) {
+					least = Math.min(least, rounds[r]);
+				}
+			}
+			System.out.println(Arrays.toString(s) + ": bytes allocated by "
+					+ (2L * calls) + " calls in each round "
+					+ Arrays.toString(rounds));
+			if (least > 0) {
+				failed = true;
+			}
+		}
+
+		// Keep the results live so the calls aren't optimized away
+		if (Double.isNaN(sum)) {
+			System.out.println("NaN state");
+		}
+		System.out.println(failed ? "FAILED" : "OK");
+		System.exit(failed ? 1 : 0);
+	}
+
+	/**
+	 * @return the bytes allocated by the thread over the calls, less what
+	 *         reading the counter allocates
+	 */
+	private static long allocatedBy(double[] s, int calls) {
+		long thread = Thread.currentThread().getId();
+		double[] out = new double[6];
+
+		long start = threads.getThreadAllocatedBytes(thread);
+		long overhead = threads.getThreadAllocatedBytes(thread) - start;
+
+		long before = threads.getThreadAllocatedBytes(thread);
+		for (int i = 0; i < calls; i++) {
+			Astrophysics.kepler(s, MU, i, out);
+			Astrophysics.kepler(s[0], s[1], s[2], s[3], s[4], s[5], MU, -i,
+					out);
+			sum += out[0];
+		}
+		return threads.getThreadAllocatedBytes(thread) - before - overhead;
+	}
+}
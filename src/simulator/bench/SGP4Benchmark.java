@@ -0,0 +1,151 @@
+package simulator.bench;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+
+import simulator.astro.Astrophysics;
+import simulator.astro.Time;
+import simulator.simObject.Body;
+import simulator.simObject.Ship;
+import simulator.simObject.StateStore;
+import simulator.tle.SGP4;
+import simulator.tle.TLE;
+import simulator.tle.TLELoader;
+
+import com.pi.math.vector.Vector;
+import com.pi.math.vector.VectorND;
+
+/**
+ * Compares SGP4 with the two-body propagation it replaced for TLE ships. The
+ * satellites in a few categories are propagated both ways from their TLE
+ * epochs, and the distance between the two is printed for several spans.
+ * Then the whole store is propagated with each, and with the batch
+ * SGP4.stateAt(), and the time per satellite is printed.
+ *
+ * Usage: SGP4Benchmark [steps]
+ *
+ * @author David
+ *
+ */
+public class SGP4Benchmark {
+	private static final String[] CATEGORIES = { "1999-025",
+			"iridium-33-debris", "geo", "molniya", "gps-ops", "cubesat",
+			"globalstar", "orbcomm" };
+
+	/**
+	 * Spans after the TLE epoch the two are compared at, in seconds
+	 */
+	private static final double[] SPANS = { 0, 3600, 6 * 3600, 86400,
+			3 * 86400 };
+
+	/**
+	 * Seconds between the steps timed
+	 */
+	private static final double STEP = 10.0;
+
+	public static void main(String[] args) {
+		int steps = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+
+		// A satellite can be in several categories
+		TLELoader loader = new TLELoader();
+		ArrayList<TLE> tles = new ArrayList<TLE>();
+		HashSet<Integer> ids = new HashSet<Integer>();
+		for (String category : CATEGORIES) {
+			for (TLE tle : loader.getCategory(category)) {
+				if (ids.add(tle.id)) {
+					tles.add(tle);
+				}
+			}
+		}
+		Body earth = new Body("Earth", null, 5.97219E24, 6371000,
+				new Vector[] { new VectorND(0, 0, 0), new VectorND(0, 0, 0) },
+				2451545.0);
+		int n = tles.size();
+		Ship[] ships = new Ship[n];
+		SGP4[] sgp4 = new SGP4[n];
+		for (int i = 0; i < n; i++) {
+			ships[i] = new Ship(tles.get(i), earth);
+			sgp4[i] = tles.get(i).getSGP4();
+		}
+
+		for (double span : SPANS) {
+			compare(tles, earth.mu, span);
+		}
+
+		StateStore store = ships[0].getStore();
+		double start = Time.jdToTAI(2457186.5);
+		double[] out = new double[6 * n];
+		int deep = 0;
+		for (SGP4 s : sgp4) {
+			if (s.isDeepSpace()) {
+				deep++;
+			}
+		}
+
+		// The first rounds warm up the JIT
+		for (int round = 0; round < 3; round++) {
+			long twoBody = time(ships, store, false, start, steps);
+			long store4 = time(ships, store, true, start, steps);
+			long t = System.nanoTime();
+			int failed = 0;
+			for (int i = 0; i < steps; i++) {
+				failed = SGP4.stateAt(sgp4, start + i * STEP, out);
+			}
+			long batch = System.nanoTime() - t;
+
+			double perShip = (double) steps * n;
+			System.out.printf("%d satellites (%d deep space, %d failed): "
+					+ "two-body %.0f ns, SGP4 %.0f ns, batch SGP4 %.0f ns "
+					+ "per satellite%n", n, deep, failed, twoBody / perShip,
+					store4 / perShip, batch / perShip);
+		}
+	}
+
+	/**
+	 * Print how far the two-body orbits are from SGP4 a span after the TLE
+	 * epochs
+	 */
+	private static void compare(ArrayList<TLE> tles, double mu, double span) {
+		double[] distances = new double[tles.size()];
+		double[] sgp4 = new double[6];
+		double[] state = new double[6];
+		double[] twoBody = new double[6];
+		int k = 0;
+		for (TLE tle : tles) {
+			SGP4 s = tle.getSGP4();
+			if (!s.stateAt(s.getEpoch() + span, sgp4)) {
+				continue;
+			}
+			Vector[] rv = Astrophysics.toRV(tle.getOrbit(), mu, false);
+			Astrophysics.packState(rv[0], rv[1], state);
+			Astrophysics.kepler(state, mu, span, twoBody);
+			double dx = twoBody[0] - sgp4[0];
+			double dy = twoBody[1] - sgp4[1];
+			double dz = twoBody[2] - sgp4[2];
+			distances[k++] = Math.sqrt(dx * dx + dy * dy + dz * dz);
+		}
+		distances = Arrays.copyOf(distances, k);
+		Arrays.sort(distances);
+		System.out.printf("%6.0f s after the epoch: two-body is %.1f km from "
+				+ "SGP4 (median), %.1f km (90%%), %d satellites%n", span,
+				distances[k / 2] / 1000.0, distances[(int) (k * 0.9)] / 1000.0,
+				k);
+	}
+
+	/**
+	 * @return the time taken to propagate the store for the steps, in
+	 *         nanoseconds
+	 */
+	private static long time(Ship[] ships, StateStore store, boolean useSGP4,
+			double start, int steps) {
+		for (Ship s : ships) {
+			s.useSGP4(useSGP4);
+		}
+		long t = System.nanoTime();
+		for (int i = 0; i < steps; i++) {
+			store.propagateAll(start + i * STEP);
+		}
+		return System.nanoTime() - t;
+	}
+}
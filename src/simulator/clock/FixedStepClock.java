@@ -0,0 +1,41 @@
+package simulator.clock;
+
+/**
+ * Advances by the same step every tick, and paces the ticks so the
+ * simulation runs at the simulation speed on average. Every run goes through
+ * the same epochs, so runs are reproducible, and the step doesn't grow when
+ * the frame rate drops.
+ * 
+ * @author David
+ *
+ */
+public class FixedStepClock extends SimClock {
+	protected final double step;
+
+	/**
+	 * @param step
+	 *            simulation seconds per tick
+	 */
+	public FixedStepClock(double step) {
+		this.step = step;
+	}
+
+	@Override
+	public double tick(double speed) {
+		long now = System.nanoTime();
+		if (speed == 0) {
+			nextTick = now;
+			return epoch;
+		}
+		epoch += Math.signum(speed) * step;
+		schedule(now, (long) (step / Math.abs(speed) * 1E9));
+		return epoch;
+	}
+
+	/**
+	 * @return simulation seconds per tick
+	 */
+	public double getStep() {
+		return step;
+	}
+}
@@ -0,0 +1,60 @@
+package simulator.clock;
+
+/**
+ * Follows the wall clock, scaled by the simulation speed. The epoch is worked
+ * out from the nanoTime elapsed since the last change of speed rather than by
+ * adding up the time between ticks, so it doesn't drift however late the
+ * ticks are. The step size depends on how long each tick takes, so runs
+ * aren't reproducible.
+ * 
+ * @author David
+ *
+ */
+public class RealTimeClock extends SimClock {
+	private final long period;
+
+	private long anchorTime;
+	private double anchorEpoch;
+	private double anchorSpeed;
+
+	/**
+	 * Tick 60 times a second
+	 */
+	public RealTimeClock() {
+		this(60);
+	}
+
+	/**
+	 * @param ticksPerSecond
+	 *            how many times a real second to update the simulation
+	 */
+	public RealTimeClock(double ticksPerSecond) {
+		period = (long) (1E9 / ticksPerSecond);
+	}
+
+	@Override
+	public void reset(double epoch) {
+		super.reset(epoch);
+		anchorTime = nextTick;
+		anchorEpoch = epoch;
+	}
+
+	@Override
+	public double tick(double speed) {
+		long now = System.nanoTime();
+		epoch = anchorEpoch + (now - anchorTime) / 1E9 * anchorSpeed;
+
+		/*
+		 * The speed only applies from the tick it was seen at. Otherwise
+		 * unpausing would jump over the time spent paused
+		 */
+		if (speed != anchorSpeed) {
+			anchorTime = now;
+			anchorEpoch = epoch;
+			anchorSpeed = speed;
+		}
+
+		schedule(now, period);
+		return epoch;
+	}
+}
@@ -0,0 +1,67 @@
+package simulator.clock;
+
+/**
+ * Decides the epoch of each tick of the live simulation and when the next
+ * tick is due. The solar system thread parks between ticks until then.
+ * 
+ * @author David
+ *
+ */
+public abstract class SimClock {
+	/**
+	 * The epoch of the last tick in TAI seconds
+	 */
+	protected double epoch;
+
+	/**
+	 * The System.nanoTime() when the next tick is due
+	 */
+	protected long nextTick;
+
+	/**
+	 * Start counting from the epoch. Called when the simulation starts and
+	 * whenever the epoch is set
+	 * 
+	 * @param epoch
+	 *            in TAI seconds
+	 */
+	public void reset(double epoch) {
+		this.epoch = epoch;
+		nextTick = System.nanoTime();
+	}
+
+	/**
+	 * Move on to the next tick. Called every tick, including while paused
+	 * 
+	 * @param speed
+	 *            simulation seconds per real second. 0 while paused
+	 * @return the epoch of the tick in TAI seconds
+	 */
+	public abstract double tick(double speed);
+
+	/**
+	 * @return the System.nanoTime() when the next tick is due
+	 */
+	public long getNextTickTime() {
+		return nextTick;
+	}
+
+	/**
+	 * @return the epoch of the last tick in TAI seconds
+	 */
+	public double getEpoch() {
+		return epoch;
+	}
+
+	/**
+	 * Schedule the next tick one period after the last one, so time spent
+	 * sleeping late doesn't add up. If the simulation has fallen more than a
+	 * period behind, skip ahead rather than run ticks back to back
+	 */
+	protected void schedule(long now, long period) {
+		nextTick += period;
+		if (nextTick - now < 0) {
+			nextTick = now + period;
+		}
+	}
+}
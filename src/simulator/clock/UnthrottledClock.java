@@ -0,0 +1,29 @@
+package simulator.clock;
+
+/**
+ * Advances by the same step every tick, with no waiting in between. The
+ * simulation runs as fast as it can be updated. Only the sign of the
+ * simulation speed is used.
+ * 
+ * @author David
+ *
+ */
+public class UnthrottledClock extends FixedStepClock {
+
+	/**
+	 * @param step
+	 *            simulation seconds per tick
+	 */
+	public UnthrottledClock(double step) {
+		super(step);
+	}
+
+	@Override
+	public double tick(double speed) {
+		nextTick = System.nanoTime();
+		if (speed != 0) {
+			epoch += Math.signum(speed) * step;
+		}
+		return epoch;
+	}
+}
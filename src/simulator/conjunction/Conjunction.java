@@ -0,0 +1,83 @@
+package simulator.conjunction;
+
+import simulator.simObject.SimObject;
+
+/**
+ * A close approach between two objects orbiting the same body. Ordered by
+ * miss distance
+ *
+ * @author David
+ *
+ */
+public class Conjunction implements Comparable<Conjunction> {
+	public static final String CSV_HEADER = "tca,object1,object2,"
+			+ "missDistance,relativeSpeed";
+
+	private final SimObject object1;
+	private final SimObject object2;
+	private final double tca;
+	private final double missDistance;
+	private final double relativeSpeed;
+
+	/**
+	 * @param tca
+	 *            TAI epoch of closest approach, in seconds
+	 * @param missDistance
+	 *            distance at closest approach, in metres
+	 * @param relativeSpeed
+	 *            relative speed at closest approach, in metres per second
+	 */
+	Conjunction(SimObject object1, SimObject object2, double tca,
+			double missDistance, double relativeSpeed) {
+		this.object1 = object1;
+		this.object2 = object2;
+		this.tca = tca;
+		this.missDistance = missDistance;
+		this.relativeSpeed = relativeSpeed;
+	}
+
+	public SimObject getObject1() {
+		return object1;
+	}
+
+	public SimObject getObject2() {
+		return object2;
+	}
+
+	/**
+	 * @return TAI epoch of closest approach, in seconds
+	 */
+	public double getTCA() {
+		return tca;
+	}
+
+	/**
+	 * @return distance at closest approach, in metres
+	 */
+	public double getMissDistance() {
+		return missDistance;
+	}
+
+	/**
+	 * @return relative speed at closest approach, in metres per second
+	 */
+	public double getRelativeSpeed() {
+		return relativeSpeed;
+	}
+
+	/**
+	 * Orders by miss distance
+	 */
+	@Override
+	public int compareTo(Conjunction c) {
+		return Double.compare(missDistance, c.missDistance);
+	}
+
+	/**
+	 * @return a line of CSV in the order written by CSV_HEADER
+	 */
+	public String toCSV() {
+		return tca + "," + object1.name + "," + object2.name + ","
+				+ missDistance + "," + relativeSpeed;
+	}
+}
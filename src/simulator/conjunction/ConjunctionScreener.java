@@ -0,0 +1,634 @@
+package simulator.conjunction;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+import simulator.astro.Brent;
+import simulator.astro.MOID;
+import simulator.simObject.Ship;
+import simulator.simObject.SimObject;
+
+/**
+ * Finds close approaches between objects orbiting the same body over a
+ * window of time. Pairs go through three filters, cheapest first:
+ *
+ * 1. Apogee/perigee. Pairs whose ranges of altitude are further apart than
+ * the threshold can't meet. With the objects sorted by perigee, each one is
+ * only compared with those whose perigee is below its apogee.
+ *
+ * 2. Orbit path. Pairs whose MOID is more than the threshold can't meet
+ * wherever they are along their orbits.
+ *
+ * 3. Time. The window is stepped through and the objects hashed into cells
+ * of space at each step. Pairs which passed the other filters and share or
+ * neighbour a cell are refined to the time of closest approach with Brent's
+ * method, but only at the step nearest it: the one where the pair goes from
+ * closing to opening within half a step either side. The cells are big
+ * enough that a pair within the threshold at closest approach shares or
+ * neighbours a cell at that step.
+ *
+ * Objects follow their current trajectories, so planned burns aren't
+ * included. Only objects on elliptic orbits are screened. Both filters and
+ * the time steps run in parallel.
+ *
+ * The first two filters use the two-body ellipse of each object, which ships
+ * on SGP4 drift away from: J2 turns the plane and the line of apsides by
+ * degrees a day, the short-period terms move them by kilometres, and drag
+ * lowers them. If any object uses SGP4 the window is split into parts of at
+ * most SGP4_FILTER_WINDOW. Both filters run again for each part, on the
+ * ellipses at its middle, with the limits of each SGP4 object widened by how
+ * far its orbit can move within the part. Conjunctions are written out as they're
+ * found, and returned ranked by miss distance at the end.
+ *
+ * The objects must not be changed while they're screened.
+ *
+ * @author David
+ *
+ */
+public class ConjunctionScreener {
+	/**
+	 * Seconds to find each time of closest approach to
+	 */
+	private static final double TCA_TOLERANCE = 1E-3;
+
+	/**
+	 * Objects per task for the apogee/perigee and path filters
+	 */
+	private static final int FILTER_CHUNK = 64;
+
+	/**
+	 * Time filter tasks per thread, so threads which finish early can take
+	 * another
+	 */
+	private static final int CHUNKS_PER_THREAD = 4;
+
+	private static final int[] NO_PARTNERS = new int[0];
+
+	/**
+	 * Longest part of the window screened with the same filters when objects
+	 * use SGP4, in seconds
+	 */
+	private static final double SGP4_FILTER_WINDOW = 6 * 3600.0;
+
+	/**
+	 * Earth's second zonal harmonic, as used by SGP4
+	 */
+	private static final double J2 = 1.082616E-3;
+
+	/**
+	 * How far the short-period terms can move an SGP4 orbit, as a multiple of
+	 * J2 R^2 / p. Their amplitude is about one
+	 */
+	private static final double SHORT_PERIOD_FACTOR = 3.0;
+
+	/**
+	 * Bound on the rates the node and the argument of periapsis are turned
+	 * by J2, together, as a multiple of n J2 (R / p)^2
+	 */
+	private static final double SECULAR_FACTOR = 4.5;
+
+	private final SimObject[] objects;
+	private final boolean[] usesSGP4;
+	private final boolean anySGP4;
+	private final double mu;
+	private final double radius;
+	private final double threshold;
+	private final double step;
+
+	/**
+	 * Lowest perigee and highest apogee each object can have within the part
+	 * of the window being screened
+	 */
+	private double[] perigee;
+	private double[] apogee;
+
+	/**
+	 * How far each object can move from its ellipse within the part of the
+	 * window being screened. Zero unless it uses SGP4
+	 */
+	private double[] pad;
+	private MOID.Ellipse[] ellipses;
+
+	/**
+	 * Index of every elliptic object, by perigee
+	 */
+	private int[] order;
+
+	/**
+	 * For each object, the sorted indices of the objects above it in order
+	 * which passed both filters with it
+	 */
+	private int[][] partners;
+
+	/**
+	 * Index of every object with at least one partner
+	 */
+	private int[] screened;
+
+	private double cellSize;
+
+	private final AtomicLong apsisPairs = new AtomicLong();
+	private final AtomicLong pathPairs = new AtomicLong();
+	private final AtomicLong candidates = new AtomicLong();
+
+	/**
+	 * @param objects
+	 *            the objects to screen. They must all orbit the same body
+	 * @param threshold
+	 *            the greatest miss distance to report, in metres
+	 * @param step
+	 *            seconds between steps of the time filter. Longer steps
+	 *            need bigger cells, so more pairs are refined at each one
+	 */
+	public ConjunctionScreener(List<? extends SimObject> objects,
+			double threshold, double step) {
+		this.objects = objects.toArray(new SimObject[objects.size()]);
+		this.mu = this.objects[0].parent.mu;
+		this.radius = this.objects[0].parent.radius;
+		usesSGP4 = new boolean[this.objects.length];
+		boolean any = false;
+		for (int i = 0; i < usesSGP4.length; i++) {
+			SimObject o = this.objects[i];
+			usesSGP4[i] = o instanceof Ship && ((Ship) o).isUsingSGP4();
+			any |= usesSGP4[i];
+		}
+		anySGP4 = any;
+		this.threshold = threshold;
+		this.step = step;
+	}
+
+	/**
+	 * Screen every pair of objects between the epochs
+	 *
+	 * @param start
+	 *            TAI epoch of the start of the window, in seconds
+	 * @param end
+	 *            TAI epoch of the end of the window, in seconds
+	 * @param out
+	 *            where each conjunction is written as CSV when it's found
+	 * @return the conjunctions, lowest miss distance first
+	 */
+	public ArrayList<Conjunction> screen(double start, double end,
+			PrintWriter out) {
+		apsisPairs.set(0);
+		pathPairs.set(0);
+		candidates.set(0);
+
+		double part = end - start;
+		if (anySGP4) {
+			part = Math.min(part, SGP4_FILTER_WINDOW);
+		}
+		ArrayList<Conjunction> ranked = new ArrayList<Conjunction>();
+		double partStart = start;
+		do {
+			double partEnd = end - partStart > part ? partStart + part : end;
+			filterPairs(partStart, partEnd);
+			ranked.addAll(screenPart(partStart, partEnd, out));
+			partStart = partEnd;
+		} while (partStart < end);
+
+		Collections.sort(ranked);
+		out.flush();
+		return ranked;
+	}
+
+	/**
+	 * Run the time filter over part of the window with the pairs from the
+	 * last filterPairs()
+	 */
+	private ArrayList<Conjunction> screenPart(double start, double end,
+			PrintWriter out) {
+		int chunks = ForkJoinPool.getCommonPoolParallelism()
+				* CHUNKS_PER_THREAD;
+		chunks = (int) Math.max(1,
+				Math.min(chunks, Math.ceil((end - start) / step)));
+		double length = (end - start) / chunks;
+		ArrayList<ScreenTask> tasks = new ArrayList<ScreenTask>();
+		for (int i = 0; i < chunks; i++) {
+			tasks.add(new ScreenTask(start + i * length, i == chunks - 1 ? end
+					: start + (i + 1) * length, out));
+		}
+		ForkJoinTask.invokeAll(tasks);
+
+		ArrayList<Conjunction> found = new ArrayList<Conjunction>();
+		for (ScreenTask task : tasks) {
+			found.addAll(task.join());
+		}
+		return found;
+	}
+
+	/**
+	 * Run the apogee/perigee and path filters on the orbits in the middle of
+	 * the part of the window, widened for SGP4 objects
+	 */
+	private void filterPairs(double start, double end) {
+		int n = objects.length;
+		perigee = new double[n];
+		apogee = new double[n];
+		pad = new double[n];
+		ellipses = new MOID.Ellipse[n];
+		partners = new int[n][];
+
+		// Fastest any object goes, for the size of the cells
+		double maxSpeed = 0;
+		double epoch = (start + end) / 2.0;
+		double[] state = new double[6];
+		ArrayList<Integer> elliptic = new ArrayList<Integer>();
+		for (int i = 0; i < n; i++) {
+			partners[i] = NO_PARTNERS;
+			objects[i].stateAt(epoch, state);
+			ellipses[i] = MOID.Ellipse.fromState(state, mu);
+			if (ellipses[i] != null) {
+				double rp = ellipses[i].getPeriapsis();
+				double ra = ellipses[i].getApoapsis();
+				double a = (rp + ra) / 2.0;
+				maxSpeed = Math.max(maxSpeed,
+						Math.sqrt(mu * (2.0 / rp - 1.0 / a)));
+				if (usesSGP4[i]) {
+					pad[i] = drift(i, ellipses[i], start, end, state);
+				}
+				perigee[i] = rp - pad[i];
+				apogee[i] = ra + pad[i];
+				elliptic.add(i);
+			}
+		}
+		cellSize = threshold + maxSpeed * step;
+
+		Collections.sort(elliptic, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer i1, Integer i2) {
+				return Double.compare(perigee[i1], perigee[i2]);
+			}
+		});
+		order = new int[elliptic.size()];
+		for (int k = 0; k < order.length; k++) {
+			order[k] = elliptic.get(k);
+		}
+
+		ForkJoinPool.commonPool().invoke(new FilterTask(0, order.length));
+
+		boolean[] isScreened = new boolean[n];
+		int count = 0;
+		for (int i = 0; i < n; i++) {
+			for (int j : partners[i]) {
+				isScreened[i] = true;
+				isScreened[j] = true;
+			}
+		}
+		for (boolean b : isScreened) {
+			if (b) {
+				count++;
+			}
+		}
+		screened = new int[count];
+		count = 0;
+		for (int i = 0; i < n; i++) {
+			if (isScreened[i]) {
+				screened[count++] = i;
+			}
+		}
+	}
+
+	/**
+	 * Bound how far an SGP4 object can be from the ellipse at the middle of
+	 * the part of the window, at any time within it. The short-period terms
+	 * and the turning of the node and periapsis by J2 are bounded from the
+	 * elements. Drag and the long-period terms are taken from the change in
+	 * the apsides between the ends of the part
+	 * 
+	 * @param state
+	 *            scratch space for 6 doubles
+	 * @return the distance in metres
+	 */
+	private double drift(int i, MOID.Ellipse ellipse, double start,
+			double end, double[] state) {
+		double rp = ellipse.getPeriapsis();
+		double ra = ellipse.getApoapsis();
+		double a = (rp + ra) / 2.0;
+		double p = 2.0 * rp * ra / (rp + ra);
+		double n = Math.sqrt(mu / (a * a * a));
+		double j2 = J2 * radius * radius / p;
+
+		double shortPeriod = SHORT_PERIOD_FACTOR * j2;
+		double turnRate = SECULAR_FACTOR * n * j2 / p;
+		double secular = ra * turnRate * (end - start) / 2.0;
+
+		double change = 0;
+		for (double t : new double[] { start, end }) {
+			objects[i].stateAt(t, state);
+			MOID.Ellipse e = MOID.Ellipse.fromState(state, mu);
+			if (e == null) {
+				return Double.POSITIVE_INFINITY;
+			}
+			change = Math.max(change, Math.abs(e.getPeriapsis() - rp));
+			change = Math.max(change, Math.abs(e.getApoapsis() - ra));
+		}
+		return shortPeriod + secular + change;
+	}
+
+	/**
+	 * Runs both filters on a range of the objects in order, against every
+	 * object above them
+	 */
+	private class FilterTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		private final int start;
+		private final int end;
+
+		public FilterTask(int start, int end) {
+			this.start = start;
+			this.end = end;
+		}
+
+		@Override
+		protected void compute() {
+			if (end - start > FILTER_CHUNK) {
+				int mid = (start + end) >>> 1;
+				invokeAll(new FilterTask(start, mid), new FilterTask(mid, end));
+				return;
+			}
+
+			long apsis = 0;
+			long path = 0;
+			int[] found = new int[16];
+			for (int k = start; k < end; k++) {
+				int i = order[k];
+				int count = 0;
+				for (int m = k + 1; m < order.length; m++) {
+					int j = order[m];
+					if (perigee[j] - apogee[i] > threshold) {
+						break;
+					}
+					apsis++;
+					if (MOID.within(ellipses[i], ellipses[j], threshold
+							+ pad[i] + pad[j])) {
+						if (count == found.length) {
+							found = Arrays.copyOf(found, count * 2);
+						}
+						found[count++] = j;
+					}
+				}
+				if (count > 0) {
+					int[] p = Arrays.copyOf(found, count);
+					Arrays.sort(p);
+					partners[i] = p;
+					path += count;
+				}
+			}
+			apsisPairs.addAndGet(apsis);
+			pathPairs.addAndGet(path);
+		}
+	}
+
+	/**
+	 * @return true if the pair passed the apogee/perigee and path filters
+	 */
+	private boolean isPair(int i, int j) {
+		return Arrays.binarySearch(partners[i], j) >= 0
+				|| Arrays.binarySearch(partners[j], i) >= 0;
+	}
+
+	/**
+	 * Runs the time filter over part of the window. Only conjunctions with
+	 * their closest approach inside the part are kept, so no two tasks
+	 * report the same one
+	 */
+	private class ScreenTask extends RecursiveTask<ArrayList<Conjunction>> {
+		private static final long serialVersionUID = 1L;
+
+		private final double start;
+		private final double end;
+		private final PrintWriter out;
+
+		private double[] x, y, z;
+		private int[] cellX, cellY, cellZ;
+
+		/**
+		 * Open-addressed hash table of cells. Each cell holds a linked list
+		 * of its objects, through next
+		 */
+		private long[] keys;
+		private int[] heads;
+		private int[] next;
+		private int mask;
+
+		private Separation separation = new Separation();
+
+		private ArrayList<Conjunction> found = new ArrayList<Conjunction>();
+
+		public ScreenTask(double start, double end, PrintWriter out) {
+			this.start = start;
+			this.end = end;
+			this.out = out;
+		}
+
+		@Override
+		protected ArrayList<Conjunction> compute() {
+			int n = objects.length;
+			x = new double[n];
+			y = new double[n];
+			z = new double[n];
+			cellX = new int[n];
+			cellY = new int[n];
+			cellZ = new int[n];
+			next = new int[n];
+			int size = 4 * Integer.highestOneBit(Math.max(screened.length,
+					1));
+			keys = new long[size];
+			heads = new int[size];
+			mask = size - 1;
+
+			double[] state = new double[6];
+			for (int k = 0;; k++) {
+				double t = start + k * step;
+				Arrays.fill(heads, -1);
+				for (int i : screened) {
+					objects[i].stateAt(t, state);
+					x[i] = state[0];
+					y[i] = state[1];
+					z[i] = state[2];
+					cellX[i] = (int) Math.floor(state[0] / cellSize);
+					cellY[i] = (int) Math.floor(state[1] / cellSize);
+					cellZ[i] = (int) Math.floor(state[2] / cellSize);
+					int slot = find(key(cellX[i], cellY[i], cellZ[i]));
+					next[i] = heads[slot];
+					heads[slot] = i;
+				}
+
+				for (int i : screened) {
+					// Own cell, then the 13 neighbours in the positive half
+					for (int j = next[i]; j != -1; j = next[j]) {
+						check(i, j, t);
+					}
+					for (int dx = 0; dx <= 1; dx++) {
+						for (int dy = dx == 0 ? 0 : -1; dy <= 1; dy++) {
+							int dz = dx == 0 && dy == 0 ? 1 : -1;
+							for (; dz <= 1; dz++) {
+								checkCell(i, cellX[i] + dx, cellY[i] + dy,
+										cellZ[i] + dz, t);
+							}
+						}
+					}
+				}
+
+				if (t >= end) {
+					break;
+				}
+			}
+			out.flush();
+			return found;
+		}
+
+		private void checkCell(int i, int cellX, int cellY, int cellZ,
+				double t) {
+			int slot = find(key(cellX, cellY, cellZ));
+			for (int j = heads[slot]; j != -1; j = next[j]) {
+				check(i, j, t);
+			}
+		}
+
+		/**
+		 * @return the slot of the cell, claiming an empty one if it isn't in
+		 *         the table
+		 */
+		private int find(long key) {
+			int slot = (int) ((key * 0x9E3779B97F4A7C15L) >>> 32) & mask;
+			while (heads[slot] != -1 && keys[slot] != key) {
+				slot = (slot + 1) & mask;
+			}
+			keys[slot] = key;
+			return slot;
+		}
+
+		/**
+		 * Refine the pair to its closest approach if it passed the other
+		 * filters and is within a cell of each other
+		 */
+		private void check(int i, int j, double t) {
+			double dx = x[i] - x[j];
+			double dy = y[i] - y[j];
+			double dz = z[i] - z[j];
+			if (dx * dx + dy * dy + dz * dz > cellSize * cellSize
+					|| !isPair(i, j)) {
+				return;
+			}
+
+			// Only the step nearest the closest approach refines it, so the
+			// pair must be closing half a step before and not half a step after
+			separation.set(i, j, t);
+			double half = step / 2.0;
+			if (separation.rangeRate(-half) >= 0
+					|| separation.rangeRate(half) < 0) {
+				return;
+			}
+			candidates.incrementAndGet();
+
+			double offset = Brent.minimize(separation, -half, half,
+					TCA_TOLERANCE);
+			double tca = t + offset;
+			if (tca < start || tca >= end) {
+				return;
+			}
+			double miss = separation.value(offset);
+			if (miss > threshold) {
+				return;
+			}
+
+			Conjunction c = new Conjunction(objects[Math.min(i, j)],
+					objects[Math.max(i, j)], tca, miss,
+					separation.getRelativeSpeed());
+			found.add(c);
+			out.println(c.toCSV());
+		}
+	}
+
+	/**
+	 * Packs the coordinates of a cell into 63 bits. Coordinates wrap after
+	 * 2^21 cells, which only makes far apart cells share a slot
+	 */
+	private static long key(int cellX, int cellY, int cellZ) {
+		return ((cellX & 0x1FFFFFL) << 42) | ((cellY & 0x1FFFFFL) << 21)
+				| (cellZ & 0x1FFFFFL);
+	}
+
+	/**
+	 * Distance between two objects over time. Times are in seconds from an
+	 * epoch, since Brent's method can only find a minimum to a fraction of
+	 * its magnitude
+	 */
+	private class Separation implements Brent.Function {
+		private int i;
+		private int j;
+		private double epoch;
+		private final double[] s1 = new double[6];
+		private final double[] s2 = new double[6];
+
+		public void set(int i, int j, double epoch) {
+			this.i = i;
+			this.j = j;
+			this.epoch = epoch;
+		}
+
+		@Override
+		public double value(double t) {
+			objects[i].stateAt(epoch + t, s1);
+			objects[j].stateAt(epoch + t, s2);
+			double dx = s1[0] - s2[0];
+			double dy = s1[1] - s2[1];
+			double dz = s1[2] - s2[2];
+			return Math.sqrt(dx * dx + dy * dy + dz * dz);
+		}
+
+		/**
+		 * @return the rate the distance is changing, times the distance
+		 */
+		public double rangeRate(double t) {
+			value(t);
+			return (s1[0] - s2[0]) * (s1[3] - s2[3]) + (s1[1] - s2[1])
+					* (s1[4] - s2[4]) + (s1[2] - s2[2]) * (s1[5] - s2[5]);
+		}
+
+		/**
+		 * @return the relative speed at the last time evaluated
+		 */
+		public double getRelativeSpeed() {
+			double dx = s1[3] - s2[3];
+			double dy = s1[4] - s2[4];
+			double dz = s1[5] - s2[5];
+			return Math.sqrt(dx * dx + dy * dy + dz * dz);
+		}
+	}
+
+	/**
+	 * @return pairs which passed the apogee/perigee filter in the last
+	 *         screening
+	 */
+	public long getApsisPairs() {
+		return apsisPairs.get();
+	}
+
+	/**
+	 * @return pairs which passed the path filter in the last screening
+	 */
+	public long getPathPairs() {
+		return pathPairs.get();
+	}
+
+	/**
+	 * @return times the time filter refined a pair to its closest approach
+	 *         in the last screening
+	 */
+	public long getCandidates() {
+		return candidates.get();
+	}
+}
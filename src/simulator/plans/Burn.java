@@ -19,14 +19,14 @@ public class Burn implements SimEvent {
 	
 	public void execute() {
 		if(!isFinished) {
-			maneuver.ship.vel.add(command.getDeltaV());
+			maneuver.ship.addVelocity(command.getDeltaV());
 			isFinished = true;
 		}
 	}
 	
 	public void reverse() {
 		if(isFinished) {
-			maneuver.ship.vel.subtract(command.getDeltaV());
+			maneuver.ship.subtractVelocity(command.getDeltaV());
 			isFinished = false;
 		}
 	}
@@ -0,0 +1,68 @@
+package simulator.plans;
+
+import simulator.simObject.Body;
+import simulator.simObject.Ship;
+
+/**
+ * The ship hits the surface of its parent. Executing it marks the ship as
+ * destroyed, which holds it where it hit, and reversing it brings the ship
+ * back, so going back in time undoes the crash.
+ * 
+ * @author David
+ *
+ */
+public class Collision implements SimEvent {
+	private Ship ship;
+	private Body body;
+	private double epoch;
+	private boolean isFinished = false;
+
+	public Collision(Ship ship, Body body, double epoch) {
+		this.ship = ship;
+		this.body = body;
+		this.epoch = epoch;
+	}
+
+	/**
+	 * @return the body the ship hits
+	 */
+	public Body getBody() {
+		return body;
+	}
+
+	@Override
+	public double getEpoch() {
+		return epoch;
+	}
+
+	@Override
+	public void execute() {
+		if (!isFinished) {
+			ship.setDestroyed(true);
+			isFinished = true;
+		}
+	}
+
+	@Override
+	public void reverse() {
+		if (isFinished) {
+			ship.setDestroyed(false);
+			isFinished = false;
+		}
+	}
+
+	@Override
+	public Ship getShip() {
+		return ship;
+	}
+
+	@Override
+	public boolean isFinished() {
+		return isFinished;
+	}
+
+	@Override
+	public void setFinished(boolean finished) {
+		isFinished = finished;
+	}
+}
@@ -0,0 +1,229 @@
+package simulator.plans;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.TreeSet;
+
+import simulator.simObject.Ship;
+
+/**
+ * Time-ordered set of events with a cursor at the current epoch. Everything
+ * up to and including the cursor has been passed, everything after it is
+ * still to come. Insertion and removal are O(log n), and checking for due
+ * events is O(1).
+ *
+ * Events are ordered by epoch, then by insertion order. An event's epoch must
+ * not change while it is in the timeline.
+ *
+ * @author David
+ *
+ */
+public class EventTimeline {
+	private TreeSet<SimEvent> events;
+	private HashMap<Ship, TreeSet<SimEvent>> shipEvents;
+	private HashMap<SimEvent, Long> order;
+	private long nextOrder = 0;
+	private EventComparator comparator;
+
+	/**
+	 * The last event passed. Null if the cursor is before every event
+	 */
+	private SimEvent cursor;
+
+	/**
+	 * The first event after the cursor. Null if there isn't one
+	 */
+	private SimEvent next;
+
+	public EventTimeline() {
+		comparator = new EventComparator();
+		events = new TreeSet<SimEvent>(comparator);
+		shipEvents = new HashMap<Ship, TreeSet<SimEvent>>();
+		order = new HashMap<SimEvent, Long>();
+	}
+
+	private class EventComparator implements Comparator<SimEvent> {
+		@Override
+		public int compare(SimEvent e1, SimEvent e2) {
+			int c = Double.compare(e1.getEpoch(), e2.getEpoch());
+			if (c == 0) {
+				c = Long.compare(order.get(e1), order.get(e2));
+			}
+			return c;
+		}
+	}
+
+	/**
+	 * Add an event. An event added before the cursor which hasn't happened
+	 * yet moves the cursor back so it will be passed again.
+	 */
+	public void add(SimEvent e) {
+		if (order.containsKey(e)) {
+			return;
+		}
+		order.put(e, nextOrder++);
+		events.add(e);
+
+		TreeSet<SimEvent> ship = shipEvents.get(e.getShip());
+		if (ship == null) {
+			ship = new TreeSet<SimEvent>(comparator);
+			shipEvents.put(e.getShip(), ship);
+		}
+		ship.add(e);
+
+		if (cursor != null && comparator.compare(e, cursor) < 0) {
+			if (!e.isFinished()) {
+				cursor = events.lower(e);
+				next = e;
+			}
+		} else if (next == null || comparator.compare(e, next) < 0) {
+			next = e;
+		}
+	}
+
+	public void addAll(Iterable<? extends SimEvent> events) {
+		for (SimEvent e : events) {
+			add(e);
+		}
+	}
+
+	public void remove(SimEvent e) {
+		if (!order.containsKey(e)) {
+			return;
+		}
+		if (e == cursor) {
+			cursor = events.lower(e);
+		}
+		if (e == next) {
+			next = events.higher(e);
+		}
+		events.remove(e);
+		TreeSet<SimEvent> ship = shipEvents.get(e.getShip());
+		ship.remove(e);
+		if (ship.isEmpty()) {
+			shipEvents.remove(e.getShip());
+		}
+		order.remove(e);
+	}
+
+	public void removeAll(Iterable<? extends SimEvent> events) {
+		for (SimEvent e : events) {
+			remove(e);
+		}
+	}
+
+	public boolean contains(SimEvent e) {
+		return order.containsKey(e);
+	}
+
+	/**
+	 * Remove every event and reset the cursor
+	 */
+	public void clear() {
+		events.clear();
+		shipEvents.clear();
+		order.clear();
+		cursor = null;
+		next = null;
+	}
+
+	public boolean isEmpty() {
+		return events.isEmpty();
+	}
+
+	public int size() {
+		return events.size();
+	}
+
+	/**
+	 * @return a time-ordered copy of the ship's events
+	 */
+	public ArrayList<SimEvent> getEvents(Ship s) {
+		TreeSet<SimEvent> ship = shipEvents.get(s);
+		if (ship == null) {
+			return new ArrayList<SimEvent>();
+		}
+		return new ArrayList<SimEvent>(ship);
+	}
+
+	/**
+	 * @return a time-ordered copy of all events
+	 */
+	public ArrayList<SimEvent> getEvents() {
+		return new ArrayList<SimEvent>(events);
+	}
+
+	/**
+	 * @return the first event after the cursor, or null
+	 */
+	public SimEvent peekNext() {
+		return next;
+	}
+
+	/**
+	 * Move the cursor past the next event
+	 *
+	 * @return the event passed, or null if there are none left
+	 */
+	public SimEvent advance() {
+		if (next != null) {
+			cursor = next;
+			next = events.higher(next);
+		}
+		return cursor;
+	}
+
+	/**
+	 * Move the cursor past every event
+	 */
+	public void seekToEnd() {
+		cursor = events.isEmpty() ? null : events.last();
+		next = null;
+	}
+
+	/**
+	 * Move the cursor to the epoch without reporting the events passed. For
+	 * use after adding events which have already happened
+	 */
+	public void seek(double epoch) {
+		forward(epoch);
+		reverse(epoch);
+	}
+
+	/**
+	 * @return true if the cursor would move to reach the epoch
+	 */
+	public boolean hasEventsDue(double epoch) {
+		return (next != null && next.getEpoch() <= epoch)
+				|| (cursor != null && cursor.getEpoch() > epoch);
+	}
+
+	/**
+	 * Move the cursor forward to the epoch
+	 *
+	 * @return the events passed, in time order
+	 */
+	public ArrayList<SimEvent> forward(double epoch) {
+		ArrayList<SimEvent> passed = new ArrayList<SimEvent>();
+		while (next != null && next.getEpoch() <= epoch) {
+			passed.add(advance());
+		}
+		return passed;
+	}
+
+	/**
+	 * Move the cursor back to the epoch
+	 *
+	 * @return the events passed, in reverse time order
+	 */
+	public ArrayList<SimEvent> reverse(double epoch) {
+		ArrayList<SimEvent> passed = new ArrayList<SimEvent>();
+		while (cursor != null && cursor.getEpoch() > epoch) {
+			passed.add(cursor);
+			next = cursor;
+			cursor = events.lower(cursor);
+		}
+		return passed;
+	}
+}
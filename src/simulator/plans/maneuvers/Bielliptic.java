@@ -30,7 +30,7 @@ public class Bielliptic extends Maneuver {
 
 	@Override
 	public void init() {
-		double rInitial = ship.pos.magnitude();
+		double rInitial = ship.getPos().magnitude();
 		double mu = ship.parent.mu;
 
 		double aTrans1 = (rInitial + rB) / 2.0;
@@ -54,27 +54,27 @@ public class Bielliptic extends Maneuver {
 		double tTrans2 = Math.PI
 				* Math.sqrt((aTrans2 * aTrans2 * aTrans2) / mu);
 
-		burns.add(new Burn(this, ship.lastUpdatedTime, new Command() {
+		burns.add(new Burn(this, ship.getLastUpdatedTime(), new Command() {
 			@Override
 			public Vector getDeltaV() {
-				Vector delta = ((VectorND) ship.vel).clone().normalize().multiply(deltaVA);
+				Vector delta = ship.getVel().normalize().multiply(deltaVA);
 				return delta;
 			}
 		}));
 
-		burns.add(new Burn(this, ship.lastUpdatedTime + tTrans1, new Command() {
+		burns.add(new Burn(this, ship.getLastUpdatedTime() + tTrans1, new Command() {
 			@Override
 			public Vector getDeltaV() {
-				Vector delta = ((VectorND) ship.vel).clone().normalize().multiply(deltaVB);
+				Vector delta = ship.getVel().normalize().multiply(deltaVB);
 				return delta;
 			}
 		}));
 
-		burns.add(new Burn(this, ship.lastUpdatedTime + tTrans1 + tTrans2,
+		burns.add(new Burn(this, ship.getLastUpdatedTime() + tTrans1 + tTrans2,
 				new Command() {
 					@Override
 					public Vector getDeltaV() {
-						Vector delta = ((VectorND) ship.vel).clone().normalize()
+						Vector delta = ship.getVel().normalize()
 								.multiply(deltaVC);
 						return delta;
 					}
@@ -41,7 +41,7 @@ public class Direct extends Maneuver {
 	public void init() {
 		deltaV = vel.magnitude();
 		
-		Burn burn = new Burn(this, ship.lastUpdatedTime, new Command() {
+		Burn burn = new Burn(this, ship.getLastUpdatedTime(), new Command() {
 			@Override
 			public Vector getDeltaV() {
 				return vel;
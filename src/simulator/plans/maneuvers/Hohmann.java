@@ -50,7 +50,8 @@ public class Hohmann extends Maneuver {
 		/*
 		 * Calculate time to first burn
 		 */
-		Orbit orb = Astrophysics.toOrbitalElements(ship.pos, ship.vel, grav);
+		Orbit orb = Astrophysics.toOrbitalElements(ship.getPos(),
+				ship.getVel(), grav);
 		double rPeri = orb.a * (1.0 - orb.e);
 		double rApo = orb.a * (1.0 + orb.e);
 		double rInitial = 0;
@@ -62,9 +63,9 @@ public class Hohmann extends Maneuver {
 			rInitial = rApo;
 			targetAnomaly = Math.PI;
 		}
-		executeEpoch = ship.lastUpdatedTime
-				+ Astrophysics.timeToAnomaly(ship.pos, ship.vel, orb, grav,
-						targetAnomaly);
+		executeEpoch = ship.getLastUpdatedTime()
+				+ Astrophysics.timeToAnomaly(ship.getPos(), ship.getVel(), orb,
+						grav, targetAnomaly);
 
 		double aTrans = (rInitial + rFinal) / 2.0;
 		double aInitial = (rApo + rPeri) / 2.0;
@@ -86,7 +87,7 @@ public class Hohmann extends Maneuver {
 		Burn burnA = new Burn(this, executeEpoch, new Command() {
 			@Override
 			public Vector getDeltaV() {
-				Vector deltaVA = ((VectorND) ship.vel).clone().normalize()
+				Vector deltaVA = ship.getVel().normalize()
 						.multiply(deltaVAMag);
 				return deltaVA;
 			}
@@ -95,7 +96,7 @@ public class Hohmann extends Maneuver {
 		Burn burnB = new Burn(this, executeEpoch + tTrans, new Command() {
 			@Override
 			public Vector getDeltaV() {
-				Vector deltaVB = ((VectorND) ship.vel).clone().normalize()
+				Vector deltaVB = ship.getVel().normalize()
 						.multiply(deltaVBMag);
 				return deltaVB;
 			}
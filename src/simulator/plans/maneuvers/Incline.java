@@ -42,8 +42,8 @@ public class Incline extends Maneuver {
 		// TODO Doesn't work when 2+ other maneuvers come before it
 		
 		/* Get current orbit */
-		Orbit orb = Astrophysics.toOrbitalElements(ship.pos, ship.vel,
-				ship.parent.mu);
+		Orbit orb = Astrophysics.toOrbitalElements(ship.getPos(),
+				ship.getVel(), ship.parent.mu);
 
 		/* Calculate change in inclination */
 		double i_initial = orb.i;
@@ -69,24 +69,24 @@ public class Incline extends Maneuver {
 			vNext = vAscend;
 		}
 
-		double timeToNode = Astrophysics.timeToAnomaly(ship.pos, ship.vel, orb,
-				ship.parent.mu, vNext);
+		double timeToNode = Astrophysics.timeToAnomaly(ship.getPos(),
+				ship.getVel(), orb, ship.parent.mu, vNext);
 
 		/*
 		 * Determine deltaV costs This could also be done by subtracting the two
 		 * velocities
 		 */
-		double r = ship.pos.magnitude();
-		double v = ship.vel.magnitude();
+		double r = ship.getPos().magnitude();
+		double v = ship.getVel().magnitude();
 
 		/* Calculate flight path angle fpa */
 		Vector h = new VectorND(0,0,0);
-		h = Vector.crossProduct(h, ship.pos, ship.vel);
+		h = Vector.crossProduct(h, ship.getPos(), ship.getVel());
 		double cos_fpa = h.magnitude() / (r * v);
 
 		deltaV = Math.abs(2.0 * v * cos_fpa * Math.sin(deltaI / 2.0));
 		
-		Vector[] initState = Astrophysics.kepler(ship.pos, ship.vel, ship.parent.mu, timeToNode);
+		Vector[] initState = Astrophysics.kepler(ship.getPos(), ship.getVel(), ship.parent.mu, timeToNode);
 		Orbit initOrb = Astrophysics.toOrbitalElements(initState[0], initState[1],
 				ship.parent.mu);
 		initOrb.i = i_final;
@@ -96,7 +96,7 @@ public class Incline extends Maneuver {
 		/*
 		 * Create the burn
 		 */
-		burns.add(new Burn(this, ship.lastUpdatedTime + timeToNode, new Command() {
+		burns.add(new Burn(this, ship.getLastUpdatedTime() + timeToNode, new Command() {
 			@Override
 			public Vector getDeltaV() {
 				return delta;
@@ -5,6 +5,7 @@ import java.util.HashMap;
 
 import simulator.plans.Burn;
 import simulator.simObject.Ship;
+import simulator.simObject.SimObject;
 
 public abstract class Maneuver {	
 	public ArrayList<Burn> burns;
@@ -29,6 +30,14 @@ public abstract class Maneuver {
 	}
 	
 	public abstract void init();
+
+	/**
+	 * @return the object this maneuver is planned against, or null. Its plan
+	 *         has to be resolved alongside this ship's
+	 */
+	public SimObject getTarget() {
+		return null;
+	}
 	
 	public void reInit() {
 		burns.clear();
@@ -26,7 +26,7 @@ public class OneTangent extends Maneuver {
 	public void init() {
 		double mu = ship.parent.mu;
 		
-		double rInitial = ship.pos.magnitude();
+		double rInitial = ship.getPos().magnitude();
 		double inverseR = rInitial / rFinal;
 		
 		/* Determine if the orbit is being lowered or raised. For use in eTrans and aTrans */
@@ -0,0 +1,120 @@
+package simulator.plans.maneuvers;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+
+/**
+ * The total delta-v of a two-burn transfer over a grid of departure delays
+ * and flight times. Cells with no transfer are NaN.
+ *
+ * @author David
+ *
+ */
+public class Porkchop {
+	private final double[] delays;
+	private final double[] flightTimes;
+	private final double[][] deltaV;
+
+	/**
+	 * @param delays
+	 *            seconds from the ship's epoch to the first burn
+	 * @param flightTimes
+	 *            seconds from the first burn to the second
+	 */
+	Porkchop(double[] delays, double[] flightTimes) {
+		this.delays = delays;
+		this.flightTimes = flightTimes;
+		deltaV = new double[delays.length][flightTimes.length];
+	}
+
+	void set(int delay, int flightTime, double deltaV) {
+		this.deltaV[delay][flightTime] = deltaV;
+	}
+
+	public int getDelayCount() {
+		return delays.length;
+	}
+
+	public int getFlightTimeCount() {
+		return flightTimes.length;
+	}
+
+	public double getDelay(int i) {
+		return delays[i];
+	}
+
+	public double getFlightTime(int j) {
+		return flightTimes[j];
+	}
+
+	/**
+	 * @return the total delta-v of the cell, or NaN if there's no transfer
+	 */
+	public double getDeltaV(int i, int j) {
+		return deltaV[i][j];
+	}
+
+	/**
+	 * Find the cells which are lower than all their neighbours
+	 *
+	 * @param count
+	 *            the most cells to return
+	 * @return the delay and flight time index of each cell, lowest first
+	 */
+	public ArrayList<int[]> getMinima(int count) {
+		ArrayList<int[]> minima = new ArrayList<int[]>();
+		for (int i = 0; i < delays.length; i++) {
+			for (int j = 0; j < flightTimes.length; j++) {
+				if (isMinimum(i, j)) {
+					minima.add(new int[] { i, j });
+				}
+			}
+		}
+		Collections.sort(minima, new Comparator<int[]>() {
+			@Override
+			public int compare(int[] c1, int[] c2) {
+				return Double.compare(deltaV[c1[0]][c1[1]],
+						deltaV[c2[0]][c2[1]]);
+			}
+		});
+		while (minima.size() > count) {
+			minima.remove(minima.size() - 1);
+		}
+		return minima;
+	}
+
+	private boolean isMinimum(int i, int j) {
+		double dv = deltaV[i][j];
+		if (Double.isNaN(dv)) {
+			return false;
+		}
+		for (int di = -1; di <= 1; di++) {
+			for (int dj = -1; dj <= 1; dj++) {
+				int ni = i + di;
+				int nj = j + dj;
+				if ((di != 0 || dj != 0) && ni >= 0 && ni < delays.length
+						&& nj >= 0 && nj < flightTimes.length
+						&& deltaV[ni][nj] < dv) {
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Write the grid as CSV, one cell per line
+	 */
+	public void write(PrintWriter out) {
+		out.println("delay,flightTime,deltaV");
+		for (int i = 0; i < delays.length; i++) {
+			for (int j = 0; j < flightTimes.length; j++) {
+				out.println(delays[i] + "," + flightTimes[j] + ","
+						+ deltaV[i][j]);
+			}
+		}
+		out.flush();
+	}
+}
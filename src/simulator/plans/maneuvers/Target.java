@@ -2,6 +2,10 @@ package simulator.plans.maneuvers;
 
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
 
 import simulator.Simulation;
 import simulator.astro.Astrophysics;
@@ -20,9 +24,24 @@ import com.pi.math.vector.VectorND;
  */
 public class Target extends Maneuver {
 	private SimObject target;
-	private Vector[] minChanges;
 	private DelayType delayType;
 
+	/**
+	 * Samples of each axis of the porkchop grid
+	 */
+	private static final int DELAY_SAMPLES = 100;
+	private static final int FLIGHT_TIME_SAMPLES = 100;
+
+	/**
+	 * How many of the grid's minima are refined, and how many golden-section
+	 * steps are taken along each axis
+	 */
+	private static final int REFINED_MINIMA = 4;
+	private static final int GOLDEN_ITERATIONS = 30;
+	private static final double GOLDEN_RATIO = (Math.sqrt(5.0) - 1.0) / 2.0;
+
+	private Porkchop porkchop;
+
 	public enum DelayType {
 		UNLIMITED, ONE_ORBIT, IMMEDIATE
 	}
@@ -79,67 +98,24 @@ public class Target extends Maneuver {
 		inputs = args;
 	}
 
-	public double getTimeOfMin(double delay, double min, double max,
-			int sampleSize) {
-		/*
-		 * Calculate future state vectors after delay
-		 */
-		Vector[] fState_int;
-		Vector[] fState_tgt;
-		if (delay > 0) {
-			fState_int = Astrophysics.kepler(ship.pos, ship.vel,
-					ship.parent.mu, delay);
-			fState_tgt = Astrophysics.kepler(target.pos, target.vel,
-					target.parent.mu, delay);
-		} else {
-			fState_int = new Vector[] { ship.pos, ship.vel };
-			fState_tgt = new Vector[] { target.pos, target.vel };
-		}
-
-		/*
-		 * Determine if using long way
-		 */
-		Vector tran_n = new VectorND(0,0,0);
-		tran_n = Vector.crossProduct(tran_n, fState_int[0], fState_tgt[0]);
-		Vector h_n = new VectorND(0,0,0);
-		h_n = Vector.crossProduct(h_n, fState_int[0], fState_int[1]);
-		boolean useLongWay = Vector.dotProduct(h_n, tran_n) < 0;
+	/**
+	 * @return the target's state at the ship's epoch. The two may not be at
+	 *         the same epoch while events are buffered
+	 */
+	private Vector[] getTargetState() {
+		return target.getStateAt(ship.getLastUpdatedTime());
+	}
 
-		/*
-		 * Plot the possible transfer times and look for a minimum
-		 */
-		Vector[] changes = new Vector[2];
-		double minDeltaV = Double.MAX_VALUE;
-		double timeOfMin = 0;
-		for (int i = 0; i < sampleSize; i++) {
-			double t = min + (max - min) * i / (double) sampleSize;
-
-			changes = Astrophysics.target(fState_int, fState_tgt,
-					ship.parent.mu, t, useLongWay);
-
-			if (changes != null) {
-				double deltaV = changes[0].magnitude() + changes[1].magnitude();
-				if (deltaV < minDeltaV) {
-					minDeltaV = deltaV;
-					minChanges = changes;
-					timeOfMin = t;
-				}
-				// System.out.println(t + "," + delay + "," + deltaV);
-			}
-		}
-		return timeOfMin;
+	@Override
+	public SimObject getTarget() {
+		return target;
 	}
 
-	public double getTimeOfMin(double delay, double min, double max,
-			int sampleSize, int iterations) {
-		double timeOfMin = 0;
-		for (int i = 0; i < iterations; i++) {
-			timeOfMin = getTimeOfMin(delay, min, max, sampleSize);
-			double stepSize = 5.0 * (max - min) / sampleSize;
-			min = timeOfMin - stepSize;
-			max = timeOfMin + stepSize;
-		}
-		return timeOfMin;
+	/**
+	 * @return the grid searched by the last init(), or null
+	 */
+	public Porkchop getPorkchop() {
+		return porkchop;
 	}
 
 	@Override
@@ -147,10 +123,11 @@ public class Target extends Maneuver {
 		/*
 		 * Determine maximum transfer time, based on time for hohmann transfer
 		 */
-		Orbit orb_int = Astrophysics.toOrbitalElements(ship.pos, ship.vel,
-				ship.parent.mu);
-		Orbit orb_tgt = Astrophysics.toOrbitalElements(target.pos, target.vel,
-				target.parent.mu);
+		Orbit orb_int = Astrophysics.toOrbitalElements(ship.getPos(),
+				ship.getVel(), ship.parent.mu);
+		Vector[] tgtState = getTargetState();
+		Orbit orb_tgt = Astrophysics.toOrbitalElements(tgtState[0],
+				tgtState[1], target.parent.mu);
 		double aTrans = (orb_int.a + orb_tgt.a) / 2.0;
 		double tTrans = Math.PI
 				* Math.sqrt((aTrans * aTrans * aTrans) / ship.parent.mu);
@@ -180,24 +157,63 @@ public class Target extends Maneuver {
 			break;
 		}
 
-		double minDeltaV = Double.MAX_VALUE;
-		Vector[] realMinChanges = new Vector[2];
-		double timeOfMinOfMin = 0;
-		double minDelay = 0;
-		int sampleSize = maxDelay > 0 ? 100 : 1;
-		for (int i = 0; i < sampleSize; i++) {
-			double delay = maxDelay * i / (double) sampleSize;
-			double timeOfMin = getTimeOfMin(delay, 0, 4.0 * tTrans, 100, 1);
-			double deltaV = minChanges[0].magnitude()
-					+ minChanges[1].magnitude();
-			if (deltaV < minDeltaV) {
-				minDeltaV = deltaV;
-				minDelay = delay;
-				realMinChanges = minChanges;
-				timeOfMinOfMin = timeOfMin;
+		/*
+		 * Search the grid of delays and flight times in parallel, one task
+		 * per range of delays
+		 */
+		double[] start = new double[6];
+		Astrophysics.packState(ship.getPos(), ship.getVel(), start);
+		double[] tgtStart = new double[6];
+		Astrophysics.packState(tgtState[0], tgtState[1], tgtStart);
+
+		int delaySamples = maxDelay > 0 ? DELAY_SAMPLES : 1;
+		double[] delays = new double[delaySamples];
+		for (int i = 0; i < delaySamples; i++) {
+			delays[i] = maxDelay * i / (double) delaySamples;
+		}
+		double[] flightTimes = new double[FLIGHT_TIME_SAMPLES];
+		for (int i = 0; i < FLIGHT_TIME_SAMPLES; i++) {
+			flightTimes[i] = 4.0 * tTrans * i / (double) FLIGHT_TIME_SAMPLES;
+		}
+		Porkchop grid = new Porkchop(delays, flightTimes);
+		ForkJoinPool.commonPool().invoke(
+				new GridTask(grid, start, tgtStart, 0, delaySamples));
+		porkchop = grid;
+
+		/*
+		 * Refine the best minima of the grid in parallel and take the best
+		 */
+		ArrayList<RefineTask> tasks = new ArrayList<RefineTask>();
+		for (int[] cell : grid.getMinima(REFINED_MINIMA)) {
+			tasks.add(new RefineTask(grid, start, tgtStart, cell[0], cell[1],
+					maxDelay));
+		}
+		ForkJoinTask.invokeAll(tasks);
+
+		double[] best = null;
+		for (RefineTask task : tasks) {
+			double[] result = task.join();
+			if (best == null || result[2] < best[2]) {
+				best = result;
 			}
 		}
 
+		Vector[] realMinChanges;
+		double minDelay = 0;
+		double timeOfMinOfMin = 0;
+		if (best == null) {
+			System.out.println("No transfer found from " + ship.name + " to "
+					+ target.name);
+			realMinChanges = new Vector[] { new VectorND(0, 0, 0),
+					new VectorND(0, 0, 0) };
+		} else {
+			minDelay = best[0];
+			timeOfMinOfMin = best[1];
+			TransferSolver solver = new TransferSolver(start, tgtStart);
+			solver.setDelay(minDelay);
+			realMinChanges = solver.solve(timeOfMinOfMin);
+		}
+
 		final Vector deltaVA = realMinChanges[0];
 		final Vector deltaVB = realMinChanges[1];
 
@@ -207,14 +223,14 @@ public class Target extends Maneuver {
 //		System.out.println("Transfer time (min): " + timeOfMinOfMin / 60.0);
 //		System.out.println("Delta v: " + deltaV);
 
-		Burn burnA = new Burn(this, ship.lastUpdatedTime + minDelay, new Command() {
+		Burn burnA = new Burn(this, ship.getLastUpdatedTime() + minDelay, new Command() {
 			@Override
 			public Vector getDeltaV() {
 				return deltaVA;
 			}
 		});
 
-		Burn burnB = new Burn(this, ship.lastUpdatedTime + minDelay + timeOfMinOfMin,
+		Burn burnB = new Burn(this, ship.getLastUpdatedTime() + minDelay + timeOfMinOfMin,
 				new Command() {
 					@Override
 					public Vector getDeltaV() {
@@ -226,4 +242,218 @@ public class Target extends Maneuver {
 		burns.add(burnB);
 	}
 
+	/**
+	 * Finds transfers from the ship's and the target's states at the ship's
+	 * epoch. Holds its own scratch state, so each task needs its own
+	 */
+	private class TransferSolver {
+		private final double[] start;
+		private final double[] tgtStart;
+		private final double[] state = new double[6];
+
+		private double delay = Double.NaN;
+		private Vector[] fState_int;
+		private Vector[] fState_tgt;
+		private boolean useLongWay;
+
+		public TransferSolver(double[] start, double[] tgtStart) {
+			this.start = start;
+			this.tgtStart = tgtStart;
+		}
+
+		/**
+		 * Find the states after the delay
+		 */
+		public void setDelay(double delay) {
+			this.delay = delay;
+			fState_int = propagate(start, ship.parent.mu, delay);
+			fState_tgt = propagate(tgtStart, target.parent.mu, delay);
+
+			// Determine if using long way
+			Vector tran_n = new VectorND(0, 0, 0);
+			tran_n = Vector.crossProduct(tran_n, fState_int[0], fState_tgt[0]);
+			Vector h_n = new VectorND(0, 0, 0);
+			h_n = Vector.crossProduct(h_n, fState_int[0], fState_int[1]);
+			useLongWay = Vector.dotProduct(h_n, tran_n) < 0;
+		}
+
+		private Vector[] propagate(double[] initial, double mu, double delay) {
+			if (delay > 0) {
+				Astrophysics.kepler(initial, mu, delay, state);
+			} else {
+				System.arraycopy(initial, 0, state, 0, 6);
+			}
+			return new Vector[] { new VectorND(state[0], state[1], state[2]),
+					new VectorND(state[3], state[4], state[5]) };
+		}
+
+		/**
+		 * @return the two burns for the flight time after the current delay,
+		 *         or null if there's no transfer
+		 */
+		public Vector[] solve(double flightTime) {
+			return Astrophysics.target(fState_int, fState_tgt,
+					ship.parent.mu, flightTime, useLongWay);
+		}
+
+		/**
+		 * @return the total delta-v, or NaN if there's no transfer
+		 */
+		public double deltaV(double delay, double flightTime) {
+			if (delay != this.delay) {
+				setDelay(delay);
+			}
+			Vector[] changes = solve(flightTime);
+			if (changes == null) {
+				return Double.NaN;
+			}
+			return changes[0].magnitude() + changes[1].magnitude();
+		}
+	}
+
+	/**
+	 * Fills in the porkchop grid for a range of delays
+	 */
+	private class GridTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		private final Porkchop grid;
+		private final double[] start;
+		private final double[] tgtStart;
+		private final int first;
+		private final int last;
+
+		public GridTask(Porkchop grid, double[] start, double[] tgtStart,
+				int first, int last) {
+			this.grid = grid;
+			this.start = start;
+			this.tgtStart = tgtStart;
+			this.first = first;
+			this.last = last;
+		}
+
+		@Override
+		protected void compute() {
+			if (last - first <= 1) {
+				TransferSolver solver = new TransferSolver(start, tgtStart);
+				for (int i = first; i < last; i++) {
+					for (int j = 0; j < grid.getFlightTimeCount(); j++) {
+						grid.set(i, j, solver.deltaV(grid.getDelay(i),
+								grid.getFlightTime(j)));
+					}
+				}
+			} else {
+				int mid = (first + last) >>> 1;
+				invokeAll(new GridTask(grid, start, tgtStart, first, mid),
+						new GridTask(grid, start, tgtStart, mid, last));
+			}
+		}
+	}
+
+	/**
+	 * Refines a cell of the grid with golden-section searches between its
+	 * neighbours: over the delay, with a search over the flight time at each
+	 * delay tried. The result is never worse than the cell.
+	 */
+	private class RefineTask extends RecursiveTask<double[]> {
+		private static final long serialVersionUID = 1L;
+
+		private final TransferSolver solver;
+		private final double minDelay, maxDelay;
+		private final double minFlightTime, maxFlightTime;
+
+		/**
+		 * Best delay, flight time and delta-v found so far
+		 */
+		private final double[] best;
+
+		public RefineTask(Porkchop grid, double[] start, double[] tgtStart,
+				int i, int j, double delayLimit) {
+			solver = new TransferSolver(start, tgtStart);
+			minDelay = grid.getDelay(Math.max(i - 1, 0));
+			maxDelay = i + 1 < grid.getDelayCount() ? grid.getDelay(i + 1)
+					: delayLimit;
+			minFlightTime = grid.getFlightTime(Math.max(j - 1, 0));
+			maxFlightTime = grid.getFlightTime(Math.min(j + 1,
+					grid.getFlightTimeCount() - 1));
+			best = new double[] { grid.getDelay(i), grid.getFlightTime(j),
+					grid.getDeltaV(i, j) };
+		}
+
+		@Override
+		protected double[] compute() {
+			if (maxDelay <= minDelay) {
+				searchFlightTime(minDelay);
+				return best;
+			}
+			double a = minDelay;
+			double b = maxDelay;
+			double c = b - GOLDEN_RATIO * (b - a);
+			double d = a + GOLDEN_RATIO * (b - a);
+			double fc = searchFlightTime(c);
+			double fd = searchFlightTime(d);
+			for (int k = 0; k < GOLDEN_ITERATIONS; k++) {
+				if (fc < fd) {
+					b = d;
+					d = c;
+					fd = fc;
+					c = b - GOLDEN_RATIO * (b - a);
+					fc = searchFlightTime(c);
+				} else {
+					a = c;
+					c = d;
+					fc = fd;
+					d = a + GOLDEN_RATIO * (b - a);
+					fd = searchFlightTime(d);
+				}
+			}
+			return best;
+		}
+
+		/**
+		 * @return the lowest delta-v found over the flight times after the
+		 *         delay, or infinity if there's no transfer
+		 */
+		private double searchFlightTime(double delay) {
+			double a = minFlightTime;
+			double b = maxFlightTime;
+			double c = b - GOLDEN_RATIO * (b - a);
+			double d = a + GOLDEN_RATIO * (b - a);
+			double fc = evaluate(delay, c);
+			double fd = evaluate(delay, d);
+			double min = Math.min(fc, fd);
+			for (int k = 0; k < GOLDEN_ITERATIONS; k++) {
+				if (fc < fd) {
+					b = d;
+					d = c;
+					fd = fc;
+					c = b - GOLDEN_RATIO * (b - a);
+					fc = evaluate(delay, c);
+					min = Math.min(min, fc);
+				} else {
+					a = c;
+					c = d;
+					fc = fd;
+					d = a + GOLDEN_RATIO * (b - a);
+					fd = evaluate(delay, d);
+					min = Math.min(min, fd);
+				}
+			}
+			return min;
+		}
+
+		private double evaluate(double delay, double flightTime) {
+			double deltaV = solver.deltaV(delay, flightTime);
+			if (Double.isNaN(deltaV)) {
+				return Double.POSITIVE_INFINITY;
+			}
+			if (deltaV < best[2]) {
+				best[0] = delay;
+				best[1] = flightTime;
+				best[2] = deltaV;
+			}
+			return deltaV;
+		}
+	}
+
 }
@@ -35,7 +35,7 @@ public class WaitCommand extends Maneuver {
 
 	@Override
 	public void init() {
-		burns.add(new Burn(this, ship.lastUpdatedTime + waitTime, new Command() {
+		burns.add(new Burn(this, ship.getLastUpdatedTime() + waitTime, new Command() {
 			@Override
 			public Vector getDeltaV() {
 				// TODO this is kinda dumb
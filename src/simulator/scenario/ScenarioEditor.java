@@ -23,6 +23,8 @@ import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
 import org.xml.sax.SAXException;
 
+import com.pi.math.vector.Vector;
+
 import simulator.astro.Time;
 import simulator.plans.maneuvers.Maneuver;
 import simulator.scenario.source.Source;
@@ -32,7 +34,8 @@ import simulator.simObject.SimObject;
 
 /**
  * 
- * Used for reading and writing scenario XML files.
+ * Used for editing and writing scenario XML files. ScenarioLoader streams
+ * them when they're loaded instead of reading them through here.
  * 
  * @author David
  *
@@ -40,9 +43,6 @@ import simulator.simObject.SimObject;
 public class ScenarioEditor {
 	protected Document doc;
 	private File xmlFile;
-	private ArrayList<Element> bodyElements;
-	private ArrayList<Element> shipElements;
-	private ArrayList<Element> objectElements;
 
 	/**
 	 * @param scenarioFilePath
@@ -195,54 +195,6 @@ public class ScenarioEditor {
 		e.setAttribute("type", "tai");
 	}
 
-	private void loadObjects() {
-		objectElements = new ArrayList<Element>();
-		NodeList nList = doc.getElementsByTagName("object");
-		for (int i = 0; i < nList.getLength(); i++) {
-			Element e = (Element) nList.item(i);
-			objectElements.add(e);
-		}
-	}
-
-	private void loadGroups() {
-		bodyElements = new ArrayList<Element>();
-		shipElements = new ArrayList<Element>();
-		NodeList nList = doc.getElementsByTagName("group");
-		for (int i = 0; i < nList.getLength(); i++) {
-			Element e = (Element) nList.item(i);
-			String type = e.getAttribute("type");
-			switch (type) {
-			case "body":
-				bodyElements.add(e);
-				break;
-			case "ship":
-				shipElements.add(e);
-				break;
-			}
-		}
-	}
-
-	protected ArrayList<Element> getObjectElements() {
-		if (objectElements == null) {
-			loadObjects();
-		}
-		return objectElements;
-	}
-
-	protected ArrayList<Element> getBodyElements() {
-		if (bodyElements == null) {
-			loadGroups();
-		}
-		return bodyElements;
-	}
-
-	protected ArrayList<Element> getShipElements() {
-		if (shipElements == null) {
-			loadGroups();
-		}
-		return shipElements;
-	}
-
 	protected NodeList getPlanNodes() {
 		return doc.getElementsByTagName("plan");
 	}
@@ -291,15 +243,17 @@ public class ScenarioEditor {
 		eState.setAttribute("type", "vector");
 
 		// TODO less copy-paste. See vectorFromElement method in ScenarioLoader
+		Vector pos = object.getPos();
 		Element ePos = doc.createElement("pos");
-		ePos.setAttribute("x", String.valueOf(object.pos.get(0)));
-		ePos.setAttribute("y", String.valueOf(object.pos.get(1)));
-		ePos.setAttribute("z", String.valueOf(object.pos.get(2)));
+		ePos.setAttribute("x", String.valueOf(pos.get(0)));
+		ePos.setAttribute("y", String.valueOf(pos.get(1)));
+		ePos.setAttribute("z", String.valueOf(pos.get(2)));
 
+		Vector vel = object.getVel();
 		Element eVel = doc.createElement("vel");
-		eVel.setAttribute("x", String.valueOf(object.vel.get(0)));
-		eVel.setAttribute("y", String.valueOf(object.vel.get(1)));
-		eVel.setAttribute("z", String.valueOf(object.vel.get(2)));
+		eVel.setAttribute("x", String.valueOf(vel.get(0)));
+		eVel.setAttribute("y", String.valueOf(vel.get(1)));
+		eVel.setAttribute("z", String.valueOf(vel.get(2)));
 
 		eState.appendChild(ePos);
 		eState.appendChild(eVel);
@@ -308,7 +262,7 @@ public class ScenarioEditor {
 		eObject.appendChild(eEpoch);
 		eEpoch.setAttribute("type", "jd");
 		eEpoch.setAttribute("day", String.valueOf(Time
-				.getJulianDate((long) (1000 * object.lastUpdatedTime))));
+				.getJulianDate((long) (1000 * object.getLastUpdatedTime()))));
 
 		doc.getDocumentElement().appendChild(eObject);
 	}
@@ -1,11 +1,18 @@
 package simulator.scenario;
 
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
 
-import org.w3c.dom.Element;
-import org.w3c.dom.Node;
-import org.w3c.dom.NodeList;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
 
 import com.pi.math.vector.Vector;
 import com.pi.math.vector.VectorND;
@@ -15,6 +22,7 @@ import simulator.SystemLoader;
 import simulator.astro.Astrophysics;
 import simulator.astro.Orbit;
 import simulator.plans.ManeuverFactory;
+import simulator.plans.maneuvers.Maneuver;
 import simulator.scenario.source.CSVSource;
 import simulator.scenario.source.Source;
 import simulator.scenario.source.TLESource;
@@ -25,18 +33,72 @@ import simulator.tle.TLE;
 
 /**
  * 
- * Loads all data from scenario files directly into the simulation
- * 
+ * Loads all data from scenario files directly into the simulation. The file
+ * is streamed in one pass, so objects are made and added as they're read
+ * instead of holding the whole document in memory. The root element can be
+ * <scenerio> or <scenario>.
+ *
  * @author David
  *
  */
 public class ScenarioLoader {
 	private Simulation sim;
 	private SystemLoader loader;
-	private ScenarioEditor editor;
+	private String filePath;
 
 	public ArrayList<Source> sources;
 
+	/*
+	 * Groups are loaded at the next individual object, or at the end of the
+	 * file. The objects of a group which comes after individual objects with
+	 * the same names are removed, so the individual objects replace them
+	 * wherever the group is
+	 */
+	private ArrayList<HashMap<String, String>> bodyGroups;
+	private ArrayList<HashMap<String, String>> shipGroups;
+
+	/**
+	 * The place in the file of the individual object loaded under each name,
+	 * counting objects. An object found later in the file keeps the name
+	 * even if an earlier one had to wait for its parent
+	 */
+	private HashMap<String, Integer> objectNames;
+	private int objectCount;
+
+	/**
+	 * Individual objects waiting for their parents, by the parent's name.
+	 * They're made as soon as the parent is loaded
+	 */
+	private HashMap<String, ArrayList<ObjectElement>> waiting;
+
+	/*
+	 * Settings which are applied once everything is loaded
+	 */
+	private String focus;
+	private String speed;
+	private HashMap<String, String> epoch;
+	private HashMap<String, String> camera;
+
+	/**
+	 * Commands of the flight plans waiting for their ships, or for the
+	 * object the first one targets, by the ship's name. Commands are made
+	 * into maneuvers in order as soon as they can be
+	 */
+	private HashMap<String, LinkedList<PlanCommand>> commands;
+
+	/**
+	 * Names of the ships whose waiting commands target each object
+	 */
+	private HashMap<String, ArrayList<String>> targetedBy;
+
+	private ManeuverFactory factory;
+
+	/**
+	 * Loaded objects by name, in the order of the solar system's list. Saves
+	 * searching the whole list for each object's parent and duplicate
+	 */
+	private HashMap<String, LinkedList<SimObject>> names;
+
 	/**
 	 * @param sim
 	 *            the simulation to edit
@@ -45,49 +107,62 @@ public class ScenarioLoader {
 	 */
 	public ScenarioLoader(Simulation sim, String filePath) {
 		this.sim = sim;
+		this.filePath = filePath;
 		loader = new SystemLoader();
-		editor = new ScenarioEditor(filePath);
 		sources = new ArrayList<Source>();
+		bodyGroups = new ArrayList<HashMap<String, String>>();
+		shipGroups = new ArrayList<HashMap<String, String>>();
+		commands = new HashMap<String, LinkedList<PlanCommand>>();
+		targetedBy = new HashMap<String, ArrayList<String>>();
+		factory = new ManeuverFactory();
+		names = new HashMap<String, LinkedList<SimObject>>();
+		objectNames = new HashMap<String, Integer>();
+		waiting = new HashMap<String, ArrayList<ObjectElement>>();
 	}
 
 	/**
-	 * Call init to load all bodies and settings into the simulation except for
-	 * the flight plans. Call loadPlans() after starting the simulation.
-	 * 
-	 * TODO get rid of all the order-specific BS
+	 * Call init to load all bodies, ships, settings and flight plans into the
+	 * simulation
 	 */
 	public void init() {
-		/*
-		 * Load groups
-		 */
-		for (Element e : editor.getBodyElements()) {
-			String filePath = e.getAttribute("path");
-			sources.add(new CSVSource(filePath));
-			sim.solarSystem.addObjects(loader.getObjects(sim.rootFilePath
-					+ filePath));
-		}
-		for (Element e : editor.getShipElements()) {
-			String category = e.getAttribute("category");
-			String name = e.getAttribute("name");
-			if (!name.isEmpty()) {
-				sources.add(new TLESource(category, name));
-				sim.solarSystem.addObject(loader.getShip(category, name));
-			} else {
-				sources.add(new TLESource(category));
-				sim.solarSystem.addObjects(loader.getShips(category));
+		InputStream is = null;
+		XMLStreamReader reader = null;
+		try {
+			is = new FileInputStream(filePath);
+			reader = XMLInputFactory.newInstance().createXMLStreamReader(is);
+			read(reader);
+		} catch (FileNotFoundException e) {
+			e.printStackTrace();
+		} catch (XMLStreamException e) {
+			e.printStackTrace();
+		} finally {
+			try {
+				if (reader != null) {
+					reader.close();
+				}
+				if (is != null) {
+					is.close();
+				}
+			} catch (XMLStreamException e) {
+				e.printStackTrace();
+			} catch (IOException e) {
+				e.printStackTrace();
 			}
 		}
 
-		/*
-		 * Load individual objects
-		 */
-		loadObjects();
+		// Groups which came after every object
+		loadGroups();
+		for (String parentName : waiting.keySet()) {
+			System.out.println(parentName + " not found!");
+		}
+		waiting.clear();
 
 		/*
 		 * Load focus
 		 */
-		String focusName = editor.getFocusElement().getTextContent();
-		sim.setFocus(sim.solarSystem.getObject(focusName));
+		if (focus != null) {
+			sim.setFocus(sim.solarSystem.getObject(focus));
+		}
 
 		/*
 		 * Load epoch
@@ -97,48 +172,204 @@ public class ScenarioLoader {
 		/*
 		 * Load speed
 		 */
-		Element eSpeed = editor.getSpeedElement();
-		if (eSpeed != null) {
-			double speed = Double.parseDouble(eSpeed.getTextContent());
-			sim.simSpeed = speed;
+		if (speed != null) {
+			sim.simSpeed = Double.parseDouble(speed);
 		}
 
 		/*
 		 * Load camera
 		 */
-		Element eCam = editor.getCameraElement();
-		if (eCam != null) {
-			float pitch = Float.parseFloat(eCam.getAttribute("pitch"));
-			float yaw = Float.parseFloat(eCam.getAttribute("yaw"));
-			float zoom = Float.parseFloat(eCam.getAttribute("zoom"));
+		if (camera != null && sim.screen != null) {
+			float pitch = Float.parseFloat(get(camera, "pitch"));
+			float yaw = Float.parseFloat(get(camera, "yaw"));
+			float zoom = Float.parseFloat(get(camera, "zoom"));
 			sim.screen.camera.set(pitch, yaw, zoom);
 		}
-		
+
 		/*
-		 * Load flight plans
+		 * Load the flight plans which are still waiting
 		 */
 		loadPlans();
 	}
 
+	/**
+	 * Read the children of the root element
+	 */
+	private void read(XMLStreamReader reader) throws XMLStreamException {
+		reader.nextTag();
+		while (reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+			switch (reader.getLocalName()) {
+			case "group":
+				HashMap<String, String> group = getAttributes(reader);
+				switch (get(group, "type")) {
+				case "body":
+					bodyGroups.add(group);
+					break;
+				case "ship":
+					shipGroups.add(group);
+					break;
+				}
+				skipElement(reader);
+				break;
+			case "object":
+				loadGroups();
+				ObjectElement element = readObject(reader);
+				String parentName = get(element.object, "parent");
+				if (!parentName.isEmpty() && getObject(parentName) == null) {
+					ArrayList<ObjectElement> children = waiting.get(parentName);
+					if (children == null) {
+						children = new ArrayList<ObjectElement>();
+						waiting.put(parentName, children);
+					}
+					children.add(element);
+				} else {
+					loadObject(element);
+				}
+				break;
+			case "plan":
+				readPlan(reader);
+				break;
+			case "focus":
+				focus = reader.getElementText();
+				break;
+			case "speed":
+				speed = reader.getElementText();
+				break;
+			case "epoch":
+				epoch = getAttributes(reader);
+				skipElement(reader);
+				break;
+			case "camera":
+				camera = getAttributes(reader);
+				skipElement(reader);
+				break;
+			default:
+				skipElement(reader);
+				break;
+			}
+		}
+	}
+
+	/**
+	 * Load the groups which have been read so far. Bodies are loaded first
+	 */
+	private void loadGroups() {
+		if (bodyGroups.isEmpty() && shipGroups.isEmpty()) {
+			return;
+		}
+
+		ArrayList<SimObject> loaded = new ArrayList<SimObject>();
+		for (HashMap<String, String> group : bodyGroups) {
+			String filePath = get(group, "path");
+			sources.add(new CSVSource(filePath));
+			ArrayList<SimObject> bodies = loader.getObjects(sim.rootFilePath
+					+ filePath);
+			addObjects(bodies);
+			loaded.addAll(bodies);
+		}
+		bodyGroups.clear();
+
+		ArrayList<String> categories = new ArrayList<String>();
+		for (HashMap<String, String> group : shipGroups) {
+			categories.add(get(group, "category"));
+			String history = get(group, "history");
+			if (!history.isEmpty()) {
+				loader.loadHistory(sim.rootFilePath + history);
+			}
+		}
+		loader.loadCategories(categories);
+
+		/*
+		 * A satellite in several groups is the same ship, and it's only added
+		 * once
+		 */
+		HashSet<SimObject> added = new HashSet<SimObject>();
+		for (SimObject o : sim.solarSystem.getObjects()) {
+			added.add(o);
+		}
+		for (HashMap<String, String> group : shipGroups) {
+			String category = get(group, "category");
+			String name = get(group, "name");
+			String propagator = get(group, "propagator");
+			ArrayList<SimObject> ships;
+			TLESource source;
+			if (!name.isEmpty()) {
+				source = new TLESource(category, name);
+				ships = new ArrayList<SimObject>();
+				SimObject ship = loader.getShip(category, name);
+				if (ship != null) {
+					ships.add(ship);
+				}
+			} else {
+				source = new TLESource(category);
+				ships = loader.getShips(category);
+			}
+			source.setPropagator(propagator);
+			source.setHistory(get(group, "history"));
+			sources.add(source);
+			if (propagator.equals("sgp4")) {
+				for (SimObject o : ships) {
+					((Ship) o).useSGP4(true);
+				}
+			}
+			ArrayList<SimObject> newShips = new ArrayList<SimObject>();
+			for (SimObject o : ships) {
+				if (added.add(o)) {
+					newShips.add(o);
+				}
+			}
+			addObjects(newShips);
+			loaded.addAll(newShips);
+		}
+		shipGroups.clear();
+
+		// Individual objects replace group objects wherever the group is
+		for (SimObject o : loaded) {
+			LinkedList<SimObject> named = names.get(o.name);
+			if (objectNames.containsKey(o.name) && named != null
+					&& named.contains(o)) {
+				removeObject(o);
+			}
+		}
+	}
+
+	/**
+	 * Make the objects and flight plans which were waiting for an object
+	 */
+	private void loaded(SimObject object) {
+		ArrayList<ObjectElement> children = waiting.remove(object.name);
+		if (children != null) {
+			for (ObjectElement child : children) {
+				loadObject(child);
+			}
+		}
+		loadPlan(object.name);
+		ArrayList<String> ships = targetedBy.remove(object.name);
+		if (ships != null) {
+			for (String ship : ships) {
+				loadPlan(ship);
+			}
+		}
+	}
+
 	private void loadEpoch() {
-		Element eEpoch = editor.getEpochElement();
-		if (eEpoch != null && eEpoch.hasAttributes()) {
-			switch (eEpoch.getAttribute("type")) {
+		if (epoch != null && !epoch.isEmpty()) {
+			switch (get(epoch, "type")) {
 			case "gregorian":
-				int yr = Integer.parseInt(eEpoch.getAttribute("yr"));
-				int mo = Integer.parseInt(eEpoch.getAttribute("mo"));
-				int day = Integer.parseInt(eEpoch.getAttribute("d"));
-				int hr = Integer.parseInt(eEpoch.getAttribute("h"));
-				int min = Integer.parseInt(eEpoch.getAttribute("min"));
-				double sec = Double.parseDouble(eEpoch.getAttribute("s"));
+				int yr = Integer.parseInt(get(epoch, "yr"));
+				int mo = Integer.parseInt(get(epoch, "mo"));
+				int day = Integer.parseInt(get(epoch, "d"));
+				int hr = Integer.parseInt(get(epoch, "h"));
+				int min = Integer.parseInt(get(epoch, "min"));
+				double sec = Double.parseDouble(get(epoch, "s"));
 				sim.solarSystem.setEpoch(yr, mo, day, hr, min, sec);
 				break;
 			case "jd":
-				double jd = Double.parseDouble(eEpoch.getAttribute("day"));
+				double jd = Double.parseDouble(get(epoch, "day"));
 				sim.solarSystem.setEpochJD(jd);
 				break;
 			case "tai":
-				double tai = Double.parseDouble(eEpoch.getAttribute("time"));
+				double tai = Double.parseDouble(get(epoch, "time"));
 				sim.solarSystem.setEpoch(tai);
 				break;
 			}
@@ -147,118 +378,383 @@ public class ScenarioLoader {
 	}
 
 	/**
-	 * Load individual objects
+	 * Read an individual object. The reader is left at the end of the object
 	 */
-	private void loadObjects() {
-		for (Element e : editor.getObjectElements()) {
-			String name = e.getAttribute("name");
-			String parentName = e.getAttribute("parent");
-			Body parent = (Body) sim.solarSystem.getObject(parentName);
-
-			Vector[] state = new Vector[2];
-			Element eState = (Element) e.getElementsByTagName("state").item(0);
-			switch (eState.getAttribute("type")) {
-			case "orbit":
-				double a = Double.parseDouble(eState.getAttribute("a"));
-				double i = Double.parseDouble(eState.getAttribute("i"));
-				double ecc = Double.parseDouble(eState.getAttribute("e"));
-				double peri = Double.parseDouble(eState.getAttribute("peri"));
-				double node = Double.parseDouble(eState.getAttribute("node"));
-				double v = Double.parseDouble(eState.getAttribute("v"));
-				Orbit orb = new Orbit(a, ecc, i, node, peri, v);
-				state = Astrophysics.toRV(orb, parent.mu, true);
-				break;
-			case "vector":
-				Element posElement = (Element) eState.getElementsByTagName(
-						"pos").item(0);
-				Vector pos = getVectorFromElement(posElement);
-				Element velElement = (Element) eState.getElementsByTagName(
-						"vel").item(0);
-				Vector vel = getVectorFromElement(velElement);
-				state[0] = pos;
-				state[1] = vel;
-				break;
-			case "tle":
-				Element eLine1 = (Element) eState.getElementsByTagName("line1")
-						.item(0);
-				Element eLine2 = (Element) eState.getElementsByTagName("line2")
-						.item(0);
-				TLE tle = new TLE(name, eLine1.getTextContent(),
-						eLine2.getTextContent());
-				orb = tle.getOrbit();
-				state = Astrophysics.toRV(orb, parent.mu, true);
-				break;
-			}
+	private ObjectElement readObject(XMLStreamReader reader)
+			throws XMLStreamException {
+		HashMap<String, String> eObject = getAttributes(reader);
+		HashMap<String, String> eState = null;
+		HashMap<String, String> ePos = null;
+		HashMap<String, String> eVel = null;
+		HashMap<String, String> eEpoch = null;
+		String line1 = null;
+		String line2 = null;
 
-			double epoch = Double.NaN; // in julian date
-			Element eEpoch = (Element) e.getElementsByTagName("epoch").item(0);
-			if(eEpoch != null) {
-				switch (eEpoch.getAttribute("type")) {
-				case "jd":
-					epoch = Double.parseDouble(eEpoch.getAttribute("day"));
+		int depth = 1;
+		while (depth > 0) {
+			int event = reader.next();
+			if (event == XMLStreamConstants.START_ELEMENT) {
+				depth++;
+				switch (reader.getLocalName()) {
+				case "state":
+					if (eState == null) {
+						eState = getAttributes(reader);
+					}
+					break;
+				case "pos":
+					if (ePos == null) {
+						ePos = getAttributes(reader);
+					}
+					break;
+				case "vel":
+					if (eVel == null) {
+						eVel = getAttributes(reader);
+					}
+					break;
+				case "line1":
+					line1 = reader.getElementText();
+					depth--;
+					break;
+				case "line2":
+					line2 = reader.getElementText();
+					depth--;
 					break;
-				case "gregorian":
-					// TODO make a decent Epoch class
+				case "epoch":
+					if (eEpoch == null) {
+						eEpoch = getAttributes(reader);
+					}
 					break;
 				}
+			} else if (event == XMLStreamConstants.END_ELEMENT) {
+				depth--;
 			}
+		}
+
+		ObjectElement element = new ObjectElement(eObject, objectCount++);
+		element.state = eState;
+		element.pos = ePos;
+		element.vel = eVel;
+		element.epoch = eEpoch;
+		element.line1 = line1;
+		element.line2 = line2;
+		return element;
+	}
+
+	/**
+	 * Make an individual object once its parent has been loaded. It's left
+	 * out if an object further on in the file has already taken its name
+	 */
+	private void loadObject(ObjectElement element) {
+		HashMap<String, String> eObject = element.object;
+		Integer later = objectNames.get(get(eObject, "name"));
+		if (later != null && later > element.index) {
+			return;
+		}
+		HashMap<String, String> eState = element.state;
+		HashMap<String, String> eEpoch = element.epoch;
+
+		String name = get(eObject, "name");
+		String parentName = get(eObject, "parent");
+		Body parent = (Body) getObject(parentName);
+
+		Vector[] state = new Vector[2];
+		switch (get(eState, "type")) {
+		case "orbit":
+			double a = Double.parseDouble(get(eState, "a"));
+			double i = Double.parseDouble(get(eState, "i"));
+			double ecc = Double.parseDouble(get(eState, "e"));
+			double peri = Double.parseDouble(get(eState, "peri"));
+			double node = Double.parseDouble(get(eState, "node"));
+			double v = Double.parseDouble(get(eState, "v"));
+			Orbit orb = new Orbit(a, ecc, i, node, peri, v);
+			state = Astrophysics.toRV(orb, parent.mu, true);
+			break;
+		case "vector":
+			state[0] = getVector(element.pos);
+			state[1] = getVector(element.vel);
+			break;
+		case "tle":
+			TLE tle = new TLE(name, element.line1, element.line2);
+			orb = tle.getOrbit();
+			state = Astrophysics.toRV(orb, parent.mu, true);
+			break;
+		}
 
-			SimObject object = null;
-			String type = e.getAttribute("type");
-			switch (type) {
-			case "ship":
-				object = new Ship(name, state, parent, epoch);
-				((Ship) object).storeRaw = true;
+		double epoch = Double.NaN; // in julian date
+		if (eEpoch != null) {
+			switch (get(eEpoch, "type")) {
+			case "jd":
+				epoch = Double.parseDouble(get(eEpoch, "day"));
 				break;
-			case "body":
-				double mass = Double.parseDouble(e.getAttribute("mass"));
-				double radius = Double.parseDouble(e.getAttribute("radius"));
-				object = new Body(name, parent, mass, radius, state, epoch);
+			case "gregorian":
+				// TODO make a decent Epoch class
 				break;
 			}
+		}
 
-			/*
-			 * If there is already an object by the same name, remove it and
-			 * replace it with the individual object
-			 */
-			SimObject duplicate = sim.solarSystem.getObject(object.name);
-			if (duplicate != null) {
-				sim.solarSystem.removeObject(duplicate);
-			}
+		SimObject object = null;
+		String type = get(eObject, "type");
+		switch (type) {
+		case "ship":
+			object = new Ship(name, state, parent, epoch);
+			((Ship) object).storeRaw = true;
+			break;
+		case "body":
+			double mass = Double.parseDouble(get(eObject, "mass"));
+			double radius = Double.parseDouble(get(eObject, "radius"));
+			object = new Body(name, parent, mass, radius, state, epoch);
+			break;
+		}
+
+		/*
+		 * If there is already an object by the same name, remove it and
+		 * replace it with the individual object
+		 */
+		SimObject duplicate = getObject(object.name);
+		if (duplicate != null) {
+			removeObject(duplicate);
 
-			sim.solarSystem.addObject(object);
+			// Plans already made for the ship are flown by its replacement
+			if (duplicate instanceof Ship && object instanceof Ship) {
+				for (Maneuver m : ((Ship) duplicate).getManeuvers()) {
+					((Ship) object).addManeuver(m);
+				}
+			}
 		}
+
+		objectNames.put(object.name, element.index);
+		addObject(object);
 	}
 
-	private Vector getVectorFromElement(Element e) {
-		double x = Double.parseDouble(e.getAttribute("x"));
-		double y = Double.parseDouble(e.getAttribute("y"));
-		double z = Double.parseDouble(e.getAttribute("z"));
+	private Vector getVector(HashMap<String, String> attributes) {
+		double x = Double.parseDouble(get(attributes, "x"));
+		double y = Double.parseDouble(get(attributes, "y"));
+		double z = Double.parseDouble(get(attributes, "z"));
 		return new VectorND(x, y, z);
 	}
 
 	/**
-	 * Load the flight plans from the scenario file. Call this AFTER init() and
-	 * simulation.start()
+	 * Read the commands of a flight plan. The reader is left at the end of the
+	 * plan
+	 */
+	private void readPlan(XMLStreamReader reader) throws XMLStreamException {
+		String name = get(getAttributes(reader), "name");
+		LinkedList<PlanCommand> queue = commands.get(name);
+		if (queue == null) {
+			queue = new LinkedList<PlanCommand>();
+			commands.put(name, queue);
+		}
+		PlanCommand command = null;
+		int depth = 1;
+		while (depth > 0) {
+			int event = reader.next();
+			if (event == XMLStreamConstants.START_ELEMENT) {
+				depth++;
+				switch (reader.getLocalName()) {
+				case "command":
+					command = new PlanCommand(name,
+							get(getAttributes(reader), "type"));
+					queue.add(command);
+					break;
+				case "param":
+					if (command != null) {
+						command.args.putAll(getAttributes(reader));
+					}
+					break;
+				}
+			} else if (event == XMLStreamConstants.END_ELEMENT) {
+				depth--;
+			}
+		}
+		loadPlan(name);
+	}
+
+	/**
+	 * Make the waiting commands of a ship into maneuvers, in order, until one
+	 * targets an object which hasn't been loaded yet
+	 */
+	private void loadPlan(String shipName) {
+		LinkedList<PlanCommand> queue = commands.get(shipName);
+		SimObject ship = getObject(shipName);
+		if (queue == null || !(ship instanceof Ship)) {
+			return;
+		}
+		while (!queue.isEmpty()) {
+			PlanCommand command = queue.getFirst();
+			String target = command.args.get("target");
+			if (target != null && getObject(target) == null) {
+				ArrayList<String> ships = targetedBy.get(target);
+				if (ships == null) {
+					ships = new ArrayList<String>();
+					targetedBy.put(target, ships);
+				}
+				if (!ships.contains(shipName)) {
+					ships.add(shipName);
+				}
+				return;
+			}
+			queue.removeFirst();
+			((Ship) ship).addManeuver(factory.createNewManeuver(sim,
+					command.type, command.args));
+		}
+		commands.remove(shipName);
+	}
+
+	/**
+	 * Make the flight plans which are still waiting at the end of the file.
+	 * Commands whose targets weren't found are made anyway, like the rest of
+	 * the plan
 	 */
 	public void loadPlans() {
-		NodeList plans = editor.getPlanNodes();
-		ManeuverFactory factory = new ManeuverFactory();
-		for (int i = 0; i < plans.getLength(); i++) {
-			Element plan = (Element) plans.item(i);
-			String name = plan.getAttribute("name");
-			Ship ship = (Ship) sim.solarSystem.getObject(name);
-			NodeList commands = plan.getElementsByTagName("command");
-			for (int j = 0; j < commands.getLength(); j++) {
-				Element command = (Element) commands.item(j);
-				String type = command.getAttribute("type");
-				HashMap<String, String> args = new HashMap<String, String>();
-				NodeList argNodes = command.getElementsByTagName("param");
-				for (int k = 0; k < argNodes.getLength(); k++) {
-					Node n = argNodes.item(k).getAttributes().item(0);
-					args.put(n.getNodeName(), n.getNodeValue());
+		for (LinkedList<PlanCommand> queue : commands.values()) {
+			for (PlanCommand command : queue) {
+				SimObject ship = getObject(command.ship);
+				if (!(ship instanceof Ship)) {
+					System.out.println(command.ship + " not found!");
+					break;
 				}
-				ship.addManeuver(factory.createNewManeuver(sim, type, args));
+				((Ship) ship).addManeuver(factory.createNewManeuver(sim,
+						command.type, command.args));
+			}
+		}
+		commands.clear();
+		targetedBy.clear();
+	}
+
+	/**
+	 * The parts of an <object> element, kept until its parent is loaded
+	 */
+	private static class ObjectElement {
+		private HashMap<String, String> object;
+		private int index;
+		private HashMap<String, String> state;
+		private HashMap<String, String> pos;
+		private HashMap<String, String> vel;
+		private HashMap<String, String> epoch;
+		private String line1;
+		private String line2;
+
+		private ObjectElement(HashMap<String, String> object, int index) {
+			this.object = object;
+			this.index = index;
+		}
+	}
+
+	/**
+	 * One command of a flight plan
+	 */
+	private static class PlanCommand {
+		private String ship;
+		private String type;
+		private HashMap<String, String> args;
+
+		private PlanCommand(String ship, String type) {
+			this.ship = ship;
+			this.type = type;
+			args = new HashMap<String, String>();
+		}
+	}
+
+	/**
+	 * @return the first loaded object with the name, like
+	 *         SolarSystem.getObject()
+	 */
+	private SimObject getObject(String name) {
+		LinkedList<SimObject> objects = names.get(name);
+		return objects == null ? null : objects.getFirst();
+	}
+
+	private void addObject(SimObject object) {
+		sim.solarSystem.addObject(object);
+		index(object);
+		loaded(object);
+	}
+
+	private void addObjects(ArrayList<SimObject> objects) {
+		sim.solarSystem.addObjects(objects);
+		for (SimObject o : objects) {
+			index(o);
+		}
+		for (SimObject o : objects) {
+			loaded(o);
+		}
+	}
+
+	private void index(SimObject object) {
+		LinkedList<SimObject> objects = names.get(object.name);
+		if (objects == null) {
+			objects = new LinkedList<SimObject>();
+			names.put(object.name, objects);
+		}
+		objects.add(object);
+	}
+
+	/**
+	 * Remove an object from the solar system. A body's children go with it
+	 */
+	private void removeObject(SimObject object) {
+		if (object instanceof Body) {
+			for (SimObject child : ((Body) object).getChildren()) {
+				unindex(child);
+			}
+		}
+		unindex(object);
+		sim.solarSystem.removeObject(object);
+	}
+
+	/**
+	 * Remove an object from the names, and tell the system loader if it's a
+	 * ship so later groups don't bring it back
+	 */
+	private void unindex(SimObject object) {
+		if (object instanceof Ship) {
+			loader.removeShip((Ship) object);
+		}
+		LinkedList<SimObject> objects = names.get(object.name);
+		if (objects != null) {
+			objects.remove(object);
+			if (objects.isEmpty()) {
+				names.remove(object.name);
+			}
+		}
+	}
+
+	/**
+	 * @return the attributes of the current start element
+	 */
+	private static HashMap<String, String> getAttributes(
+			XMLStreamReader reader) {
+		HashMap<String, String> attributes = new HashMap<String, String>();
+		for (int i = 0; i < reader.getAttributeCount(); i++) {
+			attributes.put(reader.getAttributeLocalName(i),
+					reader.getAttributeValue(i));
+		}
+		return attributes;
+	}
+
+	/**
+	 * @return the attribute, or an empty string if it isn't there
+	 */
+	private static String get(HashMap<String, String> attributes, String key) {
+		if (attributes == null) {
+			return "";
+		}
+		String value = attributes.get(key);
+		return value == null ? "" : value;
+	}
+
+	/**
+	 * Skip to the end of the current element
+	 */
+	private static void skipElement(XMLStreamReader reader)
+			throws XMLStreamException {
+		int depth = 1;
+		while (depth > 0) {
+			int event = reader.next();
+			if (event == XMLStreamConstants.START_ELEMENT) {
+				depth++;
+			} else if (event == XMLStreamConstants.END_ELEMENT) {
+				depth--;
 			}
 		}
 	}
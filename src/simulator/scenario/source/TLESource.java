@@ -18,6 +18,32 @@ public class TLESource implements Source {
 		args.put("name", name);
 	}
 
+	/**
+	 * @param propagator
+	 *            "sgp4" to evaluate the ships with SGP4, or empty for two-body
+	 *            orbits
+	 */
+	public void setPropagator(String propagator) {
+		if (propagator.isEmpty()) {
+			args.remove("propagator");
+		} else {
+			args.put("propagator", propagator);
+		}
+	}
+
+	/**
+	 * @param history
+	 *            path of an archive of past element sets for the ships, or
+	 *            empty for none
+	 */
+	public void setHistory(String history) {
+		if (history.isEmpty()) {
+			args.remove("history");
+		} else {
+			args.put("history", history);
+		}
+	}
+
 	@Override
 	public HashMap<String, String> getArgs() {
 		return args;
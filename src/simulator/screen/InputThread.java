@@ -144,7 +144,11 @@ public class InputThread {
 		double min = Double.MAX_VALUE;
 		SimObject closest = sim.getFocus();
 		for(SimObject o: candidates) {
-			Vector pos = getScreenPos(o.getAbsolutePos());
+			Vector absPos = o.getPublishedAbsolutePos();
+			if (absPos == null) {
+				continue;
+			}
+			Vector pos = getScreenPos(absPos);
 			double dist = pos.subtract(cursorPos).magnitude();
 			if(dist < min) {
 				min = dist;
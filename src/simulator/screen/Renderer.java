@@ -1,7 +1,15 @@
 package simulator.screen;
 
+import simulator.simObject.SimObject;
+
 public interface Renderer {
 	public void initGL();
-	public void update();
+
+	/**
+	 * Draw one frame with the camera looking at the focus. Everything in the
+	 * frame, the camera included, is drawn from the same published state
+	 */
+	public void update(Camera camera, SimObject focus);
+
 	public void dispose();
 }
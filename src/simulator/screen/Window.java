@@ -65,11 +65,7 @@ public class Window {
 
 			SimObject focus = sim.getFocus();
 			if (focus != null) {
-				focus.superLock(true);
-				camera.lookAt(focus.getAbsolutePos());
-				camera.apply();
-				renderer.update();
-				focus.superLock(false);
+				renderer.update(camera, focus);
 			}
 			
 			gui.setFocus(sim.getFocus());
@@ -1,7 +1,6 @@
 package simulator.simObject;
 
 import java.util.ArrayList;
-import java.util.concurrent.locks.ReentrantLock;
 
 import simulator.Simulation;
 import simulator.astro.Astrophysics;
@@ -34,15 +33,20 @@ public class Body extends SimObject {
 
 	protected ArrayList<SimObject> children;
 
+	/**
+	 * The bodies among the children. Ships come and go, but these only change
+	 * while the solar system is loaded
+	 */
+	protected ArrayList<Body> satellites = new ArrayList<Body>();
+
 	public Body() {
 		super();
 		color = new float[] { 1.0f, 1.0f, 1.0f };
-		sphere = new Sphere();
 		radius = 1.0;
 		mu = Astrophysics.G;
 		mass = 1.0;
-		pos = new VectorND(0, 0, 0);
-		vel = new VectorND(0, 0, 0);
+		store = new StateStore();
+		store.add(this);
 		name = "null";
 		children = new ArrayList<SimObject>();
 	}
@@ -58,29 +62,29 @@ public class Body extends SimObject {
 			Vector[] state, double epoch) {
 		super();
 		color = new float[] { 1.0f, 1.0f, 1.0f };
-		lock = new ReentrantLock();
-		sphere = new Sphere();
 		this.name = name;
 		children = new ArrayList<SimObject>();
 		this.mass = mass;
 		mu = mass * Astrophysics.G;
 		this.radius = radius;
-		pos = state[0];
-		vel = state[1];
 		if (parent != null) {
 			setParent(parent);
+			setState(state[0], state[1]);
 			this.orb = Astrophysics.toOrbitalElements(state[0], state[1],
 					parent.mu);
 			soiRadius = orb.a * Math.pow(mass / parent.mass, 2.0 / 5.0);
 		} else {
+			store = new StateStore();
+			store.add(this);
+			setState(state[0], state[1]);
 			soiRadius = Double.MAX_VALUE;
 		}
 
 		double now = System.currentTimeMillis() / 1000.0;
 		if (Simulation.REAL_TIME) {
-			lastUpdatedTime = Time.jdToTAI(epoch);
+			setLastUpdatedTime(Time.jdToTAI(epoch));
 		} else {
-			lastUpdatedTime = now;
+			setLastUpdatedTime(now);
 		}
 		updateTo(now);
 	}
@@ -89,8 +93,43 @@ public class Body extends SimObject {
 		return children;
 	}
 
+	public ArrayList<Body> getSatellites() {
+		return satellites;
+	}
+
+	/**
+	 * Fit a Chebyshev ephemeris to the orbit over the window. Every state
+	 * query inside the window uses it instead of propagating
+	 * 
+	 * @param start
+	 *            TAI epoch of the start of the window, in seconds
+	 * @param end
+	 *            TAI epoch of the end of the window, in seconds
+	 */
+	public void fitEphemeris(double start, double end) {
+		if (parent != null) {
+			store.fitEphemeris(row, start, end);
+		}
+	}
+
+	@Override
+	public void setParent(Body b) {
+		Body oldParent = parent;
+		super.setParent(b);
+		if (b != null && b != oldParent) {
+			if (oldParent != null) {
+				oldParent.satellites.remove(this);
+			}
+			b.satellites.add(this);
+		}
+	}
+
 	@Override
 	protected void renderPhysical() {
+		if (sphere == null) {
+			// Created on the render thread, so headless runs never load GLU
+			sphere = new Sphere();
+		}
 		sphere.draw((float) radius, 16, 16);
 	}
 }
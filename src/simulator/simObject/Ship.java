@@ -1,13 +1,20 @@
 package simulator.simObject;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Set;
 
 import simulator.Simulation;
 import simulator.astro.Astrophysics;
+import simulator.astro.Brent;
+import simulator.astro.MOID;
 import simulator.astro.Orbit;
 import simulator.astro.Time;
 import simulator.plans.maneuvers.Maneuver;
 import simulator.tle.TLE;
+import simulator.tle.TLEHistory;
 
 import com.pi.math.vector.Vector;
 
@@ -22,22 +29,70 @@ public class Ship extends SimObject {
 	
 	private ArrayList<Maneuver> maneuvers;
 
+	/**
+	 * The elements the ship was made from, or null
+	 */
+	private TLE tle;
+
+	/**
+	 * Every element set loaded for the ship's satellite, or null
+	 */
+	private TLEHistory history;
+
+	/**
+	 * The TAI epochs after which and up to which the element set in use is
+	 * the nearest in the history, and the size of the history they were
+	 * found from. Found again when the set or the history changes
+	 */
+	private double[] nearestSpan = new double[2];
+	private int nearestSize = -1;
+
+	/**
+	 * The Celestrak categories the ship was loaded from
+	 */
+	private LinkedHashSet<String> categories = new LinkedHashSet<String>();
+
+	/**
+	 * The intercept search never steps less than 1 / MIN_STEPS of the time
+	 * searched, and finds the entry time to within INTERCEPT_TOLERANCE
+	 * seconds
+	 */
+	private static final int MIN_STEPS = 2000;
+	private static final double INTERCEPT_TOLERANCE = 1E-3;
+
+	/**
+	 * How far below the true MOID the cached bound may be, as a fraction of
+	 * the target's SOI radius
+	 */
+	private static final double MOID_TOLERANCE = 0.05;
+
+	/**
+	 * MOID with each sibling body checked, by the revisions of both states
+	 */
+	private HashMap<Body, CachedMOID> moids = new HashMap<Body, CachedMOID>();
+
 	public Ship(TLE tle, Body parent) {
 		super();
 		color = new float[] { 1.0f, .2f, .2f };
 		maneuvers = new ArrayList<Maneuver>();
 		name = tle.name;
+		this.tle = tle;
 		setParent(parent);
 		this.orb = tle.getOrbit();
 		Vector[] state = Astrophysics.toRV(orb, parent.mu, false);
-		pos = state[0];
-		vel = state[1];
+		setState(state[0], state[1]);
 		double now = System.currentTimeMillis() / 1000.0;
 		if (Simulation.REAL_TIME) {
-			lastUpdatedTime = Time.jdToTAI(tle.getEpoch());
+			setLastUpdatedTime(Time.jdToTAI(tle.getEpoch()));
 		} else {
-			lastUpdatedTime = now;
+			setLastUpdatedTime(now);
 		}
+
+		/*
+		 * Evaluate the TLE elements directly instead of stepping from the last
+		 * state. Burns and SOI changes re-anchor the elements
+		 */
+		store.anchor(row);
 		updateTo(now);
 	}
 
@@ -57,17 +112,151 @@ public class Ship extends SimObject {
 		setParent(parent);
 		this.orb = Astrophysics
 				.toOrbitalElements(state[0], state[1], parent.mu);
-		pos = state[0];
-		vel = state[1];
+		setState(state[0], state[1]);
 		double now = System.currentTimeMillis() / 1000.0;
 		if (Simulation.REAL_TIME && !Double.isNaN(epoch)) {
-			lastUpdatedTime = Time.jdToTAI(epoch);
+			setLastUpdatedTime(Time.jdToTAI(epoch));
 		} else {
-			lastUpdatedTime = now;
+			setLastUpdatedTime(now);
 		}
 		updateTo(now);
 	}
 
+	/**
+	 * Evaluate the ship's TLE with SGP4 instead of as a two-body orbit. The
+	 * ship goes back to two-body propagation after its first burn or SOI
+	 * change. Does nothing for ships which weren't made from a TLE
+	 * 
+	 * @param use
+	 *            false to go back to two-body propagation from the current
+	 *            state
+	 */
+	public void useSGP4(boolean use) {
+		if (tle != null) {
+			store.setSGP4(row, use ? tle.getSGP4() : null);
+		}
+	}
+
+	/**
+	 * @return true if the ship is currently evaluated with SGP4
+	 */
+	public boolean isUsingSGP4() {
+		return store.usesSGP4(row);
+	}
+
+	/**
+	 * Mark the ship as crashed, or bring it back when a collision is
+	 * reversed. A destroyed ship is held where it hit, and isn't drawn or
+	 * planned
+	 */
+	public void setDestroyed(boolean destroyed) {
+		store.setFrozen(row, destroyed);
+	}
+
+	public boolean isDestroyed() {
+		return store.isFrozen(row);
+	}
+
+	/**
+	 * @return the elements the ship was made from, or null
+	 */
+	public TLE getTLE() {
+		return tle;
+	}
+
+	/**
+	 * @param history
+	 *            every element set loaded for the ship's satellite. Sets added
+	 *            to it later are used too
+	 */
+	public void setTLEHistory(TLEHistory history) {
+		this.history = history;
+		nearestSize = -1;
+	}
+
+	public TLEHistory getTLEHistory() {
+		return history;
+	}
+
+	/**
+	 * @param epochTAI
+	 *            epoch in TAI seconds
+	 * @return the loaded element set nearest to the epoch, or the set in use
+	 *         if there's no history. Null if the ship wasn't made from a TLE
+	 */
+	public TLE getNearestTLE(double epochTAI) {
+		if (history == null) {
+			return tle;
+		}
+		TLE nearest = history.getNearest(Time.taiToJD(epochTAI));
+		return nearest == null ? tle : nearest;
+	}
+
+	/**
+	 * Check whether the element set in use is still the nearest to the epoch
+	 * without searching the history. Only needs a search once the epoch
+	 * crosses halfway to a neighbouring set, or sets have been added
+	 * 
+	 * @param epochTAI
+	 *            epoch in TAI seconds
+	 * @return false if getNearestTLE() would give another set
+	 */
+	public boolean isNearestTLE(double epochTAI) {
+		if (history == null || tle == null) {
+			return true;
+		}
+		int size = history.size();
+		if (size != nearestSize) {
+			nearestSize = size;
+			TLE nearest = history.getNearest(tle.getEpoch(), nearestSpan);
+			if (nearest == null) {
+				nearestSpan[0] = Double.NEGATIVE_INFINITY;
+				nearestSpan[1] = Double.POSITIVE_INFINITY;
+			} else if (nearest == tle) {
+				nearestSpan[0] = Time.jdToTAI(nearestSpan[0]);
+				nearestSpan[1] = Time.jdToTAI(nearestSpan[1]);
+			} else {
+				// The set in use isn't in the history, so any set is nearer
+				nearestSpan[0] = Double.POSITIVE_INFINITY;
+				nearestSpan[1] = Double.NEGATIVE_INFINITY;
+			}
+		}
+		return epochTAI > nearestSpan[0] && epochTAI <= nearestSpan[1];
+	}
+
+	/**
+	 * Start again from another element set of the same satellite. The state
+	 * is found again at the set's epoch, and the ship stays on SGP4 if it was
+	 * on it. Events found from the old elements are left to the caller
+	 */
+	public void setTLE(TLE tle) {
+		boolean sgp4 = isUsingSGP4();
+		this.tle = tle;
+		nearestSize = -1;
+		orb = tle.getOrbit();
+		Vector[] state = Astrophysics.toRV(orb, parent.mu, false);
+		setState(state[0], state[1]);
+		setLastUpdatedTime(Time.jdToTAI(tle.getEpoch()));
+		if (sgp4) {
+			useSGP4(true);
+		}
+	}
+
+	/**
+	 * Tag the ship as being part of a Celestrak category
+	 */
+	public void addCategory(String category) {
+		categories.add(category);
+	}
+
+	/**
+	 * @return the Celestrak categories the ship was loaded from, in the order
+	 *         they were loaded
+	 */
+	public Set<String> getCategories() {
+		return Collections.unmodifiableSet(categories);
+	}
+
 	public void addManeuver(Maneuver m) {
 		m.setShip(this);
 		maneuvers.add(m);
@@ -84,15 +273,14 @@ public class Ship extends SimObject {
 	 *         its apoapsis is beyond the parent's SOI radius
 	 */
 	public boolean isEscapingSOI() {
-		Orbit orb = Astrophysics.toOrbitalElements(pos, vel, parent.mu);
+		Orbit orb = Astrophysics.toOrbitalElements(getPos(), getVel(),
+				parent.mu);
 //		System.out.println("e: " + orb.e);
 //		System.out.println("v: " + orb.v);
 		if (orb.e > 1) {
 			return true;
 		} else {
-			orb.v = Math.PI;
-			double apoapsis = Astrophysics.toRV(orb, parent.mu, false)[0]
-					.magnitude();
+			double apoapsis = orb.a * (1.0 + orb.e);
 			if (apoapsis > parent.soiRadius) {
 				return true;
 			}
@@ -102,56 +290,178 @@ public class Ship extends SimObject {
 
 	/**
 	 * Check if the shapes of the two orbits allow the ship to pass within the
-	 * sphere of influence of Body b
-	 * 
-	 * TODO more accurate check involving other orbital elements
+	 * sphere of influence of Body b. The orbits' apses are compared first,
+	 * then their MOID, which is cached until either orbit changes. Orbits
+	 * which aren't elliptic always pass
 	 * 
 	 * @param b
 	 *            a sibling of this ship
-	 * @return
+	 * @return false if the ship certainly can't reach the sphere
 	 */
 	public boolean canIntercept(Body b) {
-		Orbit orb_tgt = Astrophysics.toOrbitalElements(b.pos, b.vel, b.parent.mu);
-		Orbit orb_int = Astrophysics.toOrbitalElements(pos, vel, parent.mu);
-		
-		if(Math.abs(orb_tgt.a - orb_int.a) < b.soiRadius) {
+		MOID.Ellipse orb_int = MOID.Ellipse.fromState(getPos(), getVel(),
+				parent.mu);
+		MOID.Ellipse orb_tgt = MOID.Ellipse.fromState(b.getPos(), b.getVel(),
+				b.parent.mu);
+		if (orb_int == null || orb_tgt == null) {
 			return true;
 		}
-		
-		double peri2, apo1;
-		if(orb_tgt.a > orb_int.a) {
-			peri2 = orb_tgt.a * (1-orb_tgt.e);
-			apo1 = orb_int.a * (1+orb_int.e);
-		} else {
-			peri2 = orb_int.a * (1-orb_int.e);
-			apo1 = orb_tgt.a * (1+orb_tgt.e);
+
+		if (orb_tgt.getPeriapsis() - orb_int.getApoapsis() > b.soiRadius
+				|| orb_int.getPeriapsis() - orb_tgt.getApoapsis() > b.soiRadius) {
+			return false;
 		}
-		
-		if(peri2 < apo1) {
-			return true;
-		} else {
-			return peri2 - apo1 < b.soiRadius;
+
+		long shipRevision = store.getRevision(row);
+		long bodyRevision = b.store.getRevision(b.row);
+		CachedMOID cached = moids.get(b);
+		if (cached == null || cached.shipRevision != shipRevision
+				|| cached.bodyRevision != bodyRevision) {
+			cached = new CachedMOID(shipRevision, bodyRevision, MOID.between(
+					orb_int, orb_tgt, b.soiRadius * MOID_TOLERANCE));
+			moids.put(b, cached);
+		}
+		return cached.moid <= b.soiRadius;
+	}
+
+	private static class CachedMOID {
+		final long shipRevision;
+		final long bodyRevision;
+		final double moid;
+
+		CachedMOID(long shipRevision, long bodyRevision, double moid) {
+			this.shipRevision = shipRevision;
+			this.bodyRevision = bodyRevision;
+			this.moid = moid;
 		}
 	}
 	
-	public double timeToIntercept(Body b) {
-		if(!canIntercept(b)) {
+	/**
+	 * Find when the ship first enters the sphere of influence of Body b,
+	 * within one orbit or before the ship escapes its parent.
+	 * 
+	 * The gap between the ship and the edge of the sphere can't close faster
+	 * than the sum of the two objects' periapsis speeds, so the search steps
+	 * forward by as much as the gap allows. Close to the sphere the steps
+	 * shrink to MIN_STEPS per window, and any dip in the gap between steps
+	 * is minimized in case the pass is shorter than a step. The entry is
+	 * then found with Brent's method.
+	 * 
+	 * @param b
+	 *            a sibling of this ship
+	 * @return seconds from the ship's epoch, or -1 if it doesn't get there
+	 */
+	public double timeToIntercept(final Body b) {
+		if (!canIntercept(b)) {
+			return -1;
+		}
+
+		Vector pos = getPos();
+		Vector vel = getVel();
+		double mu = parent.mu;
+		Orbit orb = Astrophysics.toOrbitalElements(pos, vel, mu);
+		double window = Double.POSITIVE_INFINITY;
+		if (orb.e < 1.0) {
+			window = 2.0 * Math.PI * Math.sqrt(orb.a * orb.a * orb.a / mu);
+		}
+		if (isEscapingSOI()) {
+			window = Math.min(window, Astrophysics.timeToEscape(pos, vel, mu,
+					parent.soiRadius));
+		}
+		if (!(window > 0) || Double.isInfinite(window)) {
 			return -1;
 		}
-		
-		double a = Astrophysics.toOrbitalElements(pos, vel, parent.mu).a;
-		double period = 2.0*Math.PI*Math.sqrt((a*a*a)/parent.mu);
-		int samples = 1000;
-		for(int j=0; j<samples; j++) {
-			double t = period * j / (double) samples;
-			Vector[] state_ship = Astrophysics.kepler(pos, vel, parent.mu, t);
-			Vector[] state_body = Astrophysics.kepler(b.pos, b.vel, b.parent.mu, t);
-			double r = state_ship[0].subtract(state_body[0]).magnitude();
-			if(r < b.soiRadius) {
-				return t;
+
+		double epoch = getLastUpdatedTime();
+		InterceptGap gap = new InterceptGap(b, pos, vel, epoch);
+
+		Vector[] bodyState = b.getStateAt(epoch);
+		Orbit orb_body = Astrophysics.toOrbitalElements(bodyState[0],
+				bodyState[1], b.parent.mu);
+		double maxSpeed = periapsisSpeed(orb, mu)
+				+ periapsisSpeed(orb_body, b.parent.mu);
+		double minStep = window / MIN_STEPS;
+
+		double tPrev = Double.NaN;
+		double gPrev = Double.NaN;
+		double t0 = 0;
+		double g0 = gap.value(t0);
+		if (g0 <= 0) {
+			return 0;
+		}
+		while (t0 < window) {
+			double t1 = Math.min(t0 + Math.max(g0 / maxSpeed, minStep),
+					window);
+			double g1 = gap.value(t1);
+			if (g1 <= 0) {
+				return Brent.root(gap, t0, t1, INTERCEPT_TOLERANCE);
 			}
+
+			// A dip deep enough to reach the sphere between the steps
+			if (gPrev > g0 && g1 > g0 && g0 < maxSpeed * (t1 - tPrev)) {
+				double tMin = Brent.minimize(gap, tPrev, t1,
+						INTERCEPT_TOLERANCE);
+				if (gap.value(tMin) <= 0) {
+					return Brent.root(gap, tPrev, tMin, INTERCEPT_TOLERANCE);
+				}
+			}
+
+			tPrev = t0;
+			gPrev = g0;
+			t0 = t1;
+			g0 = g1;
+			gap.rebase(tPrev);
 		}
-		
 		return -1;
 	}
+
+	/**
+	 * The distance from the ship to the edge of a body's sphere of
+	 * influence, t seconds after the ship's epoch. The ship is propagated
+	 * from the last rebase(), so kepler() is only asked for short steps. It
+	 * doesn't always converge over long ones
+	 */
+	private class InterceptGap implements Brent.Function {
+		private final Body b;
+		private final double epoch;
+		private final double mu;
+		private final double soi;
+		private final double[] base = new double[6];
+		private double baseTime = 0;
+		private final double[] future_ship = new double[6];
+		private final double[] future_body = new double[6];
+
+		public InterceptGap(Body b, Vector pos, Vector vel, double epoch) {
+			this.b = b;
+			this.epoch = epoch;
+			mu = parent.mu;
+			soi = b.soiRadius;
+			Astrophysics.packState(pos, vel, base);
+		}
+
+		/**
+		 * Propagate from t from now on
+		 */
+		public void rebase(double t) {
+			Astrophysics.kepler(base, mu, t - baseTime, base);
+			baseTime = t;
+		}
+
+		@Override
+		public double value(double t) {
+			Astrophysics.kepler(base, mu, t - baseTime, future_ship);
+			b.store.stateAt(b.row, epoch + t, future_body);
+			double dx = future_ship[0] - future_body[0];
+			double dy = future_ship[1] - future_body[1];
+			double dz = future_ship[2] - future_body[2];
+			return Math.sqrt(dx * dx + dy * dy + dz * dz) - soi;
+		}
+	}
+
+	/**
+	 * @return the fastest speed on the orbit
+	 */
+	private static double periapsisSpeed(Orbit orb, double mu) {
+		return Math.sqrt(mu / orb.p) * (1.0 + orb.e);
+	}
 }
@@ -5,7 +5,6 @@ import static org.lwjgl.opengl.GL15.*;
 
 import java.nio.DoubleBuffer;
 import java.util.ArrayList;
-import java.util.concurrent.locks.ReentrantLock;
 
 import org.lwjgl.BufferUtils;
 
@@ -13,26 +12,43 @@ import com.pi.math.vector.Vector;
 import com.pi.math.vector.VectorND;
 
 import simulator.astro.Astrophysics;
-import simulator.astro.Conic;
 import simulator.astro.Orbit;
 
 public abstract class SimObject {
 	public Body parent;
-	public Vector pos;
-	public Vector vel;
 	public String name;
-	protected Orbit orb;
-	public double lastUpdatedTime;
+	protected volatile Orbit orb;
+
+	/**
+	 * The orbit polyline in perifocal coordinates. It only changes when the
+	 * orbit does, so it's generated on the render thread when the state
+	 * store's revision for this object changes and stays uploaded until then.
+	 * orbitFrame rotates it into the parent's frame. Only used on the render
+	 * thread, and created in initGL() so headless runs never touch LWJGL
+	 */
 	protected DoubleBuffer orbitBuffer;
+	private DoubleBuffer orbitFrame;
+	private long orbitRevision = -1;
+	private boolean hasOrbitPath;
 	protected final int BUFFER_SIZE = 50;
 	protected float[] color;
 	protected int vHandle;
 
 	/**
-	 * Each object needs a lock for rendering. This is to prevent stutters while
-	 * focusing on the object or while drawing its orbit
+	 * Scratch state for the allocation-free kepler()
+	 */
+	private final double[] state = new double[6];
+
+	/**
+	 * The store which holds this object's state. Shared with the parent, so
+	 * every object under the same root uses the same store
 	 */
-	public ReentrantLock lock;
+	protected StateStore store;
+
+	/**
+	 * This object's row in the store. Maintained by the store
+	 */
+	int row = -1;
 
 	public RenderDetail renderDetail = RenderDetail.MAX;
 
@@ -40,12 +56,9 @@ public abstract class SimObject {
 		LOW, MAX
 	}
 
-	public SimObject() {
-		lock = new ReentrantLock();
-		orbitBuffer = BufferUtils.createDoubleBuffer(BUFFER_SIZE * 3);
-	}
-
 	public void initGL() {
+		orbitBuffer = BufferUtils.createDoubleBuffer(BUFFER_SIZE * 3);
+		orbitFrame = BufferUtils.createDoubleBuffer(16);
 		vHandle = glGenBuffers();
 		glBindBuffer(GL_ARRAY_BUFFER, vHandle);
 		glBufferData(GL_ARRAY_BUFFER, orbitBuffer, GL_STATIC_DRAW);
@@ -64,35 +77,50 @@ public abstract class SimObject {
 	}
 
 	public void render(RenderDetail detail) {
+		render(detail, store.getSnapshot());
+	}
+
+	/**
+	 * @param snapshot
+	 *            the snapshot of this object's store taken for the frame, so
+	 *            every object in the frame is drawn at the same epoch. The
+	 *            object isn't drawn until it's in a snapshot
+	 */
+	public void render(RenderDetail detail, StateStore.Snapshot snapshot) {
 		renderDetail = detail;
+		Vector absPos = getPublishedAbsolutePos(snapshot);
+		if (absPos == null) {
+			return;
+		}
 
 		glPushMatrix();
 
 		// Position to body
-		Vector absPos = getAbsolutePos();
 		glTranslated(absPos.get(0), absPos.get(1), absPos.get(2));
 
 		// Set object-specific color
 		glColor3f(color[0], color[1], color[2]);
 
-		// Draw conic
-		if (detail.ordinal() > RenderDetail.LOW.ordinal()) {
-			if (parent != null) {
-				lock.lock();
-
-				glEnableClientState(GL_VERTEX_ARRAY);
+		// Draw conic around the parent
+		Vector parentPos = parent == null ? null : parent
+				.getPublishedAbsolutePos(snapshot);
+		if (detail.ordinal() > RenderDetail.LOW.ordinal() && parentPos != null
+				&& updateOrbitPath(snapshot)) {
+			Vector focus = parentPos.subtract(absPos);
 
-				glBindBuffer(GL_ARRAY_BUFFER, vHandle);
-				glBufferSubData(GL_ARRAY_BUFFER, 0L, orbitBuffer);
+			glPushMatrix();
+			glTranslated(focus.get(0), focus.get(1), focus.get(2));
+			glMultMatrix(orbitFrame);
 
-				glVertexPointer(3, GL_DOUBLE, 0, 0L);
+			glEnableClientState(GL_VERTEX_ARRAY);
 
-				glDrawArrays(GL_LINE_STRIP, 0, orbitBuffer.capacity());
+			glBindBuffer(GL_ARRAY_BUFFER, vHandle);
+			glVertexPointer(3, GL_DOUBLE, 0, 0L);
 
-				glDisableClientState(GL_VERTEX_ARRAY);
+			glDrawArrays(GL_LINE_STRIP, 0, BUFFER_SIZE);
 
-				lock.unlock();
-			}
+			glDisableClientState(GL_VERTEX_ARRAY);
+			glPopMatrix();
 		}
 
 		// Draw point
@@ -118,18 +146,33 @@ public abstract class SimObject {
 
 	public void setParent(Body b) {
 		if (b != null) {
-			b.lock.lock();
+			if (store == null) {
+				store = b.store;
+				store.add(this);
+			}
 			if (parent != null) {
+				/*
+				 * Rebase at this object's own epoch. Other objects may be at
+				 * a different one while events are buffered
+				 */
+				double epoch = getLastUpdatedTime();
 				Vector absPos = getAbsolutePos();
 				Vector absVel = getAbsoluteVel();
-				
-				parent.getChildren().remove(this);
-				pos = absPos.subtract(b.getAbsolutePos());
-				vel = absVel.subtract(b.getAbsoluteVel());
+
+				ArrayList<SimObject> siblings = parent.getChildren();
+				synchronized (siblings) {
+					siblings.remove(this);
+				}
+				setState(absPos.subtract(b.getAbsolutePosAt(epoch)),
+						absVel.subtract(b.getAbsoluteVelAt(epoch)));
+			}
+			ArrayList<SimObject> children = b.getChildren();
+			synchronized (children) {
+				children.add(this);
 			}
-			b.getChildren().add(this);
 			parent = b;
-			b.lock.unlock();
+			store.mu[row] = b.mu;
+			store.stateChanged(row);
 		}
 	}
 
@@ -137,81 +180,300 @@ public abstract class SimObject {
 		return new ArrayList<SimObject>();
 	}
 
-	protected void update(double delta) {
-		if (parent != null) {
-			lock.lock(); // TODO does this ruin epoch synchronization?
-			Vector[] state = Astrophysics.kepler(pos, vel, parent.mu, delta);
-			pos = state[0];
-			vel = state[1];
-
-			/*
-			 * Buffer the orbit for the render thread
-			 */
-			if (renderDetail.ordinal() > RenderDetail.LOW.ordinal()) {
-				updateOrbitBuffer();
-			}
-			lock.unlock();
+	/**
+	 * Generate the orbit polyline again if the orbit has changed since it was
+	 * last generated. Render thread only
+	 * 
+	 * @return true if there is a polyline to draw
+	 */
+	private boolean updateOrbitPath(StateStore.Snapshot snapshot) {
+		if (snapshot == null) {
+			return false;
+		}
+		long revision = snapshot.getRevision(this);
+		if (revision < 0) {
+			return false;
+		}
+		if (revision != orbitRevision) {
+			Vector[] s = snapshot.getState(this);
+			hasOrbitPath = generateOrbitPath(s[0], s[1]);
+			orbitRevision = revision;
 		}
+		return hasOrbitPath;
 	}
 
-	private void updateOrbitBuffer() {
-		orb = Astrophysics.toOrbitalElements(pos, vel, parent.mu);
-		Conic c = new Conic(orb);
-		if (orb.e < 1.0) {
-			double currentAnomaly = Astrophysics.vToAnomaly(orb.e, orb.v);
+	/**
+	 * Fill the orbit buffer with the conic in perifocal coordinates, with
+	 * periapsis along x, and orbitFrame with the rotation into the parent's
+	 * frame. Ellipses are sampled evenly in eccentric anomaly. Hyperbolas
+	 * are sampled in true anomaly out to the parent's sphere of influence.
+	 * 
+	 * @return false if the state doesn't describe an orbit
+	 */
+	private boolean generateOrbitPath(Vector pos, Vector vel) {
+		double mu = parent.mu;
+		double rx = pos.get(0), ry = pos.get(1), rz = pos.get(2);
+		double vx = vel.get(0), vy = vel.get(1), vz = vel.get(2);
+		double r = Math.sqrt(rx * rx + ry * ry + rz * rz);
+		double v2 = vx * vx + vy * vy + vz * vz;
+		double rDotV = rx * vx + ry * vy + rz * vz;
+
+		// Specific angular momentum
+		double hx = ry * vz - rz * vy;
+		double hy = rz * vx - rx * vz;
+		double hz = rx * vy - ry * vx;
+		double h = Math.sqrt(hx * hx + hy * hy + hz * hz);
+		if (mu <= 0 || r == 0 || h == 0) {
+			return false;
+		}
+
+		// Eccentricity vector, pointing at periapsis
+		double c1 = (v2 - mu / r) / mu;
+		double c2 = rDotV / mu;
+		double ex = c1 * rx - c2 * vx;
+		double ey = c1 * ry - c2 * vy;
+		double ez = c1 * rz - c2 * vz;
+		double e = Math.sqrt(ex * ex + ey * ey + ez * ez);
+		double p = h * h / mu;
+
+		// Perifocal axes. A circle has no periapsis, so start at the object
+		double Px, Py, Pz;
+		if (e > 1E-9) {
+			Px = ex / e;
+			Py = ey / e;
+			Pz = ez / e;
+		} else {
+			Px = rx / r;
+			Py = ry / r;
+			Pz = rz / r;
+		}
+		double Wx = hx / h, Wy = hy / h, Wz = hz / h;
+		double Qx = Wy * Pz - Wz * Py;
+		double Qy = Wz * Px - Wx * Pz;
+		double Qz = Wx * Py - Wy * Px;
+
+		// Column-major, as OpenGL expects
+		orbitFrame.clear();
+		orbitFrame.put(Px).put(Py).put(Pz).put(0);
+		orbitFrame.put(Qx).put(Qy).put(Qz).put(0);
+		orbitFrame.put(Wx).put(Wy).put(Wz).put(0);
+		orbitFrame.put(0).put(0).put(0).put(1);
+		orbitFrame.flip();
+
+		orbitBuffer.clear();
+		if (e < 1.0) {
+			double a = p / (1.0 - e * e);
+			double b = a * Math.sqrt(1.0 - e * e);
 			for (int i = 0; i < BUFFER_SIZE; i++) {
-				double nextAnomaly = i * 2.0 * Math.PI / (BUFFER_SIZE - 1)
-						+ currentAnomaly;
-				nextAnomaly %= 2.0 * Math.PI;
-				nextAnomaly = Astrophysics.anomalyToV(orb.e, nextAnomaly);
-				Vector vertex = c.getPosition(nextAnomaly);
-				vertex.subtract(pos);
-				orbitBuffer.put(vertex.get(0)).put(vertex.get(1))
-						.put(vertex.get(2));
+				double E = i * 2.0 * Math.PI / (BUFFER_SIZE - 1);
+				orbitBuffer.put(a * (Math.cos(E) - e));
+				orbitBuffer.put(b * Math.sin(E));
+				orbitBuffer.put(0);
 			}
 		} else {
-			double timeToEscape = Astrophysics.timeToEscape(pos, vel,
-					parent.mu, parent.soiRadius);
-			double timeStep = timeToEscape / (double) BUFFER_SIZE;
+			// Stay short of the asymptotes
+			double vMax = 0.99 * Math.acos(-1.0 / e);
+			if (parent.soiRadius > 0) {
+				double cosV = (p / parent.soiRadius - 1.0) / e;
+				cosV = Math.max(-1.0, Math.min(1.0, cosV));
+				vMax = Math.min(vMax, Math.acos(cosV));
+			}
 			for (int i = 0; i < BUFFER_SIZE; i++) {
-				Vector vertex = Astrophysics.kepler(pos, vel, parent.mu,
-						timeStep * i)[0];
-				vertex.subtract(pos);
-				orbitBuffer.put(vertex.get(0)).put(vertex.get(1))
-						.put(vertex.get(2));
+				double v = vMax * (2.0 * i / (BUFFER_SIZE - 1) - 1.0);
+				double radius = p / (1.0 + e * Math.cos(v));
+				orbitBuffer.put(radius * Math.cos(v));
+				orbitBuffer.put(radius * Math.sin(v));
+				orbitBuffer.put(0);
 			}
 		}
 		orbitBuffer.flip();
+
+		glBindBuffer(GL_ARRAY_BUFFER, vHandle);
+		glBufferSubData(GL_ARRAY_BUFFER, 0L, orbitBuffer);
+		return true;
 	}
-	
+
+	/**
+	 * @return the orbital elements as of the last published snapshot. The
+	 *         last elements found are kept if the object hasn't been
+	 *         published yet
+	 */
 	public Orbit getOrbit() {
-		if(renderDetail.ordinal() <= RenderDetail.LOW.ordinal()) {
-			orb = Astrophysics.toOrbitalElements(pos, vel, parent.mu);
+		if (parent == null) {
+			return orb;
+		}
+		Vector[] state = getPublishedState();
+		if (state != null) {
+			orb = Astrophysics.toOrbitalElements(state[0], state[1], parent.mu);
 		}
 		return orb;
 	}
 
 	/**
-	 * Update to the current TAI epoch (assuming you never used update()
-	 * directly)
+	 * Update to the current TAI epoch
 	 */
 	public void updateTo(double timeTAI) {
-		update(timeTAI - lastUpdatedTime);
-		lastUpdatedTime = timeTAI;
+		propagateTo(timeTAI);
+	}
+
+	/**
+	 * Update to the TAI epoch. Different objects can be propagated on
+	 * different threads
+	 */
+	public void propagateTo(double timeTAI) {
+		store.propagate(row, timeTAI, state);
+	}
+
+	/**
+	 * @return the TAI epoch of the current state, in seconds
+	 */
+	public double getLastUpdatedTime() {
+		return store.lastUpdatedTime[row];
+	}
+
+	/**
+	 * Set the epoch of the current state without propagating
+	 * 
+	 * @param timeTAI
+	 *            TAI time in seconds
+	 */
+	public void setLastUpdatedTime(double timeTAI) {
+		store.lastUpdatedTime[row] = timeTAI;
+		store.stateChanged(row);
+	}
+
+	/**
+	 * @return a copy of the position relative to the parent
+	 */
+	public Vector getPos() {
+		return new VectorND(store.x[row], store.y[row], store.z[row]);
+	}
+
+	/**
+	 * @return a copy of the velocity relative to the parent
+	 */
+	public Vector getVel() {
+		return new VectorND(store.vx[row], store.vy[row], store.vz[row]);
+	}
+
+	/**
+	 * Find the state at another epoch without changing the current one
+	 * 
+	 * @param timeTAI
+	 *            TAI time in seconds
+	 * @return the position and velocity relative to the parent
+	 */
+	public Vector[] getStateAt(double timeTAI) {
+		double[] s = new double[6];
+		store.stateAt(row, timeTAI, s);
+		return new Vector[] { new VectorND(s[0], s[1], s[2]),
+				new VectorND(s[3], s[4], s[5]) };
+	}
+
+	/**
+	 * Find the state at another epoch without changing the current one or
+	 * allocating. Safe to call from several threads while the simulation
+	 * isn't running
+	 * 
+	 * @param timeTAI
+	 *            TAI time in seconds
+	 * @param out
+	 *            the position and velocity relative to the parent
+	 */
+	public void stateAt(double timeTAI, double[] out) {
+		store.stateAt(row, timeTAI, out);
+	}
+
+	/**
+	 * @return the absolute position as of the last published snapshot, or
+	 *         null if the object hasn't been published yet. For the render
+	 *         and GUI threads, which read it without locking. The live state
+	 *         is never read, because the simulation thread may be writing it
+	 */
+	public Vector getPublishedAbsolutePos() {
+		return getPublishedAbsolutePos(store.getSnapshot());
+	}
+
+	/**
+	 * @return the absolute position in the snapshot, which must be of this
+	 *         object's store, or null if the object isn't in it
+	 */
+	public Vector getPublishedAbsolutePos(StateStore.Snapshot snapshot) {
+		return snapshot == null ? null : snapshot.getAbsolutePos(this);
+	}
+
+	/**
+	 * @return the position and velocity relative to the parent as of the
+	 *         last published snapshot, or null if the object hasn't been
+	 *         published yet
+	 */
+	public Vector[] getPublishedState() {
+		StateStore.Snapshot snapshot = store.getSnapshot();
+		return snapshot == null ? null : snapshot.getState(this);
+	}
+
+	public void setPos(Vector pos) {
+		store.x[row] = pos.get(0);
+		store.y[row] = pos.get(1);
+		store.z[row] = pos.get(2);
+		store.stateChanged(row);
+	}
+
+	public void setVel(Vector vel) {
+		store.vx[row] = vel.get(0);
+		store.vy[row] = vel.get(1);
+		store.vz[row] = vel.get(2);
+		store.stateChanged(row);
+	}
+
+	public void setState(Vector pos, Vector vel) {
+		store.x[row] = pos.get(0);
+		store.y[row] = pos.get(1);
+		store.z[row] = pos.get(2);
+		store.vx[row] = vel.get(0);
+		store.vy[row] = vel.get(1);
+		store.vz[row] = vel.get(2);
+		store.stateChanged(row);
+	}
+
+	public void addVelocity(Vector deltaV) {
+		store.vx[row] += deltaV.get(0);
+		store.vy[row] += deltaV.get(1);
+		store.vz[row] += deltaV.get(2);
+		store.stateChanged(row);
+	}
+
+	public void subtractVelocity(Vector deltaV) {
+		store.vx[row] -= deltaV.get(0);
+		store.vy[row] -= deltaV.get(1);
+		store.vz[row] -= deltaV.get(2);
+		store.stateChanged(row);
+	}
+
+	public StateStore getStore() {
+		return store;
+	}
+
+	/**
+	 * Release this object's row in the store. The object can't be used
+	 * afterwards
+	 */
+	public void releaseState() {
+		store.remove(this);
 	}
 
 	public Vector getRelativePos() {
 		if (parent == null) {
-			return pos;
+			return getPos();
 		}
-		return ((VectorND) pos).clone().subtract(parent.pos);
+		return getPos().subtract(parent.getPos());
 	}
 
 	public Vector getRelativeVel() {
 		if (parent == null) {
-			return vel;
+			return getVel();
 		}
-		return ((VectorND) vel).clone().subtract(parent.vel);
+		return getVel().subtract(parent.getVel());
 	}
 
 	public Vector getRelativePos(SimObject o) {
@@ -222,29 +484,42 @@ public abstract class SimObject {
 		return getAbsoluteVel().subtract(o.getAbsoluteVel());
 	}
 
+	/**
+	 * @return the absolute position, with the ancestors taken at this
+	 *         object's epoch
+	 */
 	public Vector getAbsolutePos() {
 		if (parent == null) {
-			return pos;
+			return getPos();
 		}
-		return ((VectorND) pos).clone().add(parent.getAbsolutePos());
+		return getPos().add(parent.getAbsolutePosAt(getLastUpdatedTime()));
 	}
 
+	/**
+	 * @return the absolute velocity, with the ancestors taken at this
+	 *         object's epoch
+	 */
 	public Vector getAbsoluteVel() {
 		if (parent == null) {
-			return vel;
+			return getVel();
 		}
-		return ((VectorND) vel).clone().add(parent.getAbsoluteVel());
+		return getVel().add(parent.getAbsoluteVelAt(getLastUpdatedTime()));
 	}
 
-	public void superLock(boolean doLock) {
-		if (parent != null) {
-			parent.superLock(doLock);
+	public Vector getAbsolutePosAt(double timeTAI) {
+		Vector pos = getStateAt(timeTAI)[0];
+		if (parent == null) {
+			return pos;
 		}
-		if (doLock) {
-			lock.lock();
-		} else {
-			lock.unlock();
+		return pos.add(parent.getAbsolutePosAt(timeTAI));
+	}
+
+	public Vector getAbsoluteVelAt(double timeTAI) {
+		Vector vel = getStateAt(timeTAI)[1];
+		if (parent == null) {
+			return vel;
 		}
+		return vel.add(parent.getAbsoluteVelAt(timeTAI));
 	}
 
 	/*
@@ -252,11 +527,11 @@ public abstract class SimObject {
 	 */
 	public ArrayList<SimObject> getFamily() {
 		ArrayList<SimObject> family = new ArrayList<SimObject>();
-		family.addAll(getChildren());
+		addChildren(family, this);
 		family.add(this);
 		Body nextParent = this.parent;
 		while (nextParent != null) {
-			family.addAll(nextParent.getChildren());
+			addChildren(family, nextParent);
 			family.add(nextParent);
 			nextParent = nextParent.parent;
 		}
@@ -264,6 +539,13 @@ public abstract class SimObject {
 		return family;
 	}
 	
+	private void addChildren(ArrayList<SimObject> family, SimObject o) {
+		ArrayList<SimObject> children = o.getChildren();
+		synchronized (children) {
+			family.addAll(children);
+		}
+	}
+
 	public String toString() {
 		return name;
 	}
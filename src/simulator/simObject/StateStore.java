@@ -0,0 +1,787 @@
+package simulator.simObject;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLong;
+
+import simulator.astro.Astrophysics;
+import simulator.astro.ChebyshevEphemeris;
+import simulator.tle.SGP4;
+
+import com.pi.math.vector.Vector;
+import com.pi.math.vector.VectorND;
+
+/**
+ * Structure-of-arrays storage for the state of every object in a solar
+ * system. Each SimObject is a view onto one row. Positions and velocities
+ * are relative to the object's parent.
+ *
+ * Objects share the store of their parent, so one store is created per root
+ * body.
+ *
+ * @author David
+ *
+ */
+public class StateStore {
+	private static final int INITIAL_CAPACITY = 64;
+
+	/**
+	 * Rows per task when propagating in parallel
+	 */
+	private static final int MIN_CHUNK_SIZE = 256;
+
+	public double[] x;
+	public double[] y;
+	public double[] z;
+	public double[] vx;
+	public double[] vy;
+	public double[] vz;
+
+	/**
+	 * The gravitational parameter of each row's parent. Zero if the row has no
+	 * parent and shouldn't be propagated
+	 */
+	public double[] mu;
+
+	/**
+	 * TAI epoch of each row's state, in seconds
+	 */
+	public double[] lastUpdatedTime;
+
+	/*
+	 * Epoch-anchored elliptic elements. A row with an anchor is evaluated in
+	 * closed form at any epoch instead of being stepped from its last state,
+	 * so it doesn't drift. anchorEpoch is NaN for rows without an anchor.
+	 * p and q are the unit vectors towards periapsis and 90 degrees ahead of
+	 * it in the orbital plane.
+	 */
+	private boolean[] useAnchor;
+	private double[] anchorEpoch;
+	private double[] meanAnomaly;
+	private double[] meanMotion;
+	private double[] semiMajor;
+	private double[] ecc;
+	private double[] px, py, pz;
+	private double[] qx, qy, qz;
+
+	/**
+	 * SGP4 propagator of the row's TLE, or null. Used instead of the two-body
+	 * orbit until the state is changed directly
+	 */
+	private SGP4[] sgp4;
+
+	/**
+	 * True if the row belongs to a body. Bodies are propagated before ships
+	 * in parallel mode
+	 */
+	private boolean[] isBody;
+
+	/**
+	 * True if the row is held where it is. Frozen rows aren't propagated,
+	 * and their state is the same at every epoch
+	 */
+	private boolean[] frozen;
+
+	/**
+	 * Chebyshev fit of the row's orbit, or null. Used instead of propagating
+	 * inside its window. Dropped when the state is changed directly
+	 */
+	private ChebyshevEphemeris[] ephemeris;
+
+	/**
+	 * Segments per orbit and polynomial degree of the Chebyshev fits
+	 */
+	private static final int EPHEMERIS_SEGMENTS_PER_ORBIT = 16;
+	private static final int EPHEMERIS_DEGREE = 12;
+
+	/**
+	 * Changes whenever the row's state is changed directly, so its orbital
+	 * elements may have changed. Propagation leaves it alone. Unique across
+	 * the store
+	 */
+	private long[] revision;
+	private final AtomicLong revisions = new AtomicLong();
+
+	private SimObject[] owners;
+	private int size;
+
+	/**
+	 * Scratch state for the propagation kernel
+	 */
+	private final double[] state = new double[6];
+
+	/**
+	 * The last published snapshot, or null before the first
+	 */
+	private volatile Snapshot snapshot;
+
+	public StateStore() {
+		allocate(INITIAL_CAPACITY);
+	}
+
+	private void allocate(int capacity) {
+		x = grow(x, capacity);
+		y = grow(y, capacity);
+		z = grow(z, capacity);
+		vx = grow(vx, capacity);
+		vy = grow(vy, capacity);
+		vz = grow(vz, capacity);
+		mu = grow(mu, capacity);
+		lastUpdatedTime = grow(lastUpdatedTime, capacity);
+		anchorEpoch = grow(anchorEpoch, capacity);
+		meanAnomaly = grow(meanAnomaly, capacity);
+		meanMotion = grow(meanMotion, capacity);
+		semiMajor = grow(semiMajor, capacity);
+		ecc = grow(ecc, capacity);
+		px = grow(px, capacity);
+		py = grow(py, capacity);
+		pz = grow(pz, capacity);
+		qx = grow(qx, capacity);
+		qy = grow(qy, capacity);
+		qz = grow(qz, capacity);
+		useAnchor = grow(useAnchor, capacity);
+		isBody = grow(isBody, capacity);
+		frozen = grow(frozen, capacity);
+		revision = grow(revision, capacity);
+
+		SGP4[] newSGP4 = new SGP4[capacity];
+		if (sgp4 != null) {
+			System.arraycopy(sgp4, 0, newSGP4, 0, size);
+		}
+		sgp4 = newSGP4;
+
+		ChebyshevEphemeris[] newEphemeris = new ChebyshevEphemeris[capacity];
+		if (ephemeris != null) {
+			System.arraycopy(ephemeris, 0, newEphemeris, 0, size);
+		}
+		ephemeris = newEphemeris;
+
+		SimObject[] newOwners = new SimObject[capacity];
+		if (owners != null) {
+			System.arraycopy(owners, 0, newOwners, 0, size);
+		}
+		owners = newOwners;
+	}
+
+	private double[] grow(double[] column, int capacity) {
+		double[] newColumn = new double[capacity];
+		if (column != null) {
+			System.arraycopy(column, 0, newColumn, 0, size);
+		}
+		return newColumn;
+	}
+
+	private boolean[] grow(boolean[] column, int capacity) {
+		boolean[] newColumn = new boolean[capacity];
+		if (column != null) {
+			System.arraycopy(column, 0, newColumn, 0, size);
+		}
+		return newColumn;
+	}
+
+	private long[] grow(long[] column, int capacity) {
+		long[] newColumn = new long[capacity];
+		if (column != null) {
+			System.arraycopy(column, 0, newColumn, 0, size);
+		}
+		return newColumn;
+	}
+
+	/**
+	 * Add a row for the object. The row starts at rest at the origin.
+	 *
+	 * @return the index of the new row
+	 */
+	synchronized int add(SimObject o) {
+		if (size == owners.length) {
+			allocate(size * 2);
+		}
+		int row = size;
+		x[row] = y[row] = z[row] = 0;
+		vx[row] = vy[row] = vz[row] = 0;
+		mu[row] = 0;
+		lastUpdatedTime[row] = 0;
+		useAnchor[row] = false;
+		anchorEpoch[row] = Double.NaN;
+		isBody[row] = o instanceof Body;
+		frozen[row] = false;
+		revision[row] = revisions.incrementAndGet();
+		ephemeris[row] = null;
+		sgp4[row] = null;
+		owners[row] = o;
+		o.row = row;
+		size++;
+		return row;
+	}
+
+	/**
+	 * Remove the object's row. The last row is moved into the gap so the
+	 * columns stay contiguous.
+	 */
+	synchronized void remove(SimObject o) {
+		int row = o.row;
+		if (row < 0 || row >= size || owners[row] != o) {
+			return;
+		}
+		int last = size - 1;
+		if (row != last) {
+			x[row] = x[last];
+			y[row] = y[last];
+			z[row] = z[last];
+			vx[row] = vx[last];
+			vy[row] = vy[last];
+			vz[row] = vz[last];
+			mu[row] = mu[last];
+			lastUpdatedTime[row] = lastUpdatedTime[last];
+			useAnchor[row] = useAnchor[last];
+			anchorEpoch[row] = anchorEpoch[last];
+			meanAnomaly[row] = meanAnomaly[last];
+			meanMotion[row] = meanMotion[last];
+			semiMajor[row] = semiMajor[last];
+			ecc[row] = ecc[last];
+			px[row] = px[last];
+			py[row] = py[last];
+			pz[row] = pz[last];
+			qx[row] = qx[last];
+			qy[row] = qy[last];
+			qz[row] = qz[last];
+			isBody[row] = isBody[last];
+			frozen[row] = frozen[last];
+			revision[row] = revision[last];
+			ephemeris[row] = ephemeris[last];
+			sgp4[row] = sgp4[last];
+			owners[row] = owners[last];
+			owners[row].row = row;
+		}
+		ephemeris[last] = null;
+		sgp4[last] = null;
+		owners[last] = null;
+		o.row = -1;
+		size--;
+	}
+
+	/**
+	 * @return the number of rows in use
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * @return the object which owns the row
+	 */
+	public SimObject getOwner(int row) {
+		return owners[row];
+	}
+
+	/**
+	 * Switch the row to closed-form propagation. Its current state and
+	 * lastUpdatedTime become the anchor. The row keeps re-anchoring whenever
+	 * its state is set, but only has an anchor while its orbit is elliptic.
+	 */
+	public void anchor(int row) {
+		useAnchor[row] = true;
+		reanchor(row);
+	}
+
+	/**
+	 * Evaluate the row with SGP4 instead of as a two-body orbit. The row's
+	 * state is found again at its epoch. SGP4 is dropped, and the row goes
+	 * back to two-body propagation, once the state is changed directly, for
+	 * example by a burn or an SOI change
+	 * 
+	 * @param propagator
+	 *            the propagator of the row's TLE, or null to go back to
+	 *            two-body propagation from the current state
+	 */
+	public void setSGP4(int row, SGP4 propagator) {
+		sgp4[row] = propagator;
+		if (propagator != null
+				&& propagator.stateAt(lastUpdatedTime[row], state)) {
+			x[row] = state[0];
+			y[row] = state[1];
+			z[row] = state[2];
+			vx[row] = state[3];
+			vy[row] = state[4];
+			vz[row] = state[5];
+		}
+		revision[row] = revisions.incrementAndGet();
+		if (useAnchor[row]) {
+			reanchor(row);
+		}
+	}
+
+	/**
+	 * Hold the row where it is, or let it move again. The row carries on from
+	 * the state and epoch it was frozen at
+	 */
+	public void setFrozen(int row, boolean frozen) {
+		this.frozen[row] = frozen;
+	}
+
+	public boolean isFrozen(int row) {
+		return frozen[row];
+	}
+
+	/**
+	 * @return true if the row is evaluated with SGP4
+	 */
+	public boolean usesSGP4(int row) {
+		return sgp4[row] != null;
+	}
+
+	/**
+	 * Fit a Chebyshev ephemeris to the row's orbit over the window. Inside
+	 * the window the row is evaluated from the fit instead of propagated.
+	 * The row is anchored first, and only elliptic orbits are fitted. The fit
+	 * is dropped if the row's state is set.
+	 * 
+	 * @param start
+	 *            TAI epoch of the start of the window, in seconds
+	 * @param end
+	 *            TAI epoch of the end of the window, in seconds
+	 */
+	public void fitEphemeris(int row, double start, double end) {
+		anchor(row);
+		if (!isAnchored(row)) {
+			return;
+		}
+		final SimObject o = owners[row];
+		double period = 2.0 * Math.PI / meanMotion[row];
+		ephemeris[row] = new ChebyshevEphemeris(
+				new ChebyshevEphemeris.Source() {
+					@Override
+					public void stateAt(double epoch, double[] out) {
+						fromAnchor(o.row, epoch, out);
+					}
+				}, start, end, period / EPHEMERIS_SEGMENTS_PER_ORBIT,
+				EPHEMERIS_DEGREE);
+	}
+
+	/**
+	 * @return the revision of the row's state. It changes whenever the state
+	 *         is changed directly
+	 */
+	long getRevision(int row) {
+		return revision[row];
+	}
+
+	/**
+	 * @return true if the row is currently propagated in closed form
+	 */
+	public boolean isAnchored(int row) {
+		return !Double.isNaN(anchorEpoch[row]);
+	}
+
+	/**
+	 * Must be called after the state of the row is changed directly, for
+	 * example by a burn or an SOI change
+	 */
+	void stateChanged(int row) {
+		revision[row] = revisions.incrementAndGet();
+		ephemeris[row] = null;
+		sgp4[row] = null;
+		if (useAnchor[row]) {
+			reanchor(row);
+		}
+	}
+
+	/**
+	 * Find the elliptic elements of the row's current state
+	 */
+	private void reanchor(int i) {
+		anchorEpoch[i] = Double.NaN;
+		double mu = this.mu[i];
+		if (mu <= 0) {
+			return;
+		}
+
+		double r = Math.sqrt(x[i] * x[i] + y[i] * y[i] + z[i] * z[i]);
+		double v2 = vx[i] * vx[i] + vy[i] * vy[i] + vz[i] * vz[i];
+		double rDotV = x[i] * vx[i] + y[i] * vy[i] + z[i] * vz[i];
+		double a = 1.0 / (2.0 / r - v2 / mu);
+		if (a <= 0 || Double.isInfinite(a)) {
+			// Parabolic or hyperbolic. Step it with kepler() instead
+			return;
+		}
+
+		// Eccentricity vector
+		double c1 = (v2 - mu / r) / mu;
+		double c2 = rDotV / mu;
+		double ex = c1 * x[i] - c2 * vx[i];
+		double ey = c1 * y[i] - c2 * vy[i];
+		double ez = c1 * z[i] - c2 * vz[i];
+		double e = Math.sqrt(ex * ex + ey * ey + ez * ez);
+		if (e >= 1.0) {
+			return;
+		}
+
+		// Angular momentum, for the direction of q
+		double hx = y[i] * vz[i] - z[i] * vy[i];
+		double hy = z[i] * vx[i] - x[i] * vz[i];
+		double hz = x[i] * vy[i] - y[i] * vx[i];
+		double h = Math.sqrt(hx * hx + hy * hy + hz * hz);
+		hx /= h;
+		hy /= h;
+		hz /= h;
+
+		double E;
+		if (e < 1E-10) {
+			// Circular. Measure from the current position instead
+			e = 0;
+			ex = x[i] / r;
+			ey = y[i] / r;
+			ez = z[i] / r;
+			E = 0;
+		} else {
+			ex /= e;
+			ey /= e;
+			ez /= e;
+			E = Math.atan2(rDotV / Math.sqrt(mu * a), 1.0 - r / a);
+		}
+
+		semiMajor[i] = a;
+		ecc[i] = e;
+		meanMotion[i] = Math.sqrt(mu / (a * a * a));
+		meanAnomaly[i] = E - e * Math.sin(E);
+		px[i] = ex;
+		py[i] = ey;
+		pz[i] = ez;
+		qx[i] = hy * ez - hz * ey;
+		qy[i] = hz * ex - hx * ez;
+		qz[i] = hx * ey - hy * ex;
+		anchorEpoch[i] = lastUpdatedTime[i];
+	}
+
+	/**
+	 * Propagate a single row to the epoch
+	 *
+	 * @param epoch
+	 *            TAI time in seconds
+	 */
+	public void propagate(int row, double epoch) {
+		propagate(row, epoch, state);
+	}
+
+	/**
+	 * Propagate every row to the epoch. Rows are walked linearly so the
+	 * columns stream through the cache.
+	 *
+	 * @param epoch
+	 *            TAI time in seconds
+	 */
+	public void propagateAll(double epoch) {
+		for (int i = 0; i < size; i++) {
+			propagate(i, epoch, state);
+		}
+	}
+
+	/**
+	 * Propagate every row to the epoch, sharding the rows across the common
+	 * ForkJoin pool if there are at least threshold rows. Bodies are
+	 * propagated first, then ships. Returns once every row is at the epoch,
+	 * so callers can keep processing events in order.
+	 * 
+	 * @param epoch
+	 *            TAI time in seconds
+	 * @param threshold
+	 *            minimum number of rows before going parallel
+	 */
+	public void propagateAll(double epoch, int threshold) {
+		if (size < threshold) {
+			propagateAll(epoch);
+			return;
+		}
+		ForkJoinPool pool = ForkJoinPool.commonPool();
+		int chunkSize = Math.max(MIN_CHUNK_SIZE,
+				size / (pool.getParallelism() * 4));
+		pool.invoke(new PropagateTask(epoch, 0, size, chunkSize, true));
+		pool.invoke(new PropagateTask(epoch, 0, size, chunkSize, false));
+	}
+
+	/**
+	 * Propagates a range of rows. Each leaf task has its own scratch state.
+	 */
+	private class PropagateTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		private final double epoch;
+		private final int start;
+		private final int end;
+		private final int chunkSize;
+		private final boolean bodies;
+
+		public PropagateTask(double epoch, int start, int end, int chunkSize,
+				boolean bodies) {
+			this.epoch = epoch;
+			this.start = start;
+			this.end = end;
+			this.chunkSize = chunkSize;
+			this.bodies = bodies;
+		}
+
+		@Override
+		protected void compute() {
+			if (end - start <= chunkSize) {
+				double[] state = new double[6];
+				for (int i = start; i < end; i++) {
+					if (isBody[i] == bodies) {
+						propagate(i, epoch, state);
+					}
+				}
+			} else {
+				int mid = (start + end) >>> 1;
+				invokeAll(new PropagateTask(epoch, start, mid, chunkSize,
+						bodies), new PropagateTask(epoch, mid, end, chunkSize,
+						bodies));
+			}
+		}
+	}
+
+	/**
+	 * Propagate a single row to the epoch using the caller's scratch state.
+	 * Different rows can be propagated on different threads this way.
+	 *
+	 * @param epoch
+	 *            TAI time in seconds
+	 * @param state
+	 *            scratch space for at least 6 doubles
+	 */
+	public void propagate(int i, double epoch, double[] state) {
+		if (frozen[i]) {
+			return;
+		}
+		double delta = epoch - lastUpdatedTime[i];
+		if (delta != 0 && mu[i] > 0) {
+			ChebyshevEphemeris fit = ephemeris[i];
+			SGP4 tle = sgp4[i];
+			if (fit != null && fit.covers(epoch)) {
+				fit.evaluate(epoch, state);
+			} else if (tle == null || !tle.stateAt(epoch, state)) {
+				if (Double.isNaN(anchorEpoch[i])) {
+					Astrophysics.kepler(x[i], y[i], z[i], vx[i], vy[i], vz[i],
+							mu[i], delta, state);
+				} else {
+					fromAnchor(i, epoch, state);
+				}
+			}
+			x[i] = state[0];
+			y[i] = state[1];
+			z[i] = state[2];
+			vx[i] = state[3];
+			vy[i] = state[4];
+			vz[i] = state[5];
+		}
+		lastUpdatedTime[i] = epoch;
+	}
+
+	/**
+	 * Publish the current state for the render and GUI threads. A new
+	 * snapshot is only made once the last one has been read, so a reader
+	 * polling every frame sees state at most a frame old, and publishing
+	 * costs nothing while nothing reads. Called from the simulation thread
+	 * after each tick.
+	 *
+	 * @param epoch
+	 *            TAI time in seconds of the current state
+	 * @return false if the last snapshot hasn't been read yet, so nothing was
+	 *         published
+	 */
+	public boolean publish(double epoch) {
+		Snapshot last = snapshot;
+		if (last == null || last.read) {
+			snapshot = new Snapshot(epoch);
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * @return the last published snapshot, or null if there isn't one yet
+	 */
+	public Snapshot getSnapshot() {
+		Snapshot s = snapshot;
+		if (s != null && !s.read) {
+			s.read = true;
+		}
+		return s;
+	}
+
+	/**
+	 * Find the row's state at the epoch without changing the row. The row
+	 * must not be written while this runs.
+	 *
+	 * @param epoch
+	 *            TAI time in seconds
+	 * @param out
+	 *            the position and velocity at the epoch
+	 */
+	public void stateAt(int row, double epoch, double[] out) {
+		double delta = epoch - lastUpdatedTime[row];
+		if (delta != 0 && mu[row] > 0 && !frozen[row]) {
+			ChebyshevEphemeris fit = ephemeris[row];
+			SGP4 tle = sgp4[row];
+			if (fit != null && fit.covers(epoch)) {
+				fit.evaluate(epoch, out);
+			} else if (tle == null || !tle.stateAt(epoch, out)) {
+				if (Double.isNaN(anchorEpoch[row])) {
+					Astrophysics.kepler(x[row], y[row], z[row], vx[row],
+							vy[row], vz[row], mu[row], delta, out);
+				} else {
+					fromAnchor(row, epoch, out);
+				}
+			}
+		} else {
+			out[0] = x[row];
+			out[1] = y[row];
+			out[2] = z[row];
+			out[3] = vx[row];
+			out[4] = vy[row];
+			out[5] = vz[row];
+		}
+	}
+
+	/**
+	 * Evaluate the anchored elements at the epoch: advance the mean anomaly,
+	 * solve Kepler's equation and rotate out of the orbital plane
+	 */
+	private void fromAnchor(int i, double epoch, double[] state) {
+		double twoPi = 2.0 * Math.PI;
+		double e = ecc[i];
+		double a = semiMajor[i];
+		double n = meanMotion[i];
+
+		double M = (meanAnomaly[i] + n * (epoch - anchorEpoch[i])) % twoPi;
+		if (M < 0) {
+			M += twoPi;
+		}
+		double E = e == 0 ? M : Astrophysics.kepEqtnE(M, e);
+
+		double cosE = Math.cos(E);
+		double sinE = Math.sin(E);
+		double rootOneMinusE2 = Math.sqrt(1.0 - e * e);
+		double pP = a * (cosE - e);
+		double pQ = a * rootOneMinusE2 * sinE;
+		double eDot = n / (1.0 - e * cosE);
+		double vP = -a * sinE * eDot;
+		double vQ = a * rootOneMinusE2 * cosE * eDot;
+
+		state[0] = pP * px[i] + pQ * qx[i];
+		state[1] = pP * py[i] + pQ * qy[i];
+		state[2] = pP * pz[i] + pQ * qz[i];
+		state[3] = vP * px[i] + vQ * qx[i];
+		state[4] = vP * py[i] + vQ * qy[i];
+		state[5] = vP * pz[i] + vQ * qz[i];
+	}
+
+	/**
+	 * An immutable copy of the state columns. Other threads read it without
+	 * locking while the simulation carries on with the live columns.
+	 */
+	public class Snapshot {
+		/**
+		 * TAI epoch of the snapshot, in seconds
+		 */
+		public final double epoch;
+
+		private final double[] x, y, z;
+		private final double[] vx, vy, vz;
+		private final long[] revision;
+		private final boolean[] frozen;
+		private final SimObject[] owners;
+
+		/**
+		 * Row of each row's parent, or -1 for a root
+		 */
+		private final int[] parentRow;
+
+		private volatile boolean read = false;
+
+		private Snapshot(double epoch) {
+			this.epoch = epoch;
+			int n = size;
+			x = Arrays.copyOf(StateStore.this.x, n);
+			y = Arrays.copyOf(StateStore.this.y, n);
+			z = Arrays.copyOf(StateStore.this.z, n);
+			vx = Arrays.copyOf(StateStore.this.vx, n);
+			vy = Arrays.copyOf(StateStore.this.vy, n);
+			vz = Arrays.copyOf(StateStore.this.vz, n);
+			revision = Arrays.copyOf(StateStore.this.revision, n);
+			frozen = Arrays.copyOf(StateStore.this.frozen, n);
+			owners = Arrays.copyOf(StateStore.this.owners, n);
+			parentRow = new int[n];
+			for (int i = 0; i < n; i++) {
+				Body parent = owners[i].parent;
+				parentRow[i] = parent == null ? -1 : parent.row;
+			}
+		}
+
+		/**
+		 * @return the object's row in this snapshot, or -1 if it isn't in it
+		 */
+		private int rowOf(SimObject o) {
+			int row = o.row;
+			if (row >= 0 && row < owners.length && owners[row] == o) {
+				return row;
+			}
+			// The object's row moved since the snapshot was taken
+			for (int i = 0; i < owners.length; i++) {
+				if (owners[i] == o) {
+					return i;
+				}
+			}
+			return -1;
+		}
+
+		/**
+		 * @return the absolute position, or null if the object isn't in the
+		 *         snapshot
+		 */
+		public Vector getAbsolutePos(SimObject o) {
+			int row = rowOf(o);
+			if (row < 0) {
+				return null;
+			}
+			double px = 0, py = 0, pz = 0;
+			for (int i = row; i >= 0; i = parentRow[i]) {
+				px += x[i];
+				py += y[i];
+				pz += z[i];
+			}
+			return new VectorND(px, py, pz);
+		}
+
+		/**
+		 * @return the position and velocity relative to the parent, or null if
+		 *         the object isn't in the snapshot
+		 */
+		public Vector[] getState(SimObject o) {
+			int row = rowOf(o);
+			if (row < 0) {
+				return null;
+			}
+			return new Vector[] { new VectorND(x[row], y[row], z[row]),
+					new VectorND(vx[row], vy[row], vz[row]) };
+		}
+
+		/**
+		 * @return the revision of the object's state, or -1 if the object
+		 *         isn't in the snapshot. The same revision means the same
+		 *         orbit
+		 */
+		public long getRevision(SimObject o) {
+			int row = rowOf(o);
+			return row < 0 ? -1 : revision[row];
+		}
+
+		/**
+		 * @return true if the object was held where it is when the snapshot
+		 *         was taken
+		 */
+		public boolean isFrozen(SimObject o) {
+			int row = rowOf(o);
+			return row >= 0 && frozen[row];
+		}
+	}
+}
@@ -0,0 +1,1085 @@
+package simulator.tle;
+
+import simulator.astro.Time;
+
+/**
+ * The SGP4 propagator for two-line elements, with the SDP4 deep-space terms
+ * for orbits of 225 minutes or more. TLEs are mean elements fitted with this
+ * model, so evaluating them with it is much more accurate than treating them
+ * as an osculating two-body orbit.
+ *
+ * Follows the revised reference implementation of Vallado et al, "Revisiting
+ * Spacetrack Report #3" (AIAA 2006-6753), with WGS-72 constants and the
+ * improved operation mode. Everything that depends only on the elements is
+ * found once in the constructor. One SGP4 can be evaluated from several
+ * threads at once. The only thing evaluation changes is where the deep-space
+ * resonance integrator carries on from, which is replaced as a whole rather
+ * than changed.
+ *
+ * Positions and velocities are in the TEME frame of the elements, in metres
+ * and metres per second.
+ *
+ * @author David
+ *
+ */
+public class SGP4 {
+	/*
+	 * WGS-72 constants, in earth radii and minutes
+	 */
+	private static final double MU = 398600.8;
+	private static final double RADIUS = 6378.135;
+	private static final double XKE = 60.0 / Math.sqrt(RADIUS * RADIUS
+			* RADIUS / MU);
+	private static final double J2 = 0.001082616;
+	private static final double J3 = -0.00000253881;
+	private static final double J4 = -0.00000165597;
+	private static final double J3OJ2 = J3 / J2;
+	private static final double VKMPERSEC = RADIUS * XKE / 60.0;
+
+	private static final double TWO_PI = 2.0 * Math.PI;
+	private static final double X2O3 = 2.0 / 3.0;
+	private static final double TEMP4 = 1.5E-12;
+
+	/**
+	 * Julian date of the elements' epoch less 2433281.5, in days
+	 */
+	private final double epoch;
+
+	/**
+	 * TAI epoch of the elements, in seconds
+	 */
+	private final double epochTAI;
+
+	/*
+	 * Mean elements. Mean motion is in radians per minute, after the Kozai
+	 * correction
+	 */
+	private double bstar, ecco, argpo, inclo, mo, no, nodeo;
+
+	/*
+	 * Near-earth terms
+	 */
+	private boolean isimp;
+	private double aycof, con41, cc1, cc4, cc5, d2, d3, d4, delmo, eta,
+			argpdot, omgcof, sinmao, t2cof, t3cof, t4cof, t5cof, x1mth2,
+			x7thm1, mdot, nodedot, xlcof, xmcof, nodecf;
+
+	/*
+	 * Deep-space terms
+	 */
+	private boolean deepSpace;
+	private int irez;
+	private double d2201, d2211, d3210, d3222, d4410, d4422, d5220, d5232,
+			d5421, d5433, dedt, del1, del2, del3, didt, dmdt, dnodt, domdt,
+			e3, ee2, peo, pgho, pho, pinco, plo, se2, se3, sgh2, sgh3, sgh4,
+			sh2, sh3, si2, si3, sl2, sl3, sl4, gsto, xfact, xgh2, xgh3, xgh4,
+			xh2, xh3, xi2, xi3, xl2, xl3, xl4, xlamo, zmol, zmos;
+
+	/**
+	 * Where the resonance integrator got to last time, or null. Integrating
+	 * from the epoch takes a step per half day, so it carries on from here
+	 * when it can
+	 */
+	private volatile Resonance resonance;
+
+	private static class Resonance {
+		final double atime;
+		final double xli;
+		final double xni;
+
+		Resonance(double atime, double xli, double xni) {
+			this.atime = atime;
+			this.xli = xli;
+			this.xni = xni;
+		}
+	}
+
+	/**
+	 * Initialize the propagator from the elements. Use TLE.getSGP4() instead,
+	 * which only does this once per TLE
+	 *
+	 * @throws IllegalArgumentException
+	 *             if the elements don't describe an orbit
+	 */
+	public SGP4(TLE tle) {
+		double jd = tle.getEpoch();
+		epoch = jd - 2433281.5;
+		epochTAI = Time.jdToTAI(jd);
+
+		bstar = tle.getBstar();
+		inclo = Math.toRadians(tle.getInclination());
+		nodeo = Math.toRadians(tle.getNode());
+		ecco = tle.getEccentricity();
+		argpo = Math.toRadians(tle.getPeri());
+		mo = Math.toRadians(tle.getMeanAnomaly());
+		no = tle.getMeanMotion() * TWO_PI / 1440.0;
+
+		init();
+	}
+
+	/**
+	 * @return TAI epoch of the elements, in seconds
+	 */
+	public double getEpoch() {
+		return epochTAI;
+	}
+
+	/**
+	 * @return true if the SDP4 deep-space terms are used
+	 */
+	public boolean isDeepSpace() {
+		return deepSpace;
+	}
+
+	/**
+	 * Find the position and velocity at an epoch
+	 *
+	 * @param epoch
+	 *            TAI time in seconds
+	 * @param out
+	 *            the position and velocity at the epoch
+	 * @return false if the elements can't be evaluated at the epoch, for
+	 *         example after the satellite has decayed. out is then left alone
+	 */
+	public boolean stateAt(double epoch, double[] out) {
+		return propagate((epoch - epochTAI) / 60.0, out);
+	}
+
+	/**
+	 * Evaluate many satellites at one epoch. Each gets 6 doubles of out, in
+	 * the same order. Satellites which can't be evaluated get NaN
+	 *
+	 * @param epoch
+	 *            TAI time in seconds
+	 * @return the number of satellites which couldn't be evaluated
+	 */
+	public static int stateAt(SGP4[] satellites, double epoch, double[] out) {
+		double[] state = new double[6];
+		int failed = 0;
+		for (int i = 0; i < satellites.length; i++) {
+			int j = i * 6;
+			if (satellites[i].propagate((epoch - satellites[i].epochTAI) / 60.0,
+					state)) {
+				out[j] = state[0];
+				out[j + 1] = state[1];
+				out[j + 2] = state[2];
+				out[j + 3] = state[3];
+				out[j + 4] = state[4];
+				out[j + 5] = state[5];
+			} else {
+				for (int k = 0; k < 6; k++) {
+					out[j + k] = Double.NaN;
+				}
+				failed++;
+			}
+		}
+		return failed;
+	}
+
+	/**
+	 * Everything that depends only on the elements. From sgp4init(), initl()
+	 * and, for deep space, dscom() and dsinit()
+	 */
+	private void init() {
+		double ss = 78.0 / RADIUS + 1.0;
+		double qzms2ttemp = (120.0 - 78.0) / RADIUS;
+		double qzms2t = qzms2ttemp * qzms2ttemp * qzms2ttemp * qzms2ttemp;
+
+		// Recover the original mean motion and semi-major axis
+		double eccsq = ecco * ecco;
+		double omeosq = 1.0 - eccsq;
+		double rteosq = Math.sqrt(omeosq);
+		double cosio = Math.cos(inclo);
+		double cosio2 = cosio * cosio;
+		double ak = Math.pow(XKE / no, X2O3);
+		double d1 = 0.75 * J2 * (3.0 * cosio2 - 1.0) / (rteosq * omeosq);
+		double del = d1 / (ak * ak);
+		double adel = ak
+				* (1.0 - del * del - del
+						* (1.0 / 3.0 + 134.0 * del * del / 81.0));
+		del = d1 / (adel * adel);
+		no = no / (1.0 + del);
+		double ao = Math.pow(XKE / no, X2O3);
+		double sinio = Math.sin(inclo);
+		double po = ao * omeosq;
+		double con42 = 1.0 - 5.0 * cosio2;
+		con41 = -con42 - cosio2 - cosio2;
+		double posq = po * po;
+		double rp = ao * (1.0 - ecco);
+		gsto = greenwichSiderealTime(epoch + 2433281.5);
+
+		if (ecco >= 1.0 || !(no > 0.0)) {
+			throw new IllegalArgumentException("Not an orbit");
+		}
+
+		isimp = rp < 220.0 / RADIUS + 1.0;
+		double sfour = ss;
+		double qzms24 = qzms2t;
+		double perige = (rp - 1.0) * RADIUS;
+
+		// For perigees below 156 km, s and qoms2t are altered
+		if (perige < 156.0) {
+			sfour = perige - 78.0;
+			if (perige < 98.0) {
+				sfour = 20.0;
+			}
+			double qzms24temp = (120.0 - sfour) / RADIUS;
+			qzms24 = qzms24temp * qzms24temp * qzms24temp * qzms24temp;
+			sfour = sfour / RADIUS + 1.0;
+		}
+		double pinvsq = 1.0 / posq;
+
+		double tsi = 1.0 / (ao - sfour);
+		eta = ao * ecco * tsi;
+		double etasq = eta * eta;
+		double eeta = ecco * eta;
+		double psisq = Math.abs(1.0 - etasq);
+		double coef = qzms24 * tsi * tsi * tsi * tsi;
+		double coef1 = coef / Math.pow(psisq, 3.5);
+		double cc2 = coef1
+				* no
+				* (ao * (1.0 + 1.5 * etasq + eeta * (4.0 + etasq)) + 0.375
+						* J2 * tsi / psisq * con41
+						* (8.0 + 3.0 * etasq * (8.0 + etasq)));
+		cc1 = bstar * cc2;
+		double cc3 = 0.0;
+		if (ecco > 1.0E-4) {
+			cc3 = -2.0 * coef * tsi * J3OJ2 * no * sinio / ecco;
+		}
+		x1mth2 = 1.0 - cosio2;
+		cc4 = 2.0
+				* no
+				* coef1
+				* ao
+				* omeosq
+				* (eta * (2.0 + 0.5 * etasq) + ecco * (0.5 + 2.0 * etasq) - J2
+						* tsi
+						/ (ao * psisq)
+						* (-3.0 * con41
+								* (1.0 - 2.0 * eeta + etasq * (1.5 - 0.5 * eeta)) + 0.75
+								* x1mth2
+								* (2.0 * etasq - eeta * (1.0 + etasq))
+								* Math.cos(2.0 * argpo)));
+		cc5 = 2.0 * coef1 * ao * omeosq
+				* (1.0 + 2.75 * (etasq + eeta) + eeta * etasq);
+		double cosio4 = cosio2 * cosio2;
+		double temp1 = 1.5 * J2 * pinvsq * no;
+		double temp2 = 0.5 * temp1 * J2 * pinvsq;
+		double temp3 = -0.46875 * J4 * pinvsq * pinvsq * no;
+		mdot = no + 0.5 * temp1 * rteosq * con41 + 0.0625 * temp2 * rteosq
+				* (13.0 - 78.0 * cosio2 + 137.0 * cosio4);
+		argpdot = -0.5 * temp1 * con42 + 0.0625 * temp2
+				* (7.0 - 114.0 * cosio2 + 395.0 * cosio4) + temp3
+				* (3.0 - 36.0 * cosio2 + 49.0 * cosio4);
+		double xhdot1 = -temp1 * cosio;
+		nodedot = xhdot1
+				+ (0.5 * temp2 * (4.0 - 19.0 * cosio2) + 2.0 * temp3
+						* (3.0 - 7.0 * cosio2)) * cosio;
+		double xpidot = argpdot + nodedot;
+		omgcof = bstar * cc3 * Math.cos(argpo);
+		xmcof = 0.0;
+		if (ecco > 1.0E-4) {
+			xmcof = -X2O3 * coef * bstar / eeta;
+		}
+		nodecf = 3.5 * omeosq * xhdot1 * cc1;
+		t2cof = 1.5 * cc1;
+		// Avoid dividing by zero at 180 degrees inclination
+		if (Math.abs(cosio + 1.0) > 1.5E-12) {
+			xlcof = -0.25 * J3OJ2 * sinio * (3.0 + 5.0 * cosio)
+					/ (1.0 + cosio);
+		} else {
+			xlcof = -0.25 * J3OJ2 * sinio * (3.0 + 5.0 * cosio) / TEMP4;
+		}
+		aycof = -0.5 * J3OJ2 * sinio;
+		double delmotemp = 1.0 + eta * Math.cos(mo);
+		delmo = delmotemp * delmotemp * delmotemp;
+		sinmao = Math.sin(mo);
+		x7thm1 = 7.0 * cosio2 - 1.0;
+
+		if (TWO_PI / no >= 225.0) {
+			deepSpace = true;
+			isimp = true;
+			initDeepSpace(xpidot, eccsq);
+		}
+
+		if (!isimp) {
+			double cc1sq = cc1 * cc1;
+			d2 = 4.0 * ao * tsi * cc1sq;
+			double temp = d2 * tsi * cc1 / 3.0;
+			d3 = (17.0 * ao + sfour) * temp;
+			d4 = 0.5 * temp * ao * tsi * (221.0 * ao + 31.0 * sfour) * cc1;
+			t3cof = d2 + 2.0 * cc1sq;
+			t4cof = 0.25 * (3.0 * d3 + cc1 * (12.0 * d2 + 10.0 * cc1sq));
+			t5cof = 0.2 * (3.0 * d4 + 12.0 * cc1 * d3 + 6.0 * d2 * d2 + 15.0
+					* cc1sq * (2.0 * d2 + cc1sq));
+		}
+	}
+
+	/**
+	 * Greenwich mean sidereal time, in radians
+	 *
+	 * @param jdut1
+	 *            UT1 julian date
+	 */
+	private static double greenwichSiderealTime(double jdut1) {
+		double tut1 = (jdut1 - 2451545.0) / 36525.0;
+		double temp = -6.2E-6 * tut1 * tut1 * tut1 + 0.093104 * tut1 * tut1
+				+ (876600.0 * 3600 + 8640184.812866) * tut1 + 67310.54841;
+		temp = (Math.toRadians(temp) / 240.0) % TWO_PI;
+		if (temp < 0.0) {
+			temp += TWO_PI;
+		}
+		return temp;
+	}
+
+	/**
+	 * The lunar and solar terms and the resonance terms. From dscom() and
+	 * dsinit(). The first call to dpper() in sgp4init() changes nothing, so
+	 * it's left out
+	 */
+	private void initDeepSpace(double xpidot, double eccsq) {
+		final double zes = 0.01675;
+		final double zel = 0.05490;
+		final double c1ss = 2.9864797E-6;
+		final double c1l = 4.7968065E-7;
+		final double zsinis = 0.39785416;
+		final double zcosis = 0.91744867;
+		final double zcosgs = 0.1945905;
+		final double zsings = -0.98088458;
+		final double znl = 1.5835218E-4;
+		final double zns = 1.19459E-5;
+
+		double nm = no;
+		double em = ecco;
+		double snodm = Math.sin(nodeo);
+		double cnodm = Math.cos(nodeo);
+		double sinomm = Math.sin(argpo);
+		double cosomm = Math.cos(argpo);
+		double sinim = Math.sin(inclo);
+		double cosim = Math.cos(inclo);
+		double emsq = em * em;
+		double betasq = 1.0 - emsq;
+		double rtemsq = Math.sqrt(betasq);
+
+		// Lunar and solar terms
+		peo = 0.0;
+		pinco = 0.0;
+		plo = 0.0;
+		pgho = 0.0;
+		pho = 0.0;
+		double day = epoch + 18261.5;
+		double xnodce = (4.5236020 - 9.2422029E-4 * day) % TWO_PI;
+		double stem = Math.sin(xnodce);
+		double ctem = Math.cos(xnodce);
+		double zcosil = 0.91375164 - 0.03568096 * ctem;
+		double zsinil = Math.sqrt(1.0 - zcosil * zcosil);
+		double zsinhl = 0.089683511 * stem / zsinil;
+		double zcoshl = Math.sqrt(1.0 - zsinhl * zsinhl);
+		double gam = 5.8351514 + 0.0019443680 * day;
+		double zx = 0.39785416 * stem / zsinil;
+		double zy = zcoshl * ctem + 0.91744867 * zsinhl * stem;
+		zx = Math.atan2(zx, zy);
+		zx = gam + zx - xnodce;
+		double zcosgl = Math.cos(zx);
+		double zsingl = Math.sin(zx);
+
+		// The sun first, then the moon
+		double zcosg = zcosgs;
+		double zsing = zsings;
+		double zcosi = zcosis;
+		double zsini = zsinis;
+		double zcosh = cnodm;
+		double zsinh = snodm;
+		double cc = c1ss;
+		double xnoi = 1.0 / nm;
+
+		double s1 = 0, s2 = 0, s3 = 0, s4 = 0, s5 = 0, s6 = 0, s7 = 0;
+		double ss1 = 0, ss2 = 0, ss3 = 0, ss4 = 0, ss5 = 0, ss6 = 0, ss7 = 0;
+		double z1 = 0, z2 = 0, z3 = 0, z11 = 0, z12 = 0, z13 = 0;
+		double z21 = 0, z22 = 0, z23 = 0, z31 = 0, z32 = 0, z33 = 0;
+		double sz1 = 0, sz2 = 0, sz3 = 0, sz11 = 0, sz12 = 0, sz13 = 0;
+		double sz21 = 0, sz22 = 0, sz23 = 0, sz31 = 0, sz32 = 0, sz33 = 0;
+		for (int lsflg = 1; lsflg <= 2; lsflg++) {
+			double a1 = zcosg * zcosh + zsing * zcosi * zsinh;
+			double a3 = -zsing * zcosh + zcosg * zcosi * zsinh;
+			double a7 = -zcosg * zsinh + zsing * zcosi * zcosh;
+			double a8 = zsing * zsini;
+			double a9 = zsing * zsinh + zcosg * zcosi * zcosh;
+			double a10 = zcosg * zsini;
+			double a2 = cosim * a7 + sinim * a8;
+			double a4 = cosim * a9 + sinim * a10;
+			double a5 = -sinim * a7 + cosim * a8;
+			double a6 = -sinim * a9 + cosim * a10;
+
+			double x1 = a1 * cosomm + a2 * sinomm;
+			double x2 = a3 * cosomm + a4 * sinomm;
+			double x3 = -a1 * sinomm + a2 * cosomm;
+			double x4 = -a3 * sinomm + a4 * cosomm;
+			double x5 = a5 * sinomm;
+			double x6 = a6 * sinomm;
+			double x7 = a5 * cosomm;
+			double x8 = a6 * cosomm;
+
+			z31 = 12.0 * x1 * x1 - 3.0 * x3 * x3;
+			z32 = 24.0 * x1 * x2 - 6.0 * x3 * x4;
+			z33 = 12.0 * x2 * x2 - 3.0 * x4 * x4;
+			z1 = 3.0 * (a1 * a1 + a2 * a2) + z31 * emsq;
+			z2 = 6.0 * (a1 * a3 + a2 * a4) + z32 * emsq;
+			z3 = 3.0 * (a3 * a3 + a4 * a4) + z33 * emsq;
+			z11 = -6.0 * a1 * a5 + emsq * (-24.0 * x1 * x7 - 6.0 * x3 * x5);
+			z12 = -6.0 * (a1 * a6 + a3 * a5) + emsq
+					* (-24.0 * (x2 * x7 + x1 * x8) - 6.0 * (x3 * x6 + x4 * x5));
+			z13 = -6.0 * a3 * a6 + emsq * (-24.0 * x2 * x8 - 6.0 * x4 * x6);
+			z21 = 6.0 * a2 * a5 + emsq * (24.0 * x1 * x5 - 6.0 * x3 * x7);
+			z22 = 6.0 * (a4 * a5 + a2 * a6) + emsq
+					* (24.0 * (x2 * x5 + x1 * x6) - 6.0 * (x4 * x7 + x3 * x8));
+			z23 = 6.0 * a4 * a6 + emsq * (24.0 * x2 * x6 - 6.0 * x4 * x8);
+			z1 = z1 + z1 + betasq * z31;
+			z2 = z2 + z2 + betasq * z32;
+			z3 = z3 + z3 + betasq * z33;
+			s3 = cc * xnoi;
+			s2 = -0.5 * s3 / rtemsq;
+			s4 = s3 * rtemsq;
+			s1 = -15.0 * em * s4;
+			s5 = x1 * x3 + x2 * x4;
+			s6 = x2 * x3 + x1 * x4;
+			s7 = x2 * x4 - x1 * x3;
+
+			if (lsflg == 1) {
+				ss1 = s1;
+				ss2 = s2;
+				ss3 = s3;
+				ss4 = s4;
+				ss5 = s5;
+				ss6 = s6;
+				ss7 = s7;
+				sz1 = z1;
+				sz2 = z2;
+				sz3 = z3;
+				sz11 = z11;
+				sz12 = z12;
+				sz13 = z13;
+				sz21 = z21;
+				sz22 = z22;
+				sz23 = z23;
+				sz31 = z31;
+				sz32 = z32;
+				sz33 = z33;
+				zcosg = zcosgl;
+				zsing = zsingl;
+				zcosi = zcosil;
+				zsini = zsinil;
+				zcosh = zcoshl * cnodm + zsinhl * snodm;
+				zsinh = snodm * zcoshl - cnodm * zsinhl;
+				cc = c1l;
+			}
+		}
+
+		zmol = (4.7199672 + 0.22997150 * day - gam) % TWO_PI;
+		zmos = (6.2565837 + 0.017201977 * day) % TWO_PI;
+
+		// Solar periodics
+		se2 = 2.0 * ss1 * ss6;
+		se3 = 2.0 * ss1 * ss7;
+		si2 = 2.0 * ss2 * sz12;
+		si3 = 2.0 * ss2 * (sz13 - sz11);
+		sl2 = -2.0 * ss3 * sz2;
+		sl3 = -2.0 * ss3 * (sz3 - sz1);
+		sl4 = -2.0 * ss3 * (-21.0 - 9.0 * emsq) * zes;
+		sgh2 = 2.0 * ss4 * sz32;
+		sgh3 = 2.0 * ss4 * (sz33 - sz31);
+		sgh4 = -18.0 * ss4 * zes;
+		sh2 = -2.0 * ss2 * sz22;
+		sh3 = -2.0 * ss2 * (sz23 - sz21);
+
+		// Lunar periodics
+		ee2 = 2.0 * s1 * s6;
+		e3 = 2.0 * s1 * s7;
+		xi2 = 2.0 * s2 * z12;
+		xi3 = 2.0 * s2 * (z13 - z11);
+		xl2 = -2.0 * s3 * z2;
+		xl3 = -2.0 * s3 * (z3 - z1);
+		xl4 = -2.0 * s3 * (-21.0 - 9.0 * emsq) * zel;
+		xgh2 = 2.0 * s4 * z32;
+		xgh3 = 2.0 * s4 * (z33 - z31);
+		xgh4 = -18.0 * s4 * zel;
+		xh2 = -2.0 * s2 * z22;
+		xh3 = -2.0 * s2 * (z23 - z21);
+
+		// Secular rates. From dsinit()
+		final double q22 = 1.7891679E-6;
+		final double q31 = 2.1460748E-6;
+		final double q33 = 2.2123015E-7;
+		final double root22 = 1.7891679E-6;
+		final double root44 = 7.3636953E-9;
+		final double root54 = 2.1765803E-9;
+		final double rptim = 4.37526908801129966E-3;
+		final double root32 = 3.7393792E-7;
+		final double root52 = 1.1428639E-7;
+
+		irez = 0;
+		if (nm < 0.0052359877 && nm > 0.0034906585) {
+			irez = 1;
+		}
+		if (nm >= 8.26E-3 && nm <= 9.24E-3 && em >= 0.5) {
+			irez = 2;
+		}
+
+		double ses = ss1 * zns * ss5;
+		double sis = ss2 * zns * (sz11 + sz13);
+		double sls = -zns * ss3 * (sz1 + sz3 - 14.0 - 6.0 * emsq);
+		double sghs = ss4 * zns * (sz31 + sz33 - 6.0);
+		double shs = -zns * ss2 * (sz21 + sz23);
+		if (inclo < 5.2359877E-2 || inclo > Math.PI - 5.2359877E-2) {
+			shs = 0.0;
+		}
+		if (sinim != 0.0) {
+			shs = shs / sinim;
+		}
+		double sgs = sghs - cosim * shs;
+
+		dedt = ses + s1 * znl * s5;
+		didt = sis + s2 * znl * (z11 + z13);
+		dmdt = sls - znl * s3 * (z1 + z3 - 14.0 - 6.0 * emsq);
+		double sghl = s4 * znl * (z31 + z33 - 6.0);
+		double shll = -znl * s2 * (z21 + z23);
+		if (inclo < 5.2359877E-2 || inclo > Math.PI - 5.2359877E-2) {
+			shll = 0.0;
+		}
+		domdt = sgs + sghl;
+		dnodt = shs;
+		if (sinim != 0.0) {
+			domdt = domdt - cosim / sinim * shll;
+			dnodt = dnodt + shll / sinim;
+		}
+
+		// Resonance terms
+		double theta = gsto % TWO_PI;
+		if (irez != 0) {
+			double aonv = Math.pow(nm / XKE, X2O3);
+
+			// Geopotential resonance for 12 hour orbits
+			if (irez == 2) {
+				double cosisq = cosim * cosim;
+				em = ecco;
+				emsq = eccsq;
+				double eoc = em * emsq;
+				double g201 = -0.306 - (em - 0.64) * 0.440;
+				double g211, g310, g322, g410, g422, g520, g521, g532, g533;
+				if (em <= 0.65) {
+					g211 = 3.616 - 13.2470 * em + 16.2900 * emsq;
+					g310 = -19.302 + 117.3900 * em - 228.4190 * emsq
+							+ 156.5910 * eoc;
+					g322 = -18.9068 + 109.7927 * em - 214.6334 * emsq
+							+ 146.5816 * eoc;
+					g410 = -41.122 + 242.6940 * em - 471.0940 * emsq
+							+ 313.9530 * eoc;
+					g422 = -146.407 + 841.8800 * em - 1629.014 * emsq
+							+ 1083.4350 * eoc;
+					g520 = -532.114 + 3017.977 * em - 5740.032 * emsq
+							+ 3708.2760 * eoc;
+				} else {
+					g211 = -72.099 + 331.819 * em - 508.738 * emsq + 266.724
+							* eoc;
+					g310 = -346.844 + 1582.851 * em - 2415.925 * emsq
+							+ 1246.113 * eoc;
+					g322 = -342.585 + 1554.908 * em - 2366.899 * emsq
+							+ 1215.972 * eoc;
+					g410 = -1052.797 + 4758.686 * em - 7193.992 * emsq
+							+ 3651.957 * eoc;
+					g422 = -3581.690 + 16178.110 * em - 24462.770 * emsq
+							+ 12422.520 * eoc;
+					if (em > 0.715) {
+						g520 = -5149.66 + 29936.92 * em - 54087.36 * emsq
+								+ 31324.56 * eoc;
+					} else {
+						g520 = 1464.74 - 4664.75 * em + 3763.64 * emsq;
+					}
+				}
+				if (em < 0.7) {
+					g533 = -919.22770 + 4988.6100 * em - 9064.7700 * emsq
+							+ 5542.21 * eoc;
+					g521 = -822.71072 + 4568.6173 * em - 8491.4146 * emsq
+							+ 5337.524 * eoc;
+					g532 = -853.66600 + 4690.2500 * em - 8624.7700 * emsq
+							+ 5341.4 * eoc;
+				} else {
+					g533 = -37995.780 + 161616.52 * em - 229838.20 * emsq
+							+ 109377.94 * eoc;
+					g521 = -51752.104 + 218913.95 * em - 309468.16 * emsq
+							+ 146349.42 * eoc;
+					g532 = -40023.880 + 170470.89 * em - 242699.48 * emsq
+							+ 115605.82 * eoc;
+				}
+
+				double sini2 = sinim * sinim;
+				double f220 = 0.75 * (1.0 + 2.0 * cosim + cosisq);
+				double f221 = 1.5 * sini2;
+				double f321 = 1.875 * sinim * (1.0 - 2.0 * cosim - 3.0 * cosisq);
+				double f322 = -1.875 * sinim
+						* (1.0 + 2.0 * cosim - 3.0 * cosisq);
+				double f441 = 35.0 * sini2 * f220;
+				double f442 = 39.3750 * sini2 * sini2;
+				double f522 = 9.84375 * sinim
+						* (sini2 * (1.0 - 2.0 * cosim - 5.0 * cosisq) + 0.33333333
+								* (-2.0 + 4.0 * cosim + 6.0 * cosisq));
+				double f523 = sinim
+						* (4.92187512 * sini2
+								* (-2.0 - 4.0 * cosim + 10.0 * cosisq) + 6.56250012
+								* (1.0 + 2.0 * cosim - 3.0 * cosisq));
+				double f542 = 29.53125 * sinim
+						* (2.0 - 8.0 * cosim + cosisq
+								* (-12.0 + 8.0 * cosim + 10.0 * cosisq));
+				double f543 = 29.53125 * sinim
+						* (-2.0 - 8.0 * cosim + cosisq
+								* (12.0 + 8.0 * cosim - 10.0 * cosisq));
+				double xno2 = nm * nm;
+				double ainv2 = aonv * aonv;
+				double temp1 = 3.0 * xno2 * ainv2;
+				double temp = temp1 * root22;
+				d2201 = temp * f220 * g201;
+				d2211 = temp * f221 * g211;
+				temp1 = temp1 * aonv;
+				temp = temp1 * root32;
+				d3210 = temp * f321 * g310;
+				d3222 = temp * f322 * g322;
+				temp1 = temp1 * aonv;
+				temp = 2.0 * temp1 * root44;
+				d4410 = temp * f441 * g410;
+				d4422 = temp * f442 * g422;
+				temp1 = temp1 * aonv;
+				temp = temp1 * root52;
+				d5220 = temp * f522 * g520;
+				d5232 = temp * f523 * g532;
+				temp = 2.0 * temp1 * root54;
+				d5421 = temp * f542 * g521;
+				d5433 = temp * f543 * g533;
+				xlamo = (mo + nodeo + nodeo - theta - theta) % TWO_PI;
+				xfact = mdot + dmdt + 2.0 * (nodedot + dnodt - rptim) - no;
+			}
+
+			// Synchronous resonance terms
+			if (irez == 1) {
+				double g200 = 1.0 + emsq * (-2.5 + 0.8125 * emsq);
+				double g310 = 1.0 + 2.0 * emsq;
+				double g300 = 1.0 + emsq * (-6.0 + 6.60937 * emsq);
+				double f220 = 0.75 * (1.0 + cosim) * (1.0 + cosim);
+				double f311 = 0.9375 * sinim * sinim * (1.0 + 3.0 * cosim)
+						- 0.75 * (1.0 + cosim);
+				double f330 = 1.0 + cosim;
+				f330 = 1.875 * f330 * f330 * f330;
+				del1 = 3.0 * nm * nm * aonv * aonv;
+				del2 = 2.0 * del1 * f220 * g200 * q22;
+				del3 = 3.0 * del1 * f330 * g300 * q33 * aonv;
+				del1 = del1 * f311 * g310 * q31 * aonv;
+				xlamo = (mo + nodeo + argpo - theta) % TWO_PI;
+				xfact = mdot + xpidot - rptim + dmdt + domdt + dnodt - no;
+			}
+		}
+	}
+
+	/**
+	 * Evaluate the elements. From sgp4()
+	 *
+	 * @param t
+	 *            minutes since the elements' epoch
+	 * @param out
+	 *            the position and velocity in metres and metres per second
+	 * @return false if the elements can't be evaluated at the time
+	 */
+	public boolean propagate(double t, double[] out) {
+		// Secular gravity and atmospheric drag
+		double xmdf = mo + mdot * t;
+		double argpdf = argpo + argpdot * t;
+		double nodedf = nodeo + nodedot * t;
+		double argpm = argpdf;
+		double mm = xmdf;
+		double t2 = t * t;
+		double nodem = nodedf + nodecf * t2;
+		double tempa = 1.0 - cc1 * t;
+		double tempe = bstar * cc4 * t;
+		double templ = t2cof * t2;
+
+		if (!isimp) {
+			double delomg = omgcof * t;
+			double delmtemp = 1.0 + eta * Math.cos(xmdf);
+			double delm = xmcof
+					* (delmtemp * delmtemp * delmtemp - delmo);
+			double temp = delomg + delm;
+			mm = xmdf + temp;
+			argpm = argpdf - temp;
+			double t3 = t2 * t;
+			double t4 = t3 * t;
+			tempa = tempa - d2 * t2 - d3 * t3 - d4 * t4;
+			tempe = tempe + bstar * cc5 * (Math.sin(mm) - sinmao);
+			templ = templ + t3cof * t3 + t4 * (t4cof + t * t5cof);
+		}
+
+		double nm = no;
+		double em = ecco;
+		double inclm = inclo;
+		if (deepSpace) {
+			// Secular lunar and solar effects and resonance. From dspace()
+			double theta = (gsto + t * 4.37526908801129966E-3) % TWO_PI;
+			em = em + dedt * t;
+			inclm = inclm + didt * t;
+			argpm = argpm + domdt * t;
+			nodem = nodem + dnodt * t;
+			mm = mm + dmdt * t;
+			if (irez != 0) {
+				double[] resonance = new double[2];
+				integrateResonance(t, resonance);
+				nm = resonance[0];
+				double xl = resonance[1];
+				if (irez != 1) {
+					mm = xl - 2.0 * nodem + 2.0 * theta;
+				} else {
+					mm = xl - nodem - argpm + theta;
+				}
+			}
+		}
+
+		if (nm <= 0.0) {
+			return false;
+		}
+		double am = Math.pow(XKE / nm, X2O3) * tempa * tempa;
+		nm = XKE / Math.pow(am, 1.5);
+		em = em - tempe;
+
+		if (em >= 1.0 || em < -0.001) {
+			return false;
+		}
+		if (em < 1.0E-6) {
+			em = 1.0E-6;
+		}
+		mm = mm + no * templ;
+		double xlm = mm + argpm + nodem;
+
+		nodem = nodem % TWO_PI;
+		argpm = argpm % TWO_PI;
+		xlm = xlm % TWO_PI;
+		mm = (xlm - argpm - nodem) % TWO_PI;
+
+		double sinim = Math.sin(inclm);
+		double cosim = Math.cos(inclm);
+
+		// Lunar and solar periodics
+		double ep = em;
+		double xincp = inclm;
+		double argpp = argpm;
+		double nodep = nodem;
+		double mp = mm;
+		double sinip = sinim;
+		double cosip = cosim;
+		double aycof = this.aycof;
+		double xlcof = this.xlcof;
+		double con41 = this.con41;
+		double x1mth2 = this.x1mth2;
+		double x7thm1 = this.x7thm1;
+		if (deepSpace) {
+			double[] periodics = { ep, xincp, nodep, argpp, mp };
+			applyPeriodics(t, periodics);
+			ep = periodics[0];
+			xincp = periodics[1];
+			nodep = periodics[2];
+			argpp = periodics[3];
+			mp = periodics[4];
+			if (xincp < 0.0) {
+				xincp = -xincp;
+				nodep = nodep + Math.PI;
+				argpp = argpp - Math.PI;
+			}
+			if (ep < 0.0 || ep > 1.0) {
+				return false;
+			}
+
+			sinip = Math.sin(xincp);
+			cosip = Math.cos(xincp);
+			aycof = -0.5 * J3OJ2 * sinip;
+			if (Math.abs(cosip + 1.0) > 1.5E-12) {
+				xlcof = -0.25 * J3OJ2 * sinip * (3.0 + 5.0 * cosip)
+						/ (1.0 + cosip);
+			} else {
+				xlcof = -0.25 * J3OJ2 * sinip * (3.0 + 5.0 * cosip) / TEMP4;
+			}
+		}
+
+		// Long period periodics
+		double axnl = ep * Math.cos(argpp);
+		double temp = 1.0 / (am * (1.0 - ep * ep));
+		double aynl = ep * Math.sin(argpp) + temp * aycof;
+		double xl = mp + argpp + nodep + temp * xlcof * axnl;
+
+		// Kepler's equation
+		double u = (xl - nodep) % TWO_PI;
+		double eo1 = u;
+		double tem5 = 9999.9;
+		double sineo1 = 0;
+		double coseo1 = 0;
+		for (int ktr = 1; Math.abs(tem5) >= 1.0E-12 && ktr <= 10; ktr++) {
+			sineo1 = Math.sin(eo1);
+			coseo1 = Math.cos(eo1);
+			tem5 = 1.0 - coseo1 * axnl - sineo1 * aynl;
+			tem5 = (u - aynl * coseo1 + axnl * sineo1 - eo1) / tem5;
+			if (Math.abs(tem5) >= 0.95) {
+				tem5 = tem5 > 0.0 ? 0.95 : -0.95;
+			}
+			eo1 = eo1 + tem5;
+		}
+
+		// Short period preliminary quantities
+		double ecose = axnl * coseo1 + aynl * sineo1;
+		double esine = axnl * sineo1 - aynl * coseo1;
+		double el2 = axnl * axnl + aynl * aynl;
+		double pl = am * (1.0 - el2);
+		if (pl < 0.0) {
+			return false;
+		}
+		double rl = am * (1.0 - ecose);
+		double rdotl = Math.sqrt(am) * esine / rl;
+		double rvdotl = Math.sqrt(pl) / rl;
+		double betal = Math.sqrt(1.0 - el2);
+		temp = esine / (1.0 + betal);
+		double sinu = am / rl * (sineo1 - aynl - axnl * temp);
+		double cosu = am / rl * (coseo1 - axnl + aynl * temp);
+		double su = Math.atan2(sinu, cosu);
+		double sin2u = (cosu + cosu) * sinu;
+		double cos2u = 1.0 - 2.0 * sinu * sinu;
+		temp = 1.0 / pl;
+		double temp1 = 0.5 * J2 * temp;
+		double temp2 = temp1 * temp;
+
+		// Short period periodics
+		if (deepSpace) {
+			double cosisq = cosip * cosip;
+			con41 = 3.0 * cosisq - 1.0;
+			x1mth2 = 1.0 - cosisq;
+			x7thm1 = 7.0 * cosisq - 1.0;
+		}
+		double mrt = rl * (1.0 - 1.5 * temp2 * betal * con41) + 0.5 * temp1
+				* x1mth2 * cos2u;
+		su = su - 0.25 * temp2 * x7thm1 * sin2u;
+		double xnode = nodep + 1.5 * temp2 * cosip * sin2u;
+		double xinc = xincp + 1.5 * temp2 * cosip * sinip * cos2u;
+		double mvt = rdotl - nm * temp1 * x1mth2 * sin2u / XKE;
+		double rvdot = rvdotl + nm * temp1 * (x1mth2 * cos2u + 1.5 * con41)
+				/ XKE;
+
+		// The satellite has decayed
+		if (mrt < 1.0) {
+			return false;
+		}
+
+		// Orientation vectors
+		double sinsu = Math.sin(su);
+		double cossu = Math.cos(su);
+		double snod = Math.sin(xnode);
+		double cnod = Math.cos(xnode);
+		double sini = Math.sin(xinc);
+		double cosi = Math.cos(xinc);
+		double xmx = -snod * cosi;
+		double xmy = cnod * cosi;
+		double ux = xmx * sinsu + cnod * cossu;
+		double uy = xmy * sinsu + snod * cossu;
+		double uz = sini * sinsu;
+		double vx = xmx * cossu - cnod * sinsu;
+		double vy = xmy * cossu - snod * sinsu;
+		double vz = sini * cossu;
+
+		double r = mrt * RADIUS * 1000.0;
+		double v = VKMPERSEC * 1000.0;
+		out[0] = r * ux;
+		out[1] = r * uy;
+		out[2] = r * uz;
+		out[3] = (mvt * ux + rvdot * vx) * v;
+		out[4] = (mvt * uy + rvdot * vy) * v;
+		out[5] = (mvt * uz + rvdot * vz) * v;
+		return true;
+	}
+
+	/**
+	 * Integrate the resonance effects with Euler-Maclaurin steps of half a
+	 * day, from the epoch or from where the last call got to if that's on
+	 * the way. From dspace()
+	 *
+	 * @param t
+	 *            minutes since the epoch
+	 * @param out
+	 *            the mean motion and the mean longitude at t
+	 */
+	private void integrateResonance(double t, double[] out) {
+		final double fasx2 = 0.13130908;
+		final double fasx4 = 2.8843198;
+		final double fasx6 = 0.37448087;
+		final double g22 = 5.7686396;
+		final double g32 = 0.95240898;
+		final double g44 = 1.8014998;
+		final double g52 = 1.0508330;
+		final double g54 = 4.4108898;
+		final double stepp = 720.0;
+		final double step2 = 259200.0;
+
+		Resonance last = resonance;
+		double atime = 0.0;
+		double xni = no;
+		double xli = xlamo;
+		if (last != null && t * last.atime > 0
+				&& Math.abs(t) >= Math.abs(last.atime)) {
+			atime = last.atime;
+			xni = last.xni;
+			xli = last.xli;
+		}
+		double start = atime;
+		double delt = t > 0.0 ? stepp : -stepp;
+		double ft = 0.0;
+		double xndt, xldot, xnddt;
+		while (true) {
+			if (irez != 2) {
+				// Near-synchronous resonance terms
+				xndt = del1 * Math.sin(xli - fasx2) + del2
+						* Math.sin(2.0 * (xli - fasx4)) + del3
+						* Math.sin(3.0 * (xli - fasx6));
+				xldot = xni + xfact;
+				xnddt = del1 * Math.cos(xli - fasx2) + 2.0 * del2
+						* Math.cos(2.0 * (xli - fasx4)) + 3.0 * del3
+						* Math.cos(3.0 * (xli - fasx6));
+				xnddt = xnddt * xldot;
+			} else {
+				// Near half-day resonance terms
+				double xomi = argpo + argpdot * atime;
+				double x2omi = xomi + xomi;
+				double x2li = xli + xli;
+				xndt = d2201 * Math.sin(x2omi + xli - g22) + d2211
+						* Math.sin(xli - g22) + d3210
+						* Math.sin(xomi + xli - g32) + d3222
+						* Math.sin(-xomi + xli - g32) + d4410
+						* Math.sin(x2omi + x2li - g44) + d4422
+						* Math.sin(x2li - g44) + d5220
+						* Math.sin(xomi + xli - g52) + d5232
+						* Math.sin(-xomi + xli - g52) + d5421
+						* Math.sin(xomi + x2li - g54) + d5433
+						* Math.sin(-xomi + x2li - g54);
+				xldot = xni + xfact;
+				xnddt = d2201 * Math.cos(x2omi + xli - g22) + d2211
+						* Math.cos(xli - g22) + d3210
+						* Math.cos(xomi + xli - g32) + d3222
+						* Math.cos(-xomi + xli - g32) + d5220
+						* Math.cos(xomi + xli - g52) + d5232
+						* Math.cos(-xomi + xli - g52) + 2.0
+						* (d4410 * Math.cos(x2omi + x2li - g44) + d4422
+								* Math.cos(x2li - g44) + d5421
+								* Math.cos(xomi + x2li - g54) + d5433
+								* Math.cos(-xomi + x2li - g54));
+				xnddt = xnddt * xldot;
+			}
+
+			if (Math.abs(t - atime) < stepp) {
+				ft = t - atime;
+				break;
+			}
+			xli = xli + xldot * delt + xndt * step2;
+			xni = xni + xndt * delt + xnddt * step2;
+			atime = atime + delt;
+		}
+
+		if (atime != start) {
+			resonance = new Resonance(atime, xli, xni);
+		}
+
+		out[0] = xni + xndt * ft + xnddt * ft * ft * 0.5;
+		out[1] = xli + xldot * ft + xndt * ft * ft * 0.5;
+	}
+
+	/**
+	 * Add the lunar and solar periodics to the elements. From dpper()
+	 *
+	 * @param t
+	 *            minutes since the epoch
+	 * @param elements
+	 *            eccentricity, inclination, node, argument of periapsis and
+	 *            mean anomaly, changed in place
+	 */
+	private void applyPeriodics(double t, double[] elements) {
+		final double zns = 1.19459E-5;
+		final double zes = 0.01675;
+		final double znl = 1.5835218E-4;
+		final double zel = 0.05490;
+
+		double ep = elements[0];
+		double inclp = elements[1];
+		double nodep = elements[2];
+		double argpp = elements[3];
+		double mp = elements[4];
+
+		double zm = zmos + zns * t;
+		double zf = zm + 2.0 * zes * Math.sin(zm);
+		double sinzf = Math.sin(zf);
+		double f2 = 0.5 * sinzf * sinzf - 0.25;
+		double f3 = -0.5 * sinzf * Math.cos(zf);
+		double ses = se2 * f2 + se3 * f3;
+		double sis = si2 * f2 + si3 * f3;
+		double sls = sl2 * f2 + sl3 * f3 + sl4 * sinzf;
+		double sghs = sgh2 * f2 + sgh3 * f3 + sgh4 * sinzf;
+		double shs = sh2 * f2 + sh3 * f3;
+		zm = zmol + znl * t;
+		zf = zm + 2.0 * zel * Math.sin(zm);
+		sinzf = Math.sin(zf);
+		f2 = 0.5 * sinzf * sinzf - 0.25;
+		f3 = -0.5 * sinzf * Math.cos(zf);
+		double sel = ee2 * f2 + e3 * f3;
+		double sil = xi2 * f2 + xi3 * f3;
+		double sll = xl2 * f2 + xl3 * f3 + xl4 * sinzf;
+		double sghl = xgh2 * f2 + xgh3 * f3 + xgh4 * sinzf;
+		double shll = xh2 * f2 + xh3 * f3;
+		double pe = ses + sel - peo;
+		double pinc = sis + sil - pinco;
+		double pl = sls + sll - plo;
+		double pgh = sghs + sghl - pgho;
+		double ph = shs + shll - pho;
+
+		inclp = inclp + pinc;
+		ep = ep + pe;
+		double sinip = Math.sin(inclp);
+		double cosip = Math.cos(inclp);
+
+		if (inclp >= 0.2) {
+			// Apply the periodics directly
+			ph = ph / sinip;
+			pgh = pgh - cosip * ph;
+			argpp = argpp + pgh;
+			nodep = nodep + ph;
+			mp = mp + pl;
+		} else {
+			// Apply them with the Lyddane modification
+			double sinop = Math.sin(nodep);
+			double cosop = Math.cos(nodep);
+			double alfdp = sinip * sinop;
+			double betdp = sinip * cosop;
+			double dalf = ph * cosop + pinc * cosip * sinop;
+			double dbet = -ph * sinop + pinc * cosip * cosop;
+			alfdp = alfdp + dalf;
+			betdp = betdp + dbet;
+			nodep = nodep % TWO_PI;
+			double xls = mp + argpp + cosip * nodep;
+			double dls = pl + pgh - pinc * nodep * sinip;
+			xls = xls + dls;
+			double xnoh = nodep;
+			nodep = Math.atan2(alfdp, betdp);
+			if (Math.abs(xnoh - nodep) > Math.PI) {
+				if (nodep < xnoh) {
+					nodep = nodep + TWO_PI;
+				} else {
+					nodep = nodep - TWO_PI;
+				}
+			}
+			mp = mp + pl;
+			argpp = xls - mp - cosip * nodep;
+		}
+
+		elements[0] = ep;
+		elements[1] = inclp;
+		elements[2] = nodep;
+		elements[3] = argpp;
+		elements[4] = mp;
+	}
+}
@@ -1,62 +1,257 @@
 package simulator.tle;
 
-import java.util.Calendar;
-import java.util.GregorianCalendar;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 
 import simulator.astro.Astrophysics;
 import simulator.astro.Orbit;
 import simulator.astro.Time;
 
+/**
+ * Two-line elements of one satellite. The fixed-width columns are parsed
+ * straight from bytes into the fields when the TLE is made, so nothing is
+ * parsed again when it's used.
+ *
+ * @author David
+ *
+ */
 public class TLE {
 	public String name;
-	private String line1;
-	private String line2;
 	public int id;
 
+	/**
+	 * Epoch as a julian date
+	 */
+	private double epoch;
+
+	/**
+	 * Drag term, in inverse earth radii
+	 */
+	private double bstar;
+
+	/*
+	 * Mean elements. Angles are in degrees and the mean motion is in
+	 * revolutions per day, as in the TLE
+	 */
+	private double inclination;
+	private double node;
+	private double eccentricity;
+	private double peri;
+	private double meanAnomaly;
+	private double meanMotion;
+
+	/**
+	 * Initialized the first time it's asked for
+	 */
+	private SGP4 sgp4;
+
 	public TLE(String name, String line1, String line2) {
-		// TODO use String.trim on name?
 		this.name = name;
-		this.line1 = line1;
-		this.line2 = line2;
-		id = Integer.parseInt(line1.substring(2, 7));
+		byte[] b1 = line1.getBytes(StandardCharsets.ISO_8859_1);
+		byte[] b2 = line2.getBytes(StandardCharsets.ISO_8859_1);
+		ByteBuffer buffer = ByteBuffer.allocate(b1.length + b2.length);
+		buffer.put(b1).put(b2);
+		parse(buffer, 0, b1.length);
 	}
 
 	/**
-	 * @return the epoch as TAI time in seconds
+	 * Parse the two lines from a buffer, for example a mapped file
+	 *
+	 * @param line1
+	 *            index of the first character of line 1
+	 * @param line2
+	 *            index of the first character of line 2
+	 */
+	TLE(String name, ByteBuffer buffer, int line1, int line2) {
+		this.name = name;
+		parse(buffer, line1, line2);
+	}
+
+	/**
+	 * Make a TLE from fields which have already been parsed
+	 */
+	TLE(String name, int id, double epoch, double bstar, double inclination,
+			double node, double eccentricity, double peri,
+			double meanAnomaly, double meanMotion) {
+		this.name = name;
+		this.id = id;
+		this.epoch = epoch;
+		this.bstar = bstar;
+		this.inclination = inclination;
+		this.node = node;
+		this.eccentricity = eccentricity;
+		this.peri = peri;
+		this.meanAnomaly = meanAnomaly;
+		this.meanMotion = meanMotion;
+	}
+
+	private void parse(ByteBuffer b, int line1, int line2) {
+		id = (int) parseLong(b, line1 + 2, line1 + 7);
+
+		// Two-digit years from 57 are in the 1900s
+		int epochYear = (int) parseLong(b, line1 + 18, line1 + 20);
+		epochYear += epochYear < 57 ? 2000 : 1900;
+		double epochDays = parseDecimal(b, line1 + 20, line1 + 32);
+
+		// Day 1.0 is midnight at the start of the 1st of January
+		epoch = Time.getJulianDate(epochYear, 1, 1, 0, 0, 0) - 1.0
+				+ epochDays;
+
+		bstar = parseExponent(b, line1 + 53, line1 + 61);
+		inclination = parseDecimal(b, line2 + 8, line2 + 16);
+		node = parseDecimal(b, line2 + 17, line2 + 25);
+		eccentricity = parseFraction(b, line2 + 26, line2 + 33);
+		peri = parseDecimal(b, line2 + 34, line2 + 42);
+		meanAnomaly = parseDecimal(b, line2 + 43, line2 + 51);
+		meanMotion = parseDecimal(b, line2 + 52, line2 + 63);
+	}
+
+	/**
+	 * Parse an integer from the columns, ignoring spaces
+	 */
+	private static long parseLong(ByteBuffer b, int start, int end) {
+		long value = 0;
+		boolean negative = false;
+		for (int i = start; i < end; i++) {
+			byte c = b.get(i);
+			if (c >= '0' && c <= '9') {
+				value = value * 10 + (c - '0');
+			} else if (c == '-') {
+				negative = true;
+			}
+		}
+		return negative ? -value : value;
+	}
+
+	/**
+	 * Parse a number like "-12.3456" from the columns. The digits are
+	 * gathered into a long and divided once, which rounds the same way as
+	 * Double.parseDouble() for the widths used in TLEs
+	 */
+	private static double parseDecimal(ByteBuffer b, int start, int end) {
+		long digits = 0;
+		long scale = 1;
+		boolean negative = false;
+		boolean fraction = false;
+		for (int i = start; i < end; i++) {
+			byte c = b.get(i);
+			if (c >= '0' && c <= '9') {
+				digits = digits * 10 + (c - '0');
+				if (fraction) {
+					scale *= 10;
+				}
+			} else if (c == '.') {
+				fraction = true;
+			} else if (c == '-') {
+				negative = true;
+			}
+		}
+		double value = (double) digits / scale;
+		return negative ? -value : value;
+	}
+
+	/**
+	 * Parse digits with an implied leading decimal point, like "1859667"
+	 */
+	private static double parseFraction(ByteBuffer b, int start, int end) {
+		long digits = 0;
+		long scale = 1;
+		for (int i = start; i < end; i++) {
+			byte c = b.get(i);
+			if (c >= '0' && c <= '9') {
+				digits = digits * 10 + (c - '0');
+				scale *= 10;
+			}
+		}
+		return (double) digits / scale;
+	}
+
+	/**
+	 * Parse digits with an implied leading decimal point and a power of ten,
+	 * like " 28098-4"
+	 */
+	private static double parseExponent(ByteBuffer b, int start, int end) {
+		// The power of ten is the last two columns
+		int mantissaEnd = end - 2;
+		while (mantissaEnd > start && b.get(mantissaEnd - 1) == ' ') {
+			mantissaEnd--;
+		}
+		double mantissa = parseFraction(b, start, mantissaEnd);
+		if (b.get(start) == '-') {
+			mantissa = -mantissa;
+		}
+		int exponent = (int) parseLong(b, end - 2, end);
+		return mantissa == 0 ? 0 : mantissa * Math.pow(10.0, exponent);
+	}
+
+	/**
+	 * @return the epoch as a julian date
 	 */
 	public double getEpoch() {
-		// Calculate epoch
-		int epochYear = Integer.parseInt("20" + line1.substring(18, 20));
-		double epochDays = Double.parseDouble(line1.substring(20, 32));
-		double hour = (epochDays - (int) (epochDays)) / 24.0;
-		double min = (hour - (int) hour) / 60.0;
-		double second = (min - (int) min) / 60.0;
-		Calendar cal = new GregorianCalendar();
-		cal.set(epochYear, 0, 0, 0, 0, 0);
-		cal.add(Calendar.DAY_OF_YEAR, (int) epochDays);
-		cal.add(Calendar.HOUR_OF_DAY, (int) hour);
-		cal.add(Calendar.MINUTE, (int) min);
-		cal.add(Calendar.SECOND, (int) second);
-
-		double epochJD = Time.getJulianDate(cal.get(Calendar.YEAR),
-				cal.get(Calendar.MONTH) + 1, cal.get(Calendar.DATE),
-				cal.get(Calendar.HOUR_OF_DAY), cal.get(Calendar.MINUTE), second);
-
-		return epochJD;
+		return epoch;
+	}
+
+	/**
+	 * @return the drag term, in inverse earth radii
+	 */
+	double getBstar() {
+		return bstar;
+	}
+
+	/**
+	 * @return the mean inclination, in degrees
+	 */
+	double getInclination() {
+		return inclination;
+	}
+
+	/**
+	 * @return the mean right ascension of the ascending node, in degrees
+	 */
+	double getNode() {
+		return node;
+	}
+
+	double getEccentricity() {
+		return eccentricity;
+	}
+
+	/**
+	 * @return the mean argument of perigee, in degrees
+	 */
+	double getPeri() {
+		return peri;
+	}
+
+	/**
+	 * @return the mean anomaly at the epoch, in degrees
+	 */
+	double getMeanAnomaly() {
+		return meanAnomaly;
+	}
+
+	/**
+	 * @return the mean motion, in revolutions per day
+	 */
+	double getMeanMotion() {
+		return meanMotion;
+	}
+
+	/**
+	 * @return the SGP4 propagator for these elements. It's only initialized
+	 *         once
+	 */
+	public SGP4 getSGP4() {
+		if (sgp4 == null) {
+			sgp4 = new SGP4(this);
+		}
+		return sgp4;
 	}
 
 	public Orbit getOrbit() {
 		// Store earth's gravitational parameter
 		double mu = 3.986E14;
 
-		// Get orbital elements
-		double i = Double.parseDouble(line2.substring(9, 16));
-		double node = Double.parseDouble(line2.substring(17, 25));
-		double e = Double.parseDouble("." + line2.substring(27, 33));
-		double peri = Double.parseDouble(line2.substring(34, 42));
-		double meanAnom = Double.parseDouble(line2.substring(43, 51));
-		double meanMotion = Double.parseDouble(line2.substring(52, 63));
-
 		// Calculate true anomaly
 		double a = Math.pow(
 				mu
@@ -64,11 +259,12 @@ public class TLE {
 								meanMotion * 2.0 * Math.PI / (24.0 * 3600.0),
 								2.0), 1.0 / 3.0);
 
-		// Convert mean anomaly to true anomaly
-		double E = Astrophysics.kepEqtnE(meanAnom, e);
-		double v = Astrophysics.anomalyToV(e, E);
+		// Convert mean anomaly to true anomaly, in radians
+		double E = Astrophysics.kepEqtnE(Math.toRadians(meanAnomaly),
+				eccentricity);
+		double v = Math.toDegrees(Astrophysics.anomalyToV(eccentricity, E));
 
-		Orbit orb = new Orbit(a, e, i, node, peri, v);
+		Orbit orb = new Orbit(a, eccentricity, inclination, node, peri, v);
 		orb.toRadians();
 
 		return orb;
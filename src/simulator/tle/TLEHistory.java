@@ -0,0 +1,126 @@
+package simulator.tle;
+
+import java.util.Arrays;
+
+/**
+ * Every element set loaded for one satellite, sorted by epoch. The epochs are
+ * kept in a primitive array so the set nearest to an epoch is found with a
+ * binary search.
+ *
+ * @author David
+ *
+ */
+public class TLEHistory {
+	private final int id;
+	private double[] epochs;
+	private TLE[] sets;
+	private int size;
+
+	public TLEHistory(int id) {
+		this.id = id;
+		epochs = new double[4];
+		sets = new TLE[4];
+	}
+
+	/**
+	 * Add an element set. Sets are usually added in order, which appends. A
+	 * set with the same epoch as one already added is ignored
+	 *
+	 * @return false if the set wasn't added
+	 */
+	public synchronized boolean add(TLE tle) {
+		if (tle.id != id) {
+			return false;
+		}
+		double epoch = tle.getEpoch();
+		int i = size;
+		if (size > 0 && epoch <= epochs[size - 1]) {
+			i = Arrays.binarySearch(epochs, 0, size, epoch);
+			if (i >= 0) {
+				return false;
+			}
+			i = -i - 1;
+		}
+
+		if (size == epochs.length) {
+			epochs = Arrays.copyOf(epochs, size * 2);
+			sets = Arrays.copyOf(sets, size * 2);
+		}
+		System.arraycopy(epochs, i, epochs, i + 1, size - i);
+		System.arraycopy(sets, i, sets, i + 1, size - i);
+		epochs[i] = epoch;
+		sets[i] = tle;
+		size++;
+		return true;
+	}
+
+	/**
+	 * @param jd
+	 *            epoch as a julian date
+	 * @return the element set with the epoch nearest to jd, or null if there
+	 *         are none
+	 */
+	public synchronized TLE getNearest(double jd) {
+		if (size == 0) {
+			return null;
+		}
+		return sets[nearestIndex(jd)];
+	}
+
+	/**
+	 * Find the element set nearest to jd and the dates it stays the nearest
+	 * for, which reach halfway to the sets either side of it
+	 * 
+	 * @param jd
+	 *            epoch as a julian date
+	 * @param span
+	 *            set to the julian dates after which the set is the nearest
+	 *            and up to which it is. Infinite at the ends of the history
+	 * @return the element set, or null if there are none
+	 */
+	public synchronized TLE getNearest(double jd, double[] span) {
+		if (size == 0) {
+			return null;
+		}
+		int i = nearestIndex(jd);
+		span[0] = i == 0 ? Double.NEGATIVE_INFINITY
+				: (epochs[i - 1] + epochs[i]) / 2.0;
+		span[1] = i == size - 1 ? Double.POSITIVE_INFINITY
+				: (epochs[i] + epochs[i + 1]) / 2.0;
+		return sets[i];
+	}
+
+	/**
+	 * @return the index of the set with the epoch nearest to jd. There must
+	 *         be at least one set
+	 */
+	private int nearestIndex(double jd) {
+		int i = Arrays.binarySearch(epochs, 0, size, jd);
+		if (i >= 0) {
+			return i;
+		}
+
+		// The sets either side of where jd would go
+		i = -i - 1;
+		if (i == 0) {
+			return 0;
+		} else if (i == size) {
+			return size - 1;
+		}
+		return jd - epochs[i - 1] <= epochs[i] - jd ? i - 1 : i;
+	}
+
+	/**
+	 * @return the NORAD id of the satellite
+	 */
+	public int getId() {
+		return id;
+	}
+
+	/**
+	 * @return the number of element sets
+	 */
+	public synchronized int size() {
+		return size;
+	}
+}
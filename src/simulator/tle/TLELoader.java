@@ -1,72 +1,155 @@
 package simulator.tle;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.MalformedURLException;
 import java.net.URISyntaxException;
 import java.net.URL;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.HashMap;
-import java.util.Scanner;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import simulator.Simulation;
 
+/**
+ * Loads TLEs from Celestrak by category. Every loaded TLE is kept in one
+ * catalog, indexed by NORAD id and by name. A TLE in several categories is
+ * only stored once, and each category is a bitmap of positions in the
+ * catalog.
+ *
+ * @author David
+ *
+ */
 public class TLELoader {
-	private HashMap<Integer, TLE> tles;
-	private HashMap<String, HashMap<Integer, TLE>> loadedCategories;
+	/**
+	 * Magic number at the start of a cache file, followed by the version
+	 */
+	private static final int CACHE_MAGIC = 0x544C4543;
+	private static final int CACHE_VERSION = 1;
+
+	/**
+	 * Bytes in the header: the magic number, the version, the length and
+	 * modified time of the text file and the number of TLEs
+	 */
+	private static final int CACHE_HEADER = 28;
+
+	/**
+	 * Every loaded TLE, in the order they were first loaded
+	 */
+	private ArrayList<TLE> catalog;
+
+	/**
+	 * Position in the catalog by NORAD id
+	 */
+	private HashMap<Integer, Integer> ids;
+
+	/**
+	 * Position in the catalog by normalized name. If there are duplicate
+	 * names, the first one loaded is used
+	 */
+	private HashMap<String, Integer> names;
+
+	/**
+	 * The catalog positions in each loaded category
+	 */
+	private HashMap<String, BitSet> loadedCategories;
+
+	/**
+	 * Every element set loaded for each NORAD id, from the categories and
+	 * from archives of past elements
+	 */
+	private HashMap<Integer, TLEHistory> histories;
 	public static String[] categories;
 
 	public TLELoader() {
-		tles = new HashMap<Integer, TLE>();
-		loadedCategories = new HashMap<String, HashMap<Integer, TLE>>();
+		catalog = new ArrayList<TLE>();
+		ids = new HashMap<Integer, Integer>();
+		names = new HashMap<String, Integer>();
+		loadedCategories = new HashMap<String, BitSet>();
+		histories = new HashMap<Integer, TLEHistory>();
 		categories = new String[] { "amateur", "argos", "beidou", "cubesat",
-				"dmc", "education", "engineering", "galileo", "geo", "glo-ops",
-				"globalstar", "goes", "gorizont", "gps-ops", "intelsat",
-				"iridium", "military", "molniya", "musson", "nnss", "noaa",
-				"orbcomm", "other", "other-comm", "radar", "raduga",
-				"resource", "sarsat", "sbas", "science", "stations", "tdrss",
-				"tle-new", "visual", "weather", "x-comm", "1999-025",
+				"dmc", "education", "engineering", "fengyun", "galileo",
+				"geo", "glo-ops", "globalstar", "goes", "gorizont", "gps-ops",
+				"intelsat", "iridium", "iss", "military", "molniya", "musson",
+				"nnss", "noaa", "orbcomm", "other", "other-comm", "radar",
+				"raduga", "resource", "sarsat", "sbas", "science", "stations",
+				"tdrss", "tle-new", "visual", "weather", "x-comm", "1999-025",
 				"iridium-33-debris" };
 	}
 
 	private boolean isCategory(String category) {
 		for (int i = 0; i < categories.length; i++) {
-			if (categories[i].equals(categories[i])) {
+			if (categories[i].equals(category)) {
 				return true;
 			}
 		}
 		return false;
 	}
 
+	/**
+	 * Names are compared without case and with runs of spaces collapsed, so
+	 * "ISS  (ZARYA)" finds "ISS (ZARYA)"
+	 */
+	private static String normalize(String name) {
+		StringBuilder sb = new StringBuilder(name.length());
+		boolean space = false;
+		for (int i = 0; i < name.length(); i++) {
+			char c = name.charAt(i);
+			if (Character.isWhitespace(c)) {
+				space = sb.length() > 0;
+			} else {
+				if (space) {
+					sb.append(' ');
+					space = false;
+				}
+				sb.append(Character.toUpperCase(c));
+			}
+		}
+		return sb.toString();
+	}
+
 	private TLE getTLE(String name) {
 		return getTLE(name, false);
 	}
-	
+
+	/**
+	 * @param tryhard
+	 *            load every category if the name isn't loaded yet
+	 */
 	private TLE getTLE(String name, boolean tryhard) {
-		for (TLE tle : tles.values()) {
-			if (tle.name.equals(name)) {
-				return tle;
-			}
-		}
-		if(tryhard) {
-			for (int i = 0; i < categories.length; i++) {
-				if (!loadedCategories.containsKey(categories[i])) {
-					load(categories[i]);
-					for (TLE tle : loadedCategories.get(categories[i]).values()) {
-						if (tle.name.equals(name)) {
-							return tle;
-						}
-					}
-				}
-			}
+		Integer index = names.get(normalize(name));
+		if (index == null && tryhard) {
+			loadAll();
+			index = names.get(normalize(name));
 		}
-		return null;
+		return index == null ? null : catalog.get(index);
+	}
+
+	/**
+	 * @return the TLE with the NORAD id, or null if it hasn't been loaded
+	 */
+	public TLE getTLE(int id) {
+		Integer index = ids.get(id);
+		return index == null ? null : catalog.get(index);
 	}
 
 	public TLE getTLE(String category, String name) {
@@ -75,10 +158,9 @@ public class TLELoader {
 			return firstGuess;
 		} else if (isCategory(category)) {
 			load(category);
-			for (TLE tle : loadedCategories.get(category).values()) {
-				if (tle.name.equals(name)) {
-					return tle;
-				}
+			TLE tle = getTLE(name);
+			if (tle != null) {
+				return tle;
 			}
 			System.out.println(name + " not found!");
 			return null;
@@ -92,13 +174,30 @@ public class TLELoader {
 			if (!loadedCategories.containsKey(category)) {
 				load(category);
 			}
-			return new ArrayList<TLE>(loadedCategories.get(category).values());
+			ArrayList<TLE> tles = new ArrayList<TLE>();
+			BitSet members = loadedCategories.get(category);
+			if (members != null) {
+				for (int i = members.nextSetBit(0); i >= 0; i = members
+						.nextSetBit(i + 1)) {
+					tles.add(catalog.get(i));
+				}
+			}
+			return tles;
 		} else {
 			System.out.println(category + " not found");
 			return new ArrayList<TLE>();
 		}
 	}
 
+	/**
+	 * @return true if the TLE has been loaded as part of the category
+	 */
+	public boolean isInCategory(TLE tle, String category) {
+		Integer index = ids.get(tle.id);
+		BitSet members = loadedCategories.get(category);
+		return index != null && members != null && members.get(index);
+	}
+
 	/**
 	 * Archive a category into </res/tle/category.txt>. Allows offline usage.
 	 * 
@@ -131,58 +230,421 @@ public class TLELoader {
 
 	public void load(String category) {
 		if (!loadedCategories.containsKey(category) && isCategory(category)) {
-			Scanner s;
-			InputStream is = null;
-
-			if (Simulation.USE_INTERNET) {
-				try {
-					URL url = new URL(
-							"http://www.celestrak.com/NORAD/elements/"
-									+ category + ".txt");
-					is = url.openStream();
-				} catch (MalformedURLException e) {
-					// TODO Auto-generated catch block
-					e.printStackTrace();
-				} catch (IOException e) {
-					// TODO Auto-generated catch block
-					e.printStackTrace();
+			merge(category, read(category));
+		}
+	}
+
+	/**
+	 * Load every category
+	 */
+	public void loadAll() {
+		load(Arrays.asList(categories));
+	}
+
+	/**
+	 * Load the categories which aren't loaded yet. They are read and parsed
+	 * on all cores, then merged in the order given so the catalog is the
+	 * same every time.
+	 */
+	public void load(List<String> wanted) {
+		ArrayList<String> pending = new ArrayList<String>();
+		for (String category : wanted) {
+			if (!loadedCategories.containsKey(category)
+					&& isCategory(category) && !pending.contains(category)) {
+				pending.add(category);
+			}
+		}
+		if (pending.isEmpty()) {
+			return;
+		}
+
+		int threads = Math.min(pending.size(), Runtime.getRuntime()
+				.availableProcessors());
+		if (threads == 1) {
+			for (String category : pending) {
+				merge(category, read(category));
+			}
+			return;
+		}
+
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		ArrayList<Future<ArrayList<TLE>>> results = new ArrayList<Future<ArrayList<TLE>>>();
+		for (final String category : pending) {
+			results.add(executor.submit(new Callable<ArrayList<TLE>>() {
+				@Override
+				public ArrayList<TLE> call() {
+					return read(category);
 				}
-			} else {
-				try {
-					File jarFile = new File(getClass().getProtectionDomain()
-							.getCodeSource().getLocation().toURI().getPath());
-					String root = jarFile.getParent();
-					String tlePath = (root + "/res/tle/" + category + ".txt");
-					is = new FileInputStream(tlePath);
-				} catch (URISyntaxException e) {
-					// TODO Auto-generated catch block
-					e.printStackTrace();
-				} catch (FileNotFoundException e) {
-					// TODO Auto-generated catch block
-					e.printStackTrace();
+			}));
+		}
+		executor.shutdown();
+
+		for (int i = 0; i < pending.size(); i++) {
+			try {
+				merge(pending.get(i), results.get(i).get());
+			} catch (InterruptedException e) {
+				e.printStackTrace();
+				Thread.currentThread().interrupt();
+				return;
+			} catch (ExecutionException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * Read and parse a category. Doesn't touch the catalog, so it can be
+	 * called from any thread
+	 *
+	 * @return the TLEs in the order of the file, or null if it couldn't be
+	 *         read
+	 */
+	private ArrayList<TLE> read(String category) {
+		if (Simulation.USE_INTERNET) {
+			return download(category);
+		} else {
+			return loadArchive(category);
+		}
+	}
+
+	/**
+	 * Load an archive of past element sets into the histories. The archive
+	 * may have many sets for each satellite, with or without name lines. It
+	 * doesn't change the catalog
+	 *
+	 * @param path
+	 *            the archive file
+	 * @return the number of sets which weren't in the histories already
+	 */
+	public int loadHistory(String path) {
+		try {
+			int added = 0;
+			for (TLE tle : readArchive(new File(path))) {
+				if (addHistory(tle)) {
+					added++;
 				}
 			}
+			return added;
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		return 0;
+	}
+
+	/**
+	 * @return every element set loaded for the NORAD id, or null if none
+	 *         have been
+	 */
+	public TLEHistory getHistory(int id) {
+		return histories.get(id);
+	}
 
-			s = new Scanner(is);
-			HashMap<Integer, TLE> newTles = new HashMap<Integer, TLE>();
-
-			while (s.hasNextLine()) {
-				for (int i = 0; i < 3; i++) {
-					if (!s.hasNextLine()) {
-						break;
-					}
-					String name = s.nextLine();
-					name = name.trim();
-					String line1 = s.nextLine();
-					String line2 = s.nextLine();
-					TLE newTLE = new TLE(name, line1, line2);
-					tles.put(newTLE.id, newTLE);
-					newTles.put(newTLE.id, newTLE);
+	private boolean addHistory(TLE tle) {
+		TLEHistory history = histories.get(tle.id);
+		if (history == null) {
+			history = new TLEHistory(tle.id);
+			histories.put(tle.id, history);
+		}
+		return history.add(tle);
+	}
+
+	/**
+	 * Add a parsed category to the catalog. If a NORAD id is already in the
+	 * catalog, the TLE with the later epoch is kept. Its old name still finds
+	 * it. Both sets are kept in the histories
+	 */
+	private void merge(String category, ArrayList<TLE> newTles) {
+		if (newTles == null) {
+			return;
+		}
+		BitSet members = new BitSet(catalog.size() + newTles.size());
+		for (TLE tle : newTles) {
+			addHistory(tle);
+			Integer index = ids.get(tle.id);
+			if (index == null) {
+				index = catalog.size();
+				catalog.add(tle);
+				ids.put(tle.id, index);
+			} else if (tle.getEpoch() > catalog.get(index).getEpoch()) {
+				catalog.set(index, tle);
+			}
+			String name = normalize(tle.name);
+			if (!names.containsKey(name)) {
+				names.put(name, index);
+			}
+			members.set(index);
+		}
+		loadedCategories.put(category, members);
+	}
+
+	/**
+	 * Read a category from celestrak
+	 */
+	private ArrayList<TLE> download(String category) {
+		try {
+			URL url = new URL("http://www.celestrak.com/NORAD/elements/"
+					+ category + ".txt");
+			InputStream is = url.openStream();
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			byte[] chunk = new byte[8192];
+			int n;
+			while ((n = is.read(chunk)) != -1) {
+				bytes.write(chunk, 0, n);
+			}
+			is.close();
+			return parse(ByteBuffer.wrap(bytes.toByteArray()));
+		} catch (MalformedURLException e) {
+			e.printStackTrace();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		return null;
+	}
+
+	/**
+	 * Read a category from </res/tle/category.txt>. The parsed elements are
+	 * cached in </res/tle/category.cache> and that's read instead for as long
+	 * as the text file doesn't change.
+	 */
+	private ArrayList<TLE> loadArchive(String category) {
+		try {
+			File jarFile = new File(getClass().getProtectionDomain()
+					.getCodeSource().getLocation().toURI().getPath());
+			String root = jarFile.getParent();
+			return readArchive(new File(root + "/res/tle/" + category
+					+ ".txt"));
+		} catch (URISyntaxException e) {
+			e.printStackTrace();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		return null;
+	}
+
+	/**
+	 * Read an archive of elements, or its cache if the archive hasn't changed
+	 * since the cache was written. The cache is the archive's path with the
+	 * extension changed to .cache
+	 */
+	private static ArrayList<TLE> readArchive(File text) throws IOException {
+		String path = text.getPath();
+		int extension = path.lastIndexOf('.');
+		if (extension <= path.lastIndexOf(File.separatorChar)) {
+			extension = path.length();
+		}
+		File cache = new File(path.substring(0, extension) + ".cache");
+
+		ArrayList<TLE> newTles = readCache(cache, text);
+		if (newTles == null) {
+			newTles = parse(map(text));
+			writeCache(cache, text, newTles);
+		}
+		return newTles;
+	}
+
+	private static MappedByteBuffer map(File file) throws IOException {
+		FileChannel channel = new FileInputStream(file).getChannel();
+		try {
+			return channel.map(FileChannel.MapMode.READ_ONLY, 0,
+					channel.size());
+		} finally {
+			channel.close();
+		}
+	}
+
+	/**
+	 * Parse three-line elements. Each record is a name line followed by the
+	 * two element lines, which are parsed in place from the buffer. Records
+	 * without a name line, as in archives of past elements, are named by
+	 * their NORAD id.
+	 */
+	private static ArrayList<TLE> parse(ByteBuffer buffer) {
+		ArrayList<TLE> newTles = new ArrayList<TLE>();
+		int limit = buffer.limit();
+		int pos = 0;
+		while (pos < limit) {
+			int nameStart = pos;
+			int nameEnd = lineEnd(buffer, nameStart);
+			int line1;
+			if (nameEnd - nameStart >= 69 && buffer.get(nameStart) == '1'
+					&& buffer.get(nameStart + 1) == ' ') {
+				line1 = nameStart;
+				nameEnd = nameStart;
+			} else {
+				line1 = nextLine(buffer, nameEnd);
+			}
+			int line2 = nextLine(buffer, lineEnd(buffer, line1));
+			pos = nextLine(buffer, lineEnd(buffer, line2));
+			if (line2 >= limit) {
+				break;
+			}
+
+			// Names are padded with spaces
+			while (nameEnd > nameStart && buffer.get(nameEnd - 1) <= ' ') {
+				nameEnd--;
+			}
+			while (nameStart < nameEnd && buffer.get(nameStart) <= ' ') {
+				nameStart++;
+			}
+			byte[] name = new byte[nameEnd - nameStart];
+			for (int i = 0; i < name.length; i++) {
+				name[i] = buffer.get(nameStart + i);
+			}
+
+			TLE newTLE = new TLE(new String(name, StandardCharsets.ISO_8859_1),
+					buffer, line1, line2);
+			if (newTLE.name.isEmpty()) {
+				newTLE.name = String.valueOf(newTLE.id);
+			}
+			newTles.add(newTLE);
+		}
+		return newTles;
+	}
+
+	/**
+	 * @return the index of the newline or carriage return which ends the line
+	 *         starting at pos
+	 */
+	private static int lineEnd(ByteBuffer buffer, int pos) {
+		int limit = buffer.limit();
+		while (pos < limit) {
+			byte c = buffer.get(pos);
+			if (c == '\n' || c == '\r') {
+				break;
+			}
+			pos++;
+		}
+		return pos;
+	}
+
+	/**
+	 * @return the start of the line after the line ending at end
+	 */
+	private static int nextLine(ByteBuffer buffer, int end) {
+		if (end < buffer.limit() && buffer.get(end) == '\r') {
+			end++;
+		}
+		if (end < buffer.limit() && buffer.get(end) == '\n') {
+			end++;
+		}
+		return end;
+	}
+
+	/**
+	 * Read the cache, if it was written from the current version of the text
+	 * file. The header is checked with a plain read first, so a stale cache
+	 * is never mapped and can be replaced straight away
+	 *
+	 * @return the cached elements, or null if the cache is missing or stale
+	 */
+	private static ArrayList<TLE> readCache(File cache, File text)
+			throws IOException {
+		if (!cache.isFile()) {
+			return null;
+		}
+		MappedByteBuffer buffer;
+		FileChannel channel = new FileInputStream(cache).getChannel();
+		try {
+			ByteBuffer header = ByteBuffer.allocate(CACHE_HEADER);
+			while (header.hasRemaining()) {
+				if (channel.read(header) < 0) {
+					break;
 				}
 			}
-			s.close();
+			header.flip();
+			if (header.limit() < CACHE_HEADER
+					|| header.getInt() != CACHE_MAGIC
+					|| header.getInt() != CACHE_VERSION
+					|| header.getLong() != text.length()
+					|| header.getLong() != text.lastModified()) {
+				return null;
+			}
+			buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+					channel.size());
+		} finally {
+			channel.close();
+		}
+		buffer.position(CACHE_HEADER - 4);
+		int count = buffer.getInt();
+		ArrayList<TLE> newTles = new ArrayList<TLE>(count);
+		byte[] name = new byte[256];
+		try {
+			for (int i = 0; i < count; i++) {
+				int nameLength = buffer.get() & 0xFF;
+				buffer.get(name, 0, nameLength);
+				TLE tle = new TLE(new String(name, 0, nameLength,
+						StandardCharsets.ISO_8859_1), buffer.getInt(),
+						buffer.getDouble(), buffer.getDouble(),
+						buffer.getDouble(), buffer.getDouble(),
+						buffer.getDouble(), buffer.getDouble(),
+						buffer.getDouble(), buffer.getDouble());
+				newTles.add(tle);
+			}
+		} catch (BufferUnderflowException e) {
+			// The cache was cut short, so parse the text again
+			return null;
+		}
+		return newTles;
+	}
 
-			loadedCategories.put(category, newTles);
+	/**
+	 * Write the parsed elements so they can be mapped straight into TLEs next
+	 * time. They're written to a temporary file which is then moved over the
+	 * cache, so a run which stops part way or reads the cache at the same
+	 * time never sees it cut short. Failing to write the cache isn't fatal
+	 */
+	private static void writeCache(File cache, File text,
+			ArrayList<TLE> newTles) {
+		// Header, then a name of up to 255 bytes, the id and 8 doubles per TLE
+		int size = CACHE_HEADER;
+		for (TLE tle : newTles) {
+			size += 1 + Math.min(tle.name.length(), 255) + 4 + 8 * 8;
+		}
+		ByteBuffer buffer = ByteBuffer.allocate(size);
+		buffer.putInt(CACHE_MAGIC);
+		buffer.putInt(CACHE_VERSION);
+		buffer.putLong(text.length());
+		buffer.putLong(text.lastModified());
+		buffer.putInt(newTles.size());
+		for (TLE tle : newTles) {
+			byte[] name = tle.name.getBytes(StandardCharsets.ISO_8859_1);
+			int nameLength = Math.min(name.length, 255);
+			buffer.put((byte) nameLength);
+			buffer.put(name, 0, nameLength);
+			buffer.putInt(tle.id);
+			buffer.putDouble(tle.getEpoch());
+			buffer.putDouble(tle.getBstar());
+			buffer.putDouble(tle.getInclination());
+			buffer.putDouble(tle.getNode());
+			buffer.putDouble(tle.getEccentricity());
+			buffer.putDouble(tle.getPeri());
+			buffer.putDouble(tle.getMeanAnomaly());
+			buffer.putDouble(tle.getMeanMotion());
+		}
+		buffer.flip();
+
+		File temp = null;
+		try {
+			temp = File.createTempFile(cache.getName(), ".tmp",
+					cache.getAbsoluteFile().getParentFile());
+			FileChannel channel = new FileOutputStream(temp).getChannel();
+			try {
+				while (buffer.hasRemaining()) {
+					channel.write(buffer);
+				}
+			} finally {
+				channel.close();
+			}
+			Files.move(temp.toPath(), cache.toPath(),
+					StandardCopyOption.ATOMIC_MOVE,
+					StandardCopyOption.REPLACE_EXISTING);
+			temp = null;
+		} catch (IOException e) {
+			e.printStackTrace();
+		} finally {
+			if (temp != null) {
+				temp.delete();
+			}
 		}
 	}
 }